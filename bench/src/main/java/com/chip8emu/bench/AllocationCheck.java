@@ -0,0 +1,72 @@
+package com.chip8emu.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import com.chip8emu.main.Chip8InterpreterCore;
+import com.chip8emu.main.Chip8Metrics;
+import com.chip8emu.main.ExecutionMode;
+
+/**
+ * Verifies that the steady state of every execution mode allocates nothing:
+ * each synthetic ROM is warmed up and then run for a fixed number of frames
+ * while the allocated bytes of the current thread are measured. Exits with a
+ * non zero status when any run allocated, the build runs it during test.
+ */
+public class AllocationCheck {
+	private static final String[] ROMS = { "alu", "sprites", "memory", "mixed" };
+	private static final int CYCLES_PER_FRAME = 500;
+	private static final int WARMUP_FRAMES = 20000;
+	private static final int FRAMES = 2000;
+
+	public static void main(String[] argv) {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			System.err.println("Thread allocation counters not supported, skipping");
+			return;
+		}
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		allocations.setThreadAllocatedMemoryEnabled(true);
+		long thread = Thread.currentThread().getId();
+
+		// Cost of reading the counter itself
+		long overhead = Long.MAX_VALUE;
+		for (int i = 0; i < 100; i++) {
+			long before = allocations.getThreadAllocatedBytes(thread);
+			overhead = Math.min(overhead, allocations.getThreadAllocatedBytes(thread) - before);
+		}
+
+		int failures = 0;
+		for (ExecutionMode mode : ExecutionMode.values()) {
+			for (String rom : ROMS) {
+				for (boolean metrics : new boolean[] { false, true }) {
+					Chip8InterpreterCore core = new Chip8InterpreterCore();
+					core.setHeadless(true);
+					core.setCyclesPerFrame(CYCLES_PER_FRAME);
+					core.setExecutionMode(mode);
+					if (metrics)
+						core.setMetrics(new Chip8Metrics());
+					core.loadCode(SyntheticRoms.byName(rom));
+
+					for (int frame = 0; frame < WARMUP_FRAMES; frame++)
+						core.runFrame();
+
+					long before = allocations.getThreadAllocatedBytes(thread);
+					for (int frame = 0; frame < FRAMES; frame++)
+						core.runFrame();
+					long allocated = allocations.getThreadAllocatedBytes(thread) - before - overhead;
+
+					System.out.println(String.format("%-11s %-7s metrics=%-5b %d bytes", mode, rom, metrics,
+							allocated));
+					if (allocated > 0)
+						failures++;
+				}
+			}
+		}
+
+		if (failures > 0) {
+			System.err.println(failures + " runs allocated on the hot path");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package com.chip8emu.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar. Takes the regular JMH command line and always
+ * adds the GC profiler, so every result comes with gc.alloc.rate.norm
+ * (allocated bytes per instruction).
+ */
+public class BenchmarkMain {
+	public static void main(String[] argv) throws Exception {
+		Options options = new OptionsBuilder().parent(new CommandLineOptions(argv)).addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
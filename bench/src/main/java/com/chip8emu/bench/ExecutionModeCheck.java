@@ -0,0 +1,306 @@
+package com.chip8emu.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import com.chip8emu.main.Chip8InterpreterCore;
+import com.chip8emu.main.Chip8Variant;
+import com.chip8emu.main.ExecutionMode;
+import com.chip8emu.main.Fnv1a;
+
+/**
+ * Verifies that every execution mode computes exactly what the reference
+ * INTERPRETER computes: each synthetic ROM and a set of random opcode streams
+ * per variant run in every mode, cold and prewarmed, at several cycle budgets
+ * per frame, and the save state and VRAM hashes are compared after every
+ * frame. Budgets of 1 and 3 cycles stop compiled blocks in the middle. Exits
+ * with a non zero status when any run differs, the build runs it during test.
+ */
+public class ExecutionModeCheck {
+	private static final String[] ROMS = { "alu", "sprites", "memory", "mixed" };
+	private static final int[] CYCLES_PER_FRAME = { 1, 3, 10, 17, 250 };
+	private static final int FRAMES = 200;
+	private static final int RANDOM_PROGRAMS = 16;
+	// Random programs: a loop of RANDOM_LENGTH instructions, subroutines and
+	// data. The first CONTROL_KINDS kinds of instructions jump, call or skip
+	private static final int RANDOM_LENGTH = 96;
+	private static final int SUBROUTINES = 4;
+	private static final int SUBROUTINE_SIZE = 16;
+	private static final int SUBROUTINES_OFFSET = 2 * RANDOM_LENGTH + 8;
+	private static final int DATA_OFFSET = SUBROUTINES_OFFSET + SUBROUTINES * SUBROUTINE_SIZE;
+	private static final int DATA_SIZE = 64;
+	private static final int PROGRAM_SIZE = DATA_OFFSET + DATA_SIZE;
+	private static final int CONTROL_KINDS = 6;
+	private static final long SEED = 0x5EED;
+	// Where programs are loaded, jump targets are relative to it
+	private static final int PROGRAM_START = 0x200;
+
+	public static void main(String[] argv) {
+		int failures = 0;
+		for (String rom : ROMS) {
+			int differing = check(rom, SyntheticRoms.byName(rom), Chip8Variant.CHIP8);
+			System.out.println(String.format("%-7s %d differing runs", rom, differing));
+			failures += differing;
+		}
+
+		Random random = new Random(SEED);
+		for (Chip8Variant variant : Chip8Variant.values()) {
+			int differing = 0;
+			for (int i = 0; i < RANDOM_PROGRAMS; i++)
+				differing += check("random " + variant + " #" + i, randomProgram(random, variant), variant);
+			System.out.println(String.format("%-7s %d random programs, %d differing runs", variant, RANDOM_PROGRAMS,
+					differing));
+			failures += differing;
+		}
+
+		if (failures > 0) {
+			System.err.println(failures + " runs differ from the interpreter");
+			System.exit(1);
+		}
+	}
+
+	// Runs rom in every mode at every budget, returns the number of runs that
+	// differ from the interpreter
+	private static int check(String name, byte[] rom, Chip8Variant variant) {
+		int failures = 0;
+		for (int cyclesPerFrame : CYCLES_PER_FRAME) {
+			Trace reference = run(rom, variant, ExecutionMode.INTERPRETER, false, cyclesPerFrame);
+			for (ExecutionMode mode : ExecutionMode.values()) {
+				for (boolean prewarm : new boolean[] { false, true }) {
+					if (mode == ExecutionMode.INTERPRETER && !prewarm)
+						continue;
+
+					String difference = reference.compare(run(rom, variant, mode, prewarm, cyclesPerFrame));
+					if (difference != null) {
+						System.out.println(String.format("%s %s%s %d cycles per frame: %s", name, mode,
+								prewarm ? " prewarmed" : "", cyclesPerFrame, difference));
+						failures++;
+					}
+				}
+			}
+		}
+		return failures;
+	}
+
+	private static Trace run(byte[] rom, Chip8Variant variant, ExecutionMode mode, boolean prewarm,
+			int cyclesPerFrame) {
+		Chip8InterpreterCore core = new Chip8InterpreterCore();
+		core.setHeadless(true);
+		core.setVariant(variant);
+		core.setCyclesPerFrame(cyclesPerFrame);
+		core.setExecutionMode(mode);
+		core.loadCode(rom);
+		core.setRandomSeed(SEED);
+		if (prewarm)
+			core.prewarm();
+
+		Trace trace = new Trace();
+		ByteBuffer state = ByteBuffer.allocate(Chip8InterpreterCore.STATE_SIZE);
+		try {
+			for (; trace.frames < FRAMES; trace.frames++) {
+				core.runFrame();
+				state.clear();
+				core.saveState(state);
+				state.flip();
+				trace.states[trace.frames] = Fnv1a.hash(state);
+				trace.vram[trace.frames] = Fnv1a.hash(core.getVRAM());
+			}
+		} catch (IllegalStateException e) {
+			// Bad opcodes and stack overflows have to fail the same way too
+			trace.error = e.getMessage();
+		}
+		return trace;
+	}
+
+	// A loop of random instructions of variant with jumps, skips and calls
+	// of subroutines of random straight line code, followed by a data area.
+	// I points into the data area or now and then into the code, so stores
+	// also rewrite code that may already be decoded or compiled
+	private static byte[] randomProgram(Random random, Chip8Variant variant) {
+		ByteBuffer program = ByteBuffer.allocate(PROGRAM_SIZE);
+		while (program.position() < 2 * RANDOM_LENGTH)
+			randomInstruction(random, variant, program, true);
+		put(program, 0x1000 | PROGRAM_START);
+
+		program.position(SUBROUTINES_OFFSET);
+		for (int i = 0; i < SUBROUTINES; i++) {
+			int end = SUBROUTINES_OFFSET + (i + 1) * SUBROUTINE_SIZE - 2;
+			while (program.position() < end) {
+				if (program.position() >= end - 4)
+					// No room for instructions of several words
+					put(program, 0x7000 | random.nextInt(16) << 8 | random.nextInt(256));
+				else
+					randomInstruction(random, variant, program, false);
+			}
+			put(program, 0x00EE);
+		}
+
+		for (int i = DATA_OFFSET; i < PROGRAM_SIZE; i++)
+			program.put(i, (byte) random.nextInt(256));
+		return program.array();
+	}
+
+	// Appends one or two instructions, control ones such as jumps, calls and
+	// skips only when control is set
+	private static void randomInstruction(Random random, Chip8Variant variant, ByteBuffer program,
+			boolean control) {
+		int x = random.nextInt(16);
+		int y = random.nextInt(16);
+		int nn = random.nextInt(256);
+		// Mostly data, sometimes code
+		int address = PROGRAM_START
+				+ (random.nextInt(8) == 0 ? random.nextInt(DATA_OFFSET) : DATA_OFFSET + random.nextInt(DATA_SIZE / 2));
+		int kinds = variant == Chip8Variant.CHIP8 ? 26 : variant == Chip8Variant.SCHIP ? 32 : 38;
+		int kind = random.nextInt(kinds);
+		if (!control)
+			// Nothing before the first control kind
+			kind = random.nextInt(kinds - CONTROL_KINDS) + CONTROL_KINDS;
+
+		switch (kind) {
+		case 0:
+			put(program, 0x1000 | PROGRAM_START + 2 * random.nextInt(RANDOM_LENGTH));
+			break;
+		case 1:
+			put(program, 0x2000 | PROGRAM_START + SUBROUTINES_OFFSET + random.nextInt(SUBROUTINES) * SUBROUTINE_SIZE);
+			break;
+		case 2:
+			put(program, (random.nextBoolean() ? 0x3000 : 0x4000) | x << 8 | nn);
+			break;
+		case 3:
+			put(program, (random.nextBoolean() ? 0x5000 : 0x9000) | x << 8 | y << 4);
+			break;
+		case 4:
+			// Keys above F are invalid
+			put(program, 0x6000 | x << 8 | random.nextInt(16));
+			put(program, (random.nextBoolean() ? 0xE09E : 0xE0A1) | x << 8);
+			break;
+		case 5:
+			// Jump table entry V0 + NNN inside the loop
+			int target = 2 * random.nextInt(RANDOM_LENGTH);
+			int offset = Math.min(target, random.nextInt(256));
+			put(program, 0x6000 | offset);
+			put(program, 0xB000 | PROGRAM_START + target - offset);
+			break;
+		// Straight line code from here on
+		case 6:
+		case 7:
+			put(program, 0x6000 | x << 8 | nn);
+			break;
+		case 8:
+		case 9:
+			put(program, 0x7000 | x << 8 | nn);
+			break;
+		case 10:
+		case 11:
+		case 12:
+			int alu = random.nextInt(9);
+			put(program, 0x8000 | x << 8 | y << 4 | (alu == 8 ? 0xE : alu));
+			break;
+		case 13:
+		case 14:
+			put(program, 0xA000 | address);
+			break;
+		case 15:
+			put(program, 0xC000 | x << 8 | nn);
+			break;
+		case 16:
+		case 17:
+			put(program, 0xD000 | x << 8 | y << 4 | random.nextInt(16));
+			break;
+		case 18:
+			put(program, 0xF007 | x << 8);
+			break;
+		case 19:
+			put(program, (random.nextBoolean() ? 0xF015 : 0xF018) | x << 8);
+			break;
+		case 20:
+			put(program, 0xF01E | random.nextInt(4) << 8);
+			break;
+		case 21:
+			// A font sprite, then I back in the data area. I of the digit 0
+			// font is -1, where stores fail
+			put(program, 0xF029 | x << 8);
+			put(program, 0xD005 | x << 8 | y << 4);
+			put(program, 0xA000 | address);
+			break;
+		case 22:
+			put(program, 0xF033 | x << 8);
+			break;
+		case 23:
+			put(program, 0xF055 | x << 8);
+			break;
+		case 24:
+			put(program, 0xF065 | x << 8);
+			break;
+		case 25:
+			// Clears now and then
+			put(program, random.nextInt(4) == 0 ? 0x00E0 : 0x7000 | x << 8 | nn);
+			break;
+		// SUPER-CHIP
+		case 26:
+			put(program, 0x00C0 | random.nextInt(16));
+			break;
+		case 27:
+			put(program, random.nextBoolean() ? 0x00FB : 0x00FC);
+			break;
+		case 28:
+			put(program, random.nextBoolean() ? 0x00FE : 0x00FF);
+			break;
+		case 29:
+			// 16x16 sprites, clipped by SCHIP and wrapped by XO-CHIP
+			put(program, 0xD000 | x << 8 | y << 4);
+			break;
+		case 30:
+			put(program, 0xF030 | x << 8);
+			break;
+		case 31:
+			put(program, (random.nextBoolean() ? 0xF075 : 0xF085) | random.nextInt(8) << 8);
+			break;
+		// XO-CHIP
+		case 32:
+			put(program, 0x00D0 | random.nextInt(16));
+			break;
+		case 33:
+			put(program, 0x5000 | x << 8 | y << 4 | (random.nextBoolean() ? 2 : 3));
+			break;
+		case 34:
+			put(program, 0xF001 | random.nextInt(4) << 8);
+			break;
+		case 35:
+			put(program, random.nextBoolean() ? 0xF002 : 0xF03A | x << 8);
+			break;
+		default:
+			put(program, 0xF000);
+			put(program, address);
+			break;
+		}
+	}
+
+	private static void put(ByteBuffer program, int opcode) {
+		program.putShort((short) opcode);
+	}
+
+	// Hashes per frame of one run, up to the frame that failed if one did
+	private static final class Trace {
+		final long[] states = new long[FRAMES];
+		final long[] vram = new long[FRAMES];
+		int frames;
+		String error;
+
+		// Null when other matches this trace
+		String compare(Trace other) {
+			int frames = Math.min(this.frames, other.frames);
+			for (int i = 0; i < frames; i++) {
+				if (states[i] != other.states[i])
+					return "state differs after frame " + i;
+				if (vram[i] != other.vram[i])
+					return "VRAM differs after frame " + i;
+			}
+			if (this.frames != other.frames)
+				return "ran " + other.frames + " frames instead of " + this.frames;
+			if (error == null ? other.error != null : !error.equals(other.error))
+				return "failed with " + other.error + " instead of " + error;
+			return null;
+		}
+	}
+}
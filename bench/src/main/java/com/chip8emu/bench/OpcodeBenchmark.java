@@ -0,0 +1,71 @@
+package com.chip8emu.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.chip8emu.main.Chip8InterpreterCore;
+import com.chip8emu.main.ExecutionMode;
+
+/**
+ * Dispatch and execution cost of single opcodes. Each ROM repeats one opcode
+ * in a loop, one operation is one executed instruction so the score is
+ * instructions per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OpcodeBenchmark {
+	private static final int REPETITIONS = 64;
+	// Sixteen passes over the loop including its jump
+	private static final int INSTRUCTIONS = 16 * (REPETITIONS + 1);
+
+	// @formatter:off
+	@Param({
+		"6A05", // LD VA, 05
+		"7101", // ADD V1, 01
+		"8124", // ADD V1, V2
+		"8126", // SHR V1
+		"F11E", // ADD I, V1
+		"D015", // DRW V0, V1, 5
+		"00E0", // CLS
+		"F033", // LD B, V0
+		"F855", // LD [I], V7
+		"F865", // LD V7, [I]
+	})
+	// @formatter:on
+	public String opcode;
+
+	@Param({ "INTERPRETER", "DECODED", "JIT" })
+	public String executionMode;
+
+	private Chip8InterpreterCore core;
+
+	@Setup
+	public void setUp() {
+		core = new Chip8InterpreterCore();
+		core.setHeadless(true);
+		core.setExecutionMode(ExecutionMode.valueOf(executionMode));
+		core.loadCode(SyntheticRoms.loop(Integer.parseInt(opcode, 16), REPETITIONS));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(INSTRUCTIONS)
+	public int run() {
+		return core.runCycles(INSTRUCTIONS);
+	}
+}
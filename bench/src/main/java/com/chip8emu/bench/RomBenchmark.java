@@ -0,0 +1,60 @@
+package com.chip8emu.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.chip8emu.main.Chip8InterpreterCore;
+import com.chip8emu.main.ExecutionMode;
+
+/**
+ * Whole program throughput: runs a synthetic ROM for a fixed number of frames,
+ * including timer ticks and frame publication. The score is instructions per
+ * second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RomBenchmark {
+	private static final int FRAMES = 60;
+	private static final int CYCLES_PER_FRAME = 500;
+
+	@Param({ "alu", "sprites", "memory", "mixed" })
+	public String rom;
+
+	@Param({ "INTERPRETER", "DECODED", "JIT" })
+	public String executionMode;
+
+	private Chip8InterpreterCore core;
+
+	@Setup
+	public void setUp() {
+		core = new Chip8InterpreterCore();
+		core.setHeadless(true);
+		core.setCyclesPerFrame(CYCLES_PER_FRAME);
+		core.setExecutionMode(ExecutionMode.valueOf(executionMode));
+		core.loadCode(SyntheticRoms.byName(rom));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES * CYCLES_PER_FRAME)
+	public long run() {
+		for (int frame = 0; frame < FRAMES; frame++)
+			core.runFrame();
+		return core.getCycleCount();
+	}
+}
@@ -0,0 +1,115 @@
+package com.chip8emu.bench;
+
+/**
+ * Small generated ROMs for the benchmarks. They never wait for input and
+ * never end, so every frame runs its full cycle budget. Jump targets are
+ * 0x200 plus the offset into the ROM.
+ */
+public final class SyntheticRoms {
+	// Instructions before the loop of loop()
+	private static final int PROLOGUE_LENGTH = 3;
+
+	private SyntheticRoms() {
+	}
+
+	// Sets V1, V2 and I = 0 (the font), then repeats opcode count times
+	// followed by a jump back to the first repetition
+	public static byte[] loop(int opcode, int count) {
+		int[] program = new int[PROLOGUE_LENGTH + count + 1];
+		program[0] = 0x6105;
+		program[1] = 0x6203;
+		program[2] = 0xA000;
+		for (int i = 0; i < count; i++)
+			program[PROLOGUE_LENGTH + i] = opcode;
+		program[PROLOGUE_LENGTH + count] = 0x1000 | (0x200 + 2 * PROLOGUE_LENGTH);
+		return assemble(program);
+	}
+
+	public static byte[] byName(String name) {
+		if (name.equals("alu"))
+			return alu();
+		if (name.equals("sprites"))
+			return sprites();
+		if (name.equals("memory"))
+			return memory();
+		if (name.equals("mixed"))
+			return mixed();
+		throw new IllegalArgumentException("Unknown synthetic ROM " + name);
+	}
+
+	// Register arithmetic with a conditional skip
+	public static byte[] alu() {
+		return assemble(new int[] {
+				0x6000, // 200 LD V0, 0
+				0x6101, // 202 LD V1, 1
+				0x7001, // 204 ADD V0, 1
+				0x8014, // 206 ADD V0, V1
+				0x8206, // 208 SHR V2
+				0x8123, // 20A XOR V1, V2
+				0x8312, // 20C AND V3, V1
+				0x830E, // 20E SHL V3
+				0x3000, // 210 SE V0, 0
+				0x1204, // 212 JP 204
+				0x7101, // 214 ADD V1, 1
+				0x1204, // 216 JP 204
+		});
+	}
+
+	// Font sprites drawn across the screen, wrapping at the edges
+	public static byte[] sprites() {
+		return assemble(new int[] {
+				0x6000, // 200 LD V0, 0
+				0x6100, // 202 LD V1, 0
+				0xA000, // 204 LD I, 000
+				0xD01F, // 206 DRW V0, V1, 15
+				0x7003, // 208 ADD V0, 3
+				0x7105, // 20A ADD V1, 5
+				0xD015, // 20C DRW V0, V1, 5
+				0x1206, // 20E JP 206
+		});
+	}
+
+	// BCD conversion and register stores and loads outside the code
+	public static byte[] memory() {
+		return assemble(new int[] {
+				0xA800, // 200 LD I, 800
+				0x6A7B, // 202 LD VA, 7B
+				0xF033, // 204 LD B, V0
+				0xF855, // 206 LD [I], V7
+				0xF265, // 208 LD V1, [I]
+				0x7001, // 20A ADD V0, 1
+				0x1204, // 20C JP 204
+		});
+	}
+
+	// Random font digits, sprites, timers and a subroutine with BCD
+	public static byte[] mixed() {
+		return assemble(new int[] {
+				0xA800, // 200 LD I, 800
+				0x6000, // 202 LD V0, 0
+				0x6100, // 204 LD V1, 0
+				0xC20F, // 206 RND V2, 0F
+				0xF229, // 208 LD F, V2
+				0xD015, // 20A DRW V0, V1, 5
+				0x7008, // 20C ADD V0, 8
+				0x2218, // 20E CALL 218
+				0xF015, // 210 LD DT, V0
+				0xF307, // 212 LD V3, DT
+				0x1206, // 214 JP 206
+				0x0000, // 216 NOP
+				0xA800, // 218 LD I, 800
+				0xF033, // 21A LD B, V0
+				0xF165, // 21C LD V0, [I]
+				0x00EE, // 21E RET
+		});
+	}
+
+	private static byte[] assemble(int[] program) {
+		byte[] code = new byte[program.length * 2];
+		for (int i = 0; i < program.length; i++) {
+			code[2 * i] = (byte) (program[i] >>> 8);
+			code[2 * i + 1] = (byte) program[i];
+		}
+		return code;
+	}
+}
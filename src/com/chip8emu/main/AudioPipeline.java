@@ -0,0 +1,101 @@
+package com.chip8emu.main;
+
+/**
+ * Turns the sound timer into PCM, one frame of audio per emulated frame. A
+ * frame sounds when the sound timer is non zero once its instructions ran,
+ * so a tone starts and stops in the frame that set or cleared the timer.
+ * The beeper tone and silence are rendered once up front and handed to the
+ * sink as they are. XO-CHIP cores that loaded an audio pattern with F002 play
+ * it at the rate set by FX3A instead, rendered into a reused buffer. Nothing
+ * is allocated per frame.
+ */
+public final class AudioPipeline {
+	public static final int SAMPLE_RATE = 44100;
+	public static final int SAMPLES_PER_FRAME = SAMPLE_RATE / Chip8InterpreterCore.TIMER_HZ;
+	public static final int FRAME_BYTES = SAMPLES_PER_FRAME * 2;
+	// A whole number of periods per frame, so the beep buffer repeats
+	// without a phase jump
+	public static final int BEEP_HZ = 480;
+	private static final short AMPLITUDE = 8192;
+
+	// XO-CHIP: 128 one bit samples played at 4000 * 2^((pitch - 64) / 48)
+	// samples per second
+	private static final int PATTERN_BITS = 128;
+	private static final double PATTERN_BASE_RATE = 4000;
+
+	private final AudioSink sink;
+	private final byte[] silence = new byte[FRAME_BYTES];
+	private final byte[] beep = new byte[FRAME_BYTES];
+	private final byte[] pattern = new byte[FRAME_BYTES];
+	// Position in the audio pattern, in pattern samples, kept across frames
+	private double patternPhase;
+	// Pitch the rate below was computed for, -1 for none
+	private int ratePitch = -1;
+	private double patternStep;
+
+	private volatile long frames;
+	private volatile long toneFrames;
+
+	public AudioPipeline(AudioSink sink) {
+		this.sink = sink;
+		for (int i = 0; i < SAMPLES_PER_FRAME; i++)
+			putSample(beep, i, (i * 2L * BEEP_HZ / SAMPLE_RATE) % 2 == 0 ? AMPLITUDE : -AMPLITUDE);
+	}
+
+	public AudioSink getSink() {
+		return sink;
+	}
+
+	// Frames rendered so far, and those of them with a tone
+	public long getFrames() {
+		return frames;
+	}
+
+	public long getToneFrames() {
+		return toneFrames;
+	}
+
+	// Called by the core at the end of every frame, before the timers tick
+	void render(Chip8InterpreterCore core) {
+		frames++;
+		if (core.soundTimer == 0) {
+			sink.write(silence, FRAME_BYTES);
+			return;
+		}
+
+		toneFrames++;
+		byte[] audioPattern = core.getAudioPattern();
+		if (core.getVariant() != Chip8Variant.XOCHIP || isSilent(audioPattern)) {
+			sink.write(beep, FRAME_BYTES);
+			return;
+		}
+
+		int pitch = core.getPitch();
+		if (pitch != ratePitch) {
+			ratePitch = pitch;
+			patternStep = PATTERN_BASE_RATE * Math.pow(2, (pitch - 64) / 48.0) / SAMPLE_RATE;
+		}
+		double phase = patternPhase;
+		for (int i = 0; i < SAMPLES_PER_FRAME; i++) {
+			int bit = (int) phase & (PATTERN_BITS - 1);
+			boolean set = (audioPattern[bit >>> 3] & (0x80 >>> (bit & 7))) != 0;
+			putSample(pattern, i, set ? AMPLITUDE : -AMPLITUDE);
+			phase += patternStep;
+		}
+		patternPhase = phase % PATTERN_BITS;
+		sink.write(pattern, FRAME_BYTES);
+	}
+
+	// An all zero pattern counts as none loaded, which plays the beeper
+	private static boolean isSilent(byte[] audioPattern) {
+		for (byte b : audioPattern)
+			if (b != 0)
+				return false;
+		return true;
+	}
+
+	private static void putSample(byte[] pcm, int index, int sample) {
+		pcm[2 * index] = (byte) sample;
+		pcm[2 * index + 1] = (byte) (sample >> 8);
+	}
+}
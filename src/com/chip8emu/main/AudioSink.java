@@ -0,0 +1,14 @@
+package com.chip8emu.main;
+
+import java.io.Closeable;
+
+/**
+ * Destination of the audio an {@link AudioPipeline} renders. Every emulated
+ * frame delivers AudioPipeline.FRAME_BYTES of 16 bit signed little endian
+ * mono PCM at AudioPipeline.SAMPLE_RATE. write is called by the thread running
+ * the interpreter, implementations copy what they need and should not block
+ * it, the buffer is reused.
+ */
+public interface AudioSink extends Closeable {
+	void write(byte[] pcm, int length);
+}
@@ -0,0 +1,605 @@
+package com.chip8emu.main;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles a CHIP-8 basic block into a CompiledBlock subclass. Blocks end after
+ * jumps, calls, returns, skips, FX0A and the self modifying FX33/FX55, or
+ * before an instruction that would fail decoding.
+ *
+ * The class files are assembled by hand in version 49 so they need no stack
+ * map frames, and each one is defined by its own class loader so invalidated
+ * blocks can be unloaded again.
+ */
+final class BlockCompiler {
+	static final int MAX_BLOCK_LENGTH = 64;
+
+	private static final String CORE = "com/chip8emu/main/Chip8InterpreterCore";
+	private static final String BASE = "com/chip8emu/main/CompiledBlock";
+	private static final String EXECUTE_DESCRIPTOR = "(L" + CORE + ";[BI)I";
+
+	// @formatter:off
+	private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13;
+	private static final int ILOAD_3 = 0x1D, ALOAD_0 = 0x2A, ALOAD_1 = 0x2B, ALOAD_2 = 0x2C;
+	private static final int BALOAD = 0x33, BASTORE = 0x54;
+	private static final int IADD = 0x60, ISUB = 0x64, ISHL = 0x78, ISHR = 0x7A, IUSHR = 0x7C;
+	private static final int IAND = 0x7E, IOR = 0x80, IXOR = 0x82;
+	private static final int IFEQ = 0x99, IFNE = 0x9A, IF_ICMPEQ = 0x9F, IF_ICMPNE = 0xA0, IF_ICMPGT = 0xA3;
+	private static final int IRETURN = 0xAC, RETURN = 0xB1, INVOKESPECIAL = 0xB7, INVOKESTATIC = 0xB8;
+	// @formatter:on
+
+	private static final AtomicInteger blockCount = new AtomicInteger();
+
+	private BlockCompiler() {
+	}
+
+	// Compiles the block starting at the instruction pointer start, returns
+	// null when there is nothing worth compiling. With longSkips, as on
+	// XO-CHIP, how far a skip goes depends on the instruction after it, so
+	// skips are left to the interpreter
+	static CompiledBlock compile(byte[] ram, int start, boolean longSkips) {
+		int[] instructions = new int[MAX_BLOCK_LENGTH];
+		int length = 0;
+		int ip = start;
+		while (length < MAX_BLOCK_LENGTH && ip < ram.length - 2) {
+			int decoded = Chip8Decoder.decode((ram[ip + 1] & 0xFF) << 8 | ram[ip + 2] & 0xFF);
+			int op = Chip8Decoder.op(decoded);
+			if (op == Chip8Decoder.OP_INVALID || op == Chip8Decoder.OP_RCA || (longSkips && isSkip(op)))
+				break;
+
+			instructions[length++] = decoded;
+			ip += 2;
+			if (endsBlock(op))
+				break;
+		}
+
+		if (length == 0)
+			return null;
+
+		String name = "com/chip8emu/main/jit/Block" + Integer.toHexString(start) + "_"
+				+ blockCount.incrementAndGet();
+		byte[] classFile = new ClassWriter(name, start, length).write(instructions);
+		try {
+			Class<?> blockClass = new BlockLoader().define(name.replace('/', '.'), classFile);
+			return (CompiledBlock) blockClass.getConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// Keep interpreting rather than taking the emulator down
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static boolean isSkip(int op) {
+		switch (op) {
+		case Chip8Decoder.OP_SE_VX_NN:
+		case Chip8Decoder.OP_SNE_VX_NN:
+		case Chip8Decoder.OP_SE_VX_VY:
+		case Chip8Decoder.OP_SNE_VX_VY:
+		case Chip8Decoder.OP_SKP:
+		case Chip8Decoder.OP_SKNP:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	static boolean endsBlock(int op) {
+		switch (op) {
+		case Chip8Decoder.OP_RET:
+		case Chip8Decoder.OP_JP:
+		case Chip8Decoder.OP_CALL:
+		case Chip8Decoder.OP_SE_VX_NN:
+		case Chip8Decoder.OP_SNE_VX_NN:
+		case Chip8Decoder.OP_SE_VX_VY:
+		case Chip8Decoder.OP_SNE_VX_VY:
+		case Chip8Decoder.OP_JP_V0:
+		case Chip8Decoder.OP_SKP:
+		case Chip8Decoder.OP_SKNP:
+		case Chip8Decoder.OP_LD_VX_K:
+		case Chip8Decoder.OP_LD_B_VX:
+		case Chip8Decoder.OP_LD_I_VX:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static final class BlockLoader extends ClassLoader {
+		BlockLoader() {
+			super(CompiledBlock.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] classFile) {
+			return defineClass(name, classFile, 0, classFile.length);
+		}
+	}
+
+	private static final class ClassWriter {
+		private final String name;
+		private final int start;
+		private final int length;
+
+		private final List<byte[]> constants = new ArrayList<>();
+		private final Map<String, Integer> constantIndices = new HashMap<>();
+		private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+		ClassWriter(String name, int start, int length) {
+			this.name = name;
+			this.start = start;
+			this.length = length;
+		}
+
+		byte[] write(int[] instructions) {
+			int thisClass = classConstant(name);
+			int superClass = classConstant(BASE);
+			int initName = utf8("<init>");
+			int initDescriptor = utf8("()V");
+			int executeName = utf8("execute");
+			int executeDescriptor = utf8(EXECUTE_DESCRIPTOR);
+			int codeName = utf8("Code");
+
+			// Constructor passes start and length on to CompiledBlock
+			code.write(ALOAD_0);
+			pushInt(start);
+			pushInt(length);
+			code.write(INVOKESPECIAL);
+			u2(code, methodConstant(BASE, "<init>", "(II)V"));
+			code.write(RETURN);
+			byte[] initCode = code.toByteArray();
+			code.reset();
+
+			int ip = start;
+			for (int i = 0; i < length; i++) {
+				if (i > 0)
+					budgetExit(i, ip);
+				ip += 2;
+				emit(instructions[i], ip);
+			}
+			if (!endsBlock(Chip8Decoder.op(instructions[length - 1]))) {
+				pushInt(ip);
+				code.write(IRETURN);
+			}
+			byte[] executeCode = code.toByteArray();
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			u4(out, 0xCAFEBABE);
+			u2(out, 0);
+			u2(out, 49);
+			u2(out, constants.size() + 1);
+			for (byte[] constant : constants)
+				out.write(constant, 0, constant.length);
+			u2(out, 0x1031); // public final super synthetic
+			u2(out, thisClass);
+			u2(out, superClass);
+			u2(out, 0); // interfaces
+			u2(out, 0); // fields
+			u2(out, 2); // methods
+			method(out, initName, initDescriptor, codeName, 3, 1, initCode);
+			method(out, executeName, executeDescriptor, codeName, 6, 4, executeCode);
+			u2(out, 0); // attributes
+			return out.toByteArray();
+		}
+
+		// Returns ip, the address of the instruction at index, once index
+		// instructions used up the budget
+		private void budgetExit(int index, int ip) {
+			code.write(ILOAD_3);
+			pushInt(index);
+			int branch = code.size();
+			code.write(IF_ICMPGT);
+			u2(code, 0); // patched below
+			pushInt(ip);
+			code.write(IRETURN);
+			patchBranch(branch, code.size());
+		}
+
+		// Emits one instruction, next is the instruction pointer after it.
+		// Locals: 1 the core, 2 the V registers, 3 the budget
+		private void emit(int decoded, int next) {
+			int x = Chip8Decoder.x(decoded);
+			int y = Chip8Decoder.y(decoded);
+			int nn = Chip8Decoder.nn(decoded);
+			int nnn = Chip8Decoder.nnn(decoded);
+
+			switch (Chip8Decoder.op(decoded)) {
+			case Chip8Decoder.OP_NOP:
+				break;
+			case Chip8Decoder.OP_CLS:
+				code.write(ALOAD_1);
+				helper("clearScreen", "(L" + CORE + ";)V");
+				break;
+			case Chip8Decoder.OP_RET:
+				code.write(ALOAD_1);
+				pushInt(next);
+				helper("ret", "(L" + CORE + ";I)I");
+				code.write(IRETURN);
+				break;
+			case Chip8Decoder.OP_JP:
+				pushInt(nnn);
+				code.write(IRETURN);
+				break;
+			case Chip8Decoder.OP_CALL:
+				code.write(ALOAD_1);
+				pushInt(next);
+				pushInt(nnn);
+				helper("call", "(L" + CORE + ";II)I");
+				code.write(IRETURN);
+				break;
+			case Chip8Decoder.OP_SE_VX_NN:
+				loadRegister(x);
+				pushInt(nn);
+				skip(IF_ICMPNE, next);
+				break;
+			case Chip8Decoder.OP_SNE_VX_NN:
+				loadRegister(x);
+				pushInt(nn);
+				skip(IF_ICMPEQ, next);
+				break;
+			case Chip8Decoder.OP_SE_VX_VY:
+				loadRegister(x);
+				loadRegister(y);
+				skip(IF_ICMPNE, next);
+				break;
+			case Chip8Decoder.OP_SNE_VX_VY:
+				loadRegister(x);
+				loadRegister(y);
+				skip(IF_ICMPEQ, next);
+				break;
+			case Chip8Decoder.OP_LD_VX_NN:
+				registerStore(x);
+				pushInt((byte) nn);
+				code.write(BASTORE);
+				break;
+			case Chip8Decoder.OP_ADD_VX_NN:
+				registerStore(x);
+				loadRegister(x);
+				pushInt((byte) nn);
+				code.write(IADD);
+				code.write(BASTORE);
+				break;
+			case Chip8Decoder.OP_LD_VX_VY:
+				registerStore(x);
+				loadRegister(y);
+				code.write(BASTORE);
+				break;
+			case Chip8Decoder.OP_OR:
+				binary(x, y, IOR);
+				break;
+			case Chip8Decoder.OP_AND:
+				binary(x, y, IAND);
+				break;
+			case Chip8Decoder.OP_XOR:
+				binary(x, y, IXOR);
+				break;
+			case Chip8Decoder.OP_ADD_VX_VY:
+				// VF = 0; VF = 127 - (VX + VY) < 0
+				storeConstant(0xF, 0);
+				registerStore(0xF);
+				pushInt(Byte.MAX_VALUE);
+				loadRegister(x);
+				loadRegister(y);
+				code.write(IADD);
+				code.write(ISUB);
+				signBit();
+				code.write(BASTORE);
+				break;
+			case Chip8Decoder.OP_SUB:
+				// VF = 1; VF = VX - VY >= 0
+				storeConstant(0xF, 1);
+				registerStore(0xF);
+				loadRegister(x);
+				loadRegister(y);
+				code.write(ISUB);
+				signBit();
+				pushInt(1);
+				code.write(IXOR);
+				code.write(BASTORE);
+				break;
+			case Chip8Decoder.OP_SHR:
+				registerStore(0xF);
+				loadRegister(x);
+				pushInt(1);
+				code.write(IAND);
+				code.write(BASTORE);
+				registerStore(x);
+				loadRegister(x);
+				pushInt(1);
+				code.write(ISHR);
+				code.write(BASTORE);
+				break;
+			case Chip8Decoder.OP_SUBN:
+				// VF = 1; VF = VY - VX >= 0; VX = VY - VX
+				storeConstant(0xF, 1);
+				registerStore(0xF);
+				loadRegister(y);
+				loadRegister(x);
+				code.write(ISUB);
+				signBit();
+				pushInt(1);
+				code.write(IXOR);
+				code.write(BASTORE);
+				registerStore(x);
+				loadRegister(y);
+				loadRegister(x);
+				code.write(ISUB);
+				code.write(BASTORE);
+				break;
+			case Chip8Decoder.OP_SHL:
+				registerStore(0xF);
+				loadRegister(x);
+				pushInt(0x80);
+				code.write(IAND);
+				code.write(BASTORE);
+				registerStore(x);
+				loadRegister(x);
+				pushInt(1);
+				code.write(ISHL);
+				code.write(BASTORE);
+				break;
+			case Chip8Decoder.OP_LD_I:
+				code.write(ALOAD_1);
+				pushInt(nnn);
+				helper("setAddress", "(L" + CORE + ";I)V");
+				break;
+			case Chip8Decoder.OP_JP_V0:
+				pushInt(nnn);
+				loadRegister(0x0);
+				code.write(IADD);
+				code.write(IRETURN);
+				break;
+			case Chip8Decoder.OP_RND:
+				registerStore(x);
+				code.write(ALOAD_1);
+				pushInt(nn);
+				helper("random", "(L" + CORE + ";I)I");
+				code.write(BASTORE);
+				break;
+			case Chip8Decoder.OP_DRW:
+				code.write(ALOAD_1);
+				pushInt(next);
+				loadRegister(x);
+				loadRegister(y);
+				pushInt(Chip8Decoder.n(decoded));
+				helper("drawSprite", "(L" + CORE + ";IIII)V");
+				break;
+			case Chip8Decoder.OP_SKP:
+				code.write(ALOAD_1);
+				pushInt(next);
+				loadRegister(x);
+				helper("getInput", "(L" + CORE + ";II)I");
+				pushInt(1);
+				skip(IF_ICMPNE, next);
+				break;
+			case Chip8Decoder.OP_SKNP:
+				code.write(ALOAD_1);
+				pushInt(next);
+				loadRegister(x);
+				helper("getInput", "(L" + CORE + ";II)I");
+				skip(IFNE, next);
+				break;
+			case Chip8Decoder.OP_LD_VX_DT:
+				registerStore(x);
+				code.write(ALOAD_1);
+				helper("delayTimer", "(L" + CORE + ";)I");
+				code.write(BASTORE);
+				break;
+			case Chip8Decoder.OP_LD_VX_K:
+				code.write(ALOAD_1);
+				pushInt(x);
+				helper("awaitKey", "(L" + CORE + ";I)V");
+				pushInt(next);
+				code.write(IRETURN);
+				break;
+			case Chip8Decoder.OP_LD_DT_VX:
+				code.write(ALOAD_1);
+				loadRegister(x);
+				helper("setDelayTimer", "(L" + CORE + ";I)V");
+				break;
+			case Chip8Decoder.OP_LD_ST_VX:
+				code.write(ALOAD_1);
+				loadRegister(x);
+				helper("setSoundTimer", "(L" + CORE + ";I)V");
+				break;
+			case Chip8Decoder.OP_ADD_I_VX:
+				code.write(ALOAD_1);
+				loadRegister(x);
+				helper("addAddress", "(L" + CORE + ";I)V");
+				break;
+			case Chip8Decoder.OP_LD_F_VX:
+				code.write(ALOAD_1);
+				loadRegister(x);
+				helper("fontAddress", "(L" + CORE + ";I)V");
+				break;
+			case Chip8Decoder.OP_LD_B_VX:
+				code.write(ALOAD_1);
+				pushInt(next);
+				loadRegister(x);
+				helper("storeBcd", "(L" + CORE + ";II)V");
+				pushInt(next);
+				code.write(IRETURN);
+				break;
+			case Chip8Decoder.OP_LD_I_VX:
+				code.write(ALOAD_1);
+				pushInt(next);
+				pushInt(x);
+				helper("storeRegisters", "(L" + CORE + ";II)V");
+				pushInt(next);
+				code.write(IRETURN);
+				break;
+			case Chip8Decoder.OP_LD_VX_I:
+				code.write(ALOAD_1);
+				pushInt(next);
+				pushInt(x);
+				helper("loadRegisters", "(L" + CORE + ";II)V");
+				break;
+			default:
+				throw new IllegalArgumentException("Not compilable: " + Chip8Decoder.mnemonic(decoded));
+			}
+		}
+
+		// Returns next + 2 unless the condition branch is taken
+		private void skip(int branchIfNotSkipped, int next) {
+			int branch = code.size();
+			code.write(branchIfNotSkipped);
+			u2(code, 0); // patched below
+			pushInt(next + 2);
+			code.write(IRETURN);
+			patchBranch(branch, code.size());
+			pushInt(next);
+			code.write(IRETURN);
+		}
+
+		// Points the branch instruction at branch to target
+		private void patchBranch(int branch, int target) {
+			byte[] bytes = code.toByteArray();
+			int offset = target - branch;
+			bytes[branch + 1] = (byte) (offset >> 8);
+			bytes[branch + 2] = (byte) offset;
+			code.reset();
+			code.write(bytes, 0, bytes.length);
+		}
+
+		private void loadRegister(int register) {
+			code.write(ALOAD_2);
+			pushInt(register);
+			code.write(BALOAD);
+		}
+
+		// Pushes array and index, the caller pushes the value and BASTOREs
+		private void registerStore(int register) {
+			code.write(ALOAD_2);
+			pushInt(register);
+		}
+
+		private void storeConstant(int register, int value) {
+			registerStore(register);
+			pushInt(value);
+			code.write(BASTORE);
+		}
+
+		private void binary(int x, int y, int operation) {
+			registerStore(x);
+			loadRegister(x);
+			loadRegister(y);
+			code.write(operation);
+			code.write(BASTORE);
+		}
+
+		// Replaces the int on the stack with 1 if it is negative, 0 otherwise
+		private void signBit() {
+			pushInt(31);
+			code.write(IUSHR);
+		}
+
+		private void helper(String name, String descriptor) {
+			code.write(INVOKESTATIC);
+			u2(code, methodConstant(BASE, name, descriptor));
+		}
+
+		private void pushInt(int value) {
+			if (value >= -1 && value <= 5) {
+				code.write(ICONST_0 + value);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				code.write(BIPUSH);
+				code.write(value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				code.write(SIPUSH);
+				u2(code, value);
+			} else {
+				code.write(LDC_W);
+				u2(code, intConstant(value));
+			}
+		}
+
+		private void method(ByteArrayOutputStream out, int name, int descriptor, int codeName, int maxStack,
+				int maxLocals, byte[] body) {
+			u2(out, 0x0001); // public
+			u2(out, name);
+			u2(out, descriptor);
+			u2(out, 1);
+			u2(out, codeName);
+			u4(out, 12 + body.length);
+			u2(out, maxStack);
+			u2(out, maxLocals);
+			u4(out, body.length);
+			out.write(body, 0, body.length);
+			u2(out, 0); // exception table
+			u2(out, 0); // attributes
+		}
+
+		private int utf8(String value) {
+			Integer index = constantIndices.get("U" + value);
+			if (index != null)
+				return index;
+
+			ByteArrayOutputStream constant = new ByteArrayOutputStream();
+			constant.write(1);
+			u2(constant, value.length());
+			for (int i = 0; i < value.length(); i++)
+				constant.write(value.charAt(i));
+			return add("U" + value, constant);
+		}
+
+		private int intConstant(int value) {
+			Integer index = constantIndices.get("I" + value);
+			if (index != null)
+				return index;
+
+			ByteArrayOutputStream constant = new ByteArrayOutputStream();
+			constant.write(3);
+			u4(constant, value);
+			return add("I" + value, constant);
+		}
+
+		private int classConstant(String className) {
+			Integer index = constantIndices.get("C" + className);
+			if (index != null)
+				return index;
+
+			ByteArrayOutputStream constant = new ByteArrayOutputStream();
+			constant.write(7);
+			u2(constant, utf8(className));
+			return add("C" + className, constant);
+		}
+
+		private int methodConstant(String owner, String methodName, String descriptor) {
+			String key = "M" + owner + "." + methodName + descriptor;
+			Integer index = constantIndices.get(key);
+			if (index != null)
+				return index;
+
+			ByteArrayOutputStream nameAndType = new ByteArrayOutputStream();
+			nameAndType.write(12);
+			u2(nameAndType, utf8(methodName));
+			u2(nameAndType, utf8(descriptor));
+			int nameAndTypeIndex = add("N" + methodName + descriptor, nameAndType);
+
+			ByteArrayOutputStream constant = new ByteArrayOutputStream();
+			constant.write(10);
+			u2(constant, classConstant(owner));
+			u2(constant, nameAndTypeIndex);
+			return add(key, constant);
+		}
+
+		private int add(String key, ByteArrayOutputStream constant) {
+			constants.add(constant.toByteArray());
+			constantIndices.put(key, constants.size());
+			return constants.size();
+		}
+
+		private static void u2(ByteArrayOutputStream out, int value) {
+			out.write(value >> 8);
+			out.write(value);
+		}
+
+		private static void u4(ByteArrayOutputStream out, int value) {
+			u2(out, value >>> 16);
+			u2(out, value);
+		}
+	}
+}
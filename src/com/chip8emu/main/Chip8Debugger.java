@@ -0,0 +1,395 @@
+package com.chip8emu.main;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Breakpoints, watchpoints and stepping for the core it belongs to, see
+ * {@link Chip8InterpreterCore#getDebugger()}. While nothing is armed the core
+ * only looks at the debugger once per frame. Once a breakpoint, watchpoint or
+ * command is armed, the core executes one instruction at a time and checks
+ * breakpoints before and watchpoints after every instruction. A stop
+ * interrupts the current frame. runFrame then does nothing and the timers
+ * stand still, until the debugger continues or steps and the rest of the
+ * frame runs.
+ *
+ * Addresses are those of the core: instruction pointers as returned by
+ * getInstructionPointer, ram indices for watchpoints. Breakpoints, watchpoints
+ * and commands may be set from any thread. Commands take effect at an
+ * instruction boundary within the next frame.
+ * Conditions and the listener run on the thread running the core.
+ */
+public final class Chip8Debugger {
+	// Watchable registers besides V0 to VF
+	public static final int REGISTER_I = 16;
+	public static final int REGISTER_DT = 17;
+	public static final int REGISTER_ST = 18;
+	private static final int REGISTERS = 19;
+
+	// Largest ram of all variants
+	private static final int ADDRESSES = Chip8Variant.XOCHIP.ramSize;
+
+	private static final int NONE = 0;
+	private static final int PAUSE = 1;
+	private static final int CONTINUE = 2;
+	private static final int STEP_INTO = 3;
+	private static final int STEP_OVER = 4;
+	private static final int STEP_OUT = 5;
+
+	public enum StopReason {
+		PAUSE, BREAKPOINT, WATCHPOINT, STEP
+	}
+
+	// Decides whether a breakpoint stops the core, evaluated before the
+	// instruction at the breakpoint executes
+	public interface Condition {
+		boolean test(Chip8InterpreterCore core);
+	}
+
+	public interface Listener {
+		// The core is stopped in front of the instruction at its
+		// instruction pointer
+		void stopped(Chip8InterpreterCore core, StopReason reason);
+	}
+
+	// One bit per address, allocated with the first point of their kind.
+	// Writers publish through the volatile counts
+	private long[] breakpoints;
+	private long[] readWatches;
+	private long[] writeWatches;
+	private final ConcurrentHashMap<Integer, Condition> conditions = new ConcurrentHashMap<Integer, Condition>();
+	private volatile int breakpointCount;
+	private volatile int memoryWatchCount;
+	// Bit r watches register r
+	private volatile int registerWatches;
+
+	private final AtomicInteger command = new AtomicInteger(NONE);
+	private volatile Listener listener;
+
+	// Thread running the core
+	private volatile boolean stopped;
+	private volatile StopReason stopReason;
+	private int stepMode = NONE;
+	private int stepDepth;
+	// Set when the core leaves a stop, so the breakpoint it stopped at does
+	// not stop it again right away
+	private boolean leavingStop;
+	private boolean memoryHit;
+	private final int[] registers = new int[REGISTERS];
+
+	Chip8Debugger() {
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	// Stops the core before the instruction at address, whenever condition
+	// holds or always for a null condition
+	public synchronized void addBreakpoint(int address, Condition condition) {
+		checkAddress(address);
+		if (breakpoints == null)
+			breakpoints = new long[ADDRESSES / 64];
+		if (condition != null)
+			conditions.put(address, condition);
+		else
+			conditions.remove(address);
+		if (!isSet(breakpoints, address)) {
+			breakpoints[address >>> 6] |= 1L << address;
+			breakpointCount++;
+		}
+	}
+
+	public void addBreakpoint(int address) {
+		addBreakpoint(address, null);
+	}
+
+	public synchronized void removeBreakpoint(int address) {
+		checkAddress(address);
+		if (isSet(breakpoints, address)) {
+			breakpoints[address >>> 6] &= ~(1L << address);
+			conditions.remove(address);
+			breakpointCount--;
+		}
+	}
+
+	// Stops the core after an instruction that reads or writes, as selected,
+	// any of ram[address, address + length). Instruction fetches do not count
+	public synchronized void watchMemory(int address, int length, boolean read, boolean write) {
+		checkAddress(address);
+		checkAddress(address + length - 1);
+		if (read && readWatches == null)
+			readWatches = new long[ADDRESSES / 64];
+		if (write && writeWatches == null)
+			writeWatches = new long[ADDRESSES / 64];
+
+		int count = memoryWatchCount;
+		for (int i = address; i < address + length; i++) {
+			if (read && !isSet(readWatches, i)) {
+				readWatches[i >>> 6] |= 1L << i;
+				count++;
+			}
+			if (write && !isSet(writeWatches, i)) {
+				writeWatches[i >>> 6] |= 1L << i;
+				count++;
+			}
+		}
+		memoryWatchCount = count;
+	}
+
+	public synchronized void unwatchMemory(int address, int length) {
+		checkAddress(address);
+		checkAddress(address + length - 1);
+		int count = memoryWatchCount;
+		for (int i = address; i < address + length; i++) {
+			if (isSet(readWatches, i)) {
+				readWatches[i >>> 6] &= ~(1L << i);
+				count--;
+			}
+			if (isSet(writeWatches, i)) {
+				writeWatches[i >>> 6] &= ~(1L << i);
+				count--;
+			}
+		}
+		memoryWatchCount = count;
+	}
+
+	// Stops the core after an instruction that changed register, 0x0 to 0xF
+	// for V0 to VF or one of the REGISTER_ constants. Timers counting down
+	// between frames do not count
+	public synchronized void watchRegister(int register) {
+		checkRegister(register);
+		registerWatches |= 1 << register;
+	}
+
+	public synchronized void unwatchRegister(int register) {
+		checkRegister(register);
+		registerWatches &= ~(1 << register);
+	}
+
+	// Removes every breakpoint and watchpoint
+	public synchronized void clearPoints() {
+		if (breakpoints != null)
+			Arrays.fill(breakpoints, 0);
+		if (readWatches != null)
+			Arrays.fill(readWatches, 0);
+		if (writeWatches != null)
+			Arrays.fill(writeWatches, 0);
+		conditions.clear();
+		breakpointCount = 0;
+		memoryWatchCount = 0;
+		registerWatches = 0;
+	}
+
+	// Stops the core at the next instruction boundary
+	public void pause() {
+		command.set(PAUSE);
+	}
+
+	// Continues a stopped core until the next breakpoint or watchpoint
+	public void resume() {
+		command.set(CONTINUE);
+	}
+
+	// Executes one instruction
+	public void stepInto() {
+		command.set(STEP_INTO);
+	}
+
+	// Executes one instruction, a 2NNN together with the subroutine it calls
+	public void stepOver() {
+		command.set(STEP_OVER);
+	}
+
+	// Runs until the current subroutine returned with 00EE
+	public void stepOut() {
+		command.set(STEP_OUT);
+	}
+
+	// The state of a stopped core may be read from any thread once this
+	// returns true
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	// Why the core stopped last, null if it never did
+	public StopReason getStopReason() {
+		return stopReason;
+	}
+
+	// Whether the core has to check the debugger around every instruction
+	boolean isArmed() {
+		return stopped || stepMode != NONE || command.get() != NONE || breakpointCount > 0
+				|| memoryWatchCount > 0 || registerWatches != 0;
+	}
+
+	boolean watchesMemory() {
+		return memoryWatchCount > 0;
+	}
+
+	// Called by the core at the start of every frame while armed, returns
+	// false while it is stopped
+	boolean beginFrame(Chip8InterpreterCore core) {
+		applyCommand(core);
+		return !stopped;
+	}
+
+	// Called by the core before every instruction while armed, returns true
+	// if the core stops in front of it
+	boolean beforeInstruction(Chip8InterpreterCore core) {
+		applyCommand(core);
+		if (stopped)
+			return true;
+
+		int ip = core.getInstructionPointer();
+		if (leavingStop) {
+			leavingStop = false;
+		} else if (breakpointCount > 0 && isBreakpoint(core, ip)) {
+			stop(core, StopReason.BREAKPOINT);
+			return true;
+		}
+
+		if (registerWatches != 0)
+			readRegisters(core, registers);
+		memoryHit = false;
+		return false;
+	}
+
+	// Called by the core for every ram access of an instruction while
+	// memory is watched
+	void memoryAccess(int address, int length, boolean write) {
+		long[] watches = write ? writeWatches : readWatches;
+		if (watches == null)
+			return;
+		for (int i = Math.max(address, 0); i < Math.min(address + length, ADDRESSES); i++)
+			if (isSet(watches, i)) {
+				memoryHit = true;
+				return;
+			}
+	}
+
+	// Called by the core after every instruction while armed, returns true
+	// if the core stops after it
+	boolean afterInstruction(Chip8InterpreterCore core) {
+		if (memoryHit || (registerWatches != 0 && registersChanged(core))) {
+			stop(core, StopReason.WATCHPOINT);
+			return true;
+		}
+
+		boolean stepped;
+		switch (stepMode) {
+		case STEP_INTO:
+			stepped = true;
+			break;
+		case STEP_OVER:
+			stepped = core.getStackPointer() <= stepDepth;
+			break;
+		case STEP_OUT:
+			stepped = core.getStackPointer() < stepDepth;
+			break;
+		default:
+			stepped = false;
+			break;
+		}
+		if (stepped)
+			stop(core, StopReason.STEP);
+		return stepped;
+	}
+
+	// Drops the stop and any pending command, for a core loading a new
+	// program. Breakpoints and watchpoints stay
+	void reset() {
+		command.set(NONE);
+		stepMode = NONE;
+		leavingStop = false;
+		stopped = false;
+	}
+
+	private void applyCommand(Chip8InterpreterCore core) {
+		if (command.get() == NONE)
+			return;
+
+		int command = this.command.getAndSet(NONE);
+		switch (command) {
+		case PAUSE:
+			if (!stopped)
+				stop(core, StopReason.PAUSE);
+			break;
+		case CONTINUE:
+			leave(NONE, core);
+			break;
+		case STEP_INTO:
+		case STEP_OVER:
+		case STEP_OUT:
+			// Steps requested while running start from where the core is
+			leave(command, core);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void leave(int mode, Chip8InterpreterCore core) {
+		stepMode = mode;
+		stepDepth = core.getStackPointer();
+		leavingStop = stopped;
+		stopped = false;
+	}
+
+	private void stop(Chip8InterpreterCore core, StopReason reason) {
+		stepMode = NONE;
+		stopReason = reason;
+		stopped = true;
+		Listener listener = this.listener;
+		if (listener != null)
+			listener.stopped(core, reason);
+	}
+
+	private boolean isBreakpoint(Chip8InterpreterCore core, int ip) {
+		if (ip < 0 || ip >= ADDRESSES || !isSet(breakpoints, ip))
+			return false;
+		Condition condition = conditions.get(ip);
+		return condition == null || condition.test(core);
+	}
+
+	private boolean registersChanged(Chip8InterpreterCore core) {
+		int watched = registerWatches;
+		for (int r = 0; r < REGISTERS; r++)
+			if ((watched & (1 << r)) != 0 && registerValue(core, r) != registers[r])
+				return true;
+		return false;
+	}
+
+	private static void readRegisters(Chip8InterpreterCore core, int[] registers) {
+		for (int r = 0; r < REGISTERS; r++)
+			registers[r] = registerValue(core, r);
+	}
+
+	private static int registerValue(Chip8InterpreterCore core, int register) {
+		switch (register) {
+		case REGISTER_I:
+			return core.getAddressRegister();
+		case REGISTER_DT:
+			return core.getDelayTimer();
+		case REGISTER_ST:
+			return core.getSoundTimer();
+		default:
+			return core.getRegister(register);
+		}
+	}
+
+	private static boolean isSet(long[] bits, int index) {
+		return bits != null && (bits[index >>> 6] & (1L << index)) != 0;
+	}
+
+	private static void checkAddress(int address) {
+		if (address < 0 || address >= ADDRESSES)
+			throw new IllegalArgumentException("Address out of range: " + address);
+	}
+
+	private static void checkRegister(int register) {
+		if (register < 0 || register >= REGISTERS)
+			throw new IllegalArgumentException("No such register: " + register);
+	}
+}
@@ -0,0 +1,334 @@
+package com.chip8emu.main;
+
+/**
+ * Decodes CHIP-8 opcodes into a compact int form with the operands already
+ * extracted. Bits 0-7 hold the operation, bits 8-11 X, bits 12-15 Y and bits
+ * 16-27 NNN (NN and N are the low 8 and 4 bits of it). Superinstructions
+ * reuse the upper bits for the operands of their second half. The
+ * SUPER-CHIP and XO-CHIP extensions are only decoded for those variants.
+ */
+public final class Chip8Decoder {
+	// 0 is never produced so it can mark empty cache entries
+	public static final int OP_UNDECODED = 0;
+	public static final int OP_INVALID = 1;
+	public static final int OP_RCA = 2;
+	public static final int OP_NOP = 3; // 0000
+	public static final int OP_CLS = 4; // 00E0
+	public static final int OP_RET = 5; // 00EE
+	public static final int OP_JP = 6; // 1NNN
+	public static final int OP_CALL = 7; // 2NNN
+	public static final int OP_SE_VX_NN = 8; // 3XNN
+	public static final int OP_SNE_VX_NN = 9; // 4XNN
+	public static final int OP_SE_VX_VY = 10; // 5XY0
+	public static final int OP_LD_VX_NN = 11; // 6XNN
+	public static final int OP_ADD_VX_NN = 12; // 7XNN
+	public static final int OP_LD_VX_VY = 13; // 8XY0
+	public static final int OP_OR = 14; // 8XY1
+	public static final int OP_AND = 15; // 8XY2
+	public static final int OP_XOR = 16; // 8XY3
+	public static final int OP_ADD_VX_VY = 17; // 8XY4
+	public static final int OP_SUB = 18; // 8XY5
+	public static final int OP_SHR = 19; // 8XY6
+	public static final int OP_SUBN = 20; // 8XY7
+	public static final int OP_SHL = 21; // 8XYE
+	public static final int OP_SNE_VX_VY = 22; // 9XY0
+	public static final int OP_LD_I = 23; // ANNN
+	public static final int OP_JP_V0 = 24; // BNNN
+	public static final int OP_RND = 25; // CXNN
+	public static final int OP_DRW = 26; // DXYN
+	public static final int OP_SKP = 27; // EX9E
+	public static final int OP_SKNP = 28; // EXA1
+	public static final int OP_LD_VX_DT = 29; // FX07
+	public static final int OP_LD_VX_K = 30; // FX0A
+	public static final int OP_LD_DT_VX = 31; // FX15
+	public static final int OP_LD_ST_VX = 32; // FX18
+	public static final int OP_ADD_I_VX = 33; // FX1E
+	public static final int OP_LD_F_VX = 34; // FX29
+	public static final int OP_LD_B_VX = 35; // FX33
+	public static final int OP_LD_I_VX = 36; // FX55
+	public static final int OP_LD_VX_I = 37; // FX65
+
+	// SUPER-CHIP
+	public static final int OP_SCD = 38; // 00CN
+	public static final int OP_SCR = 39; // 00FB
+	public static final int OP_SCL = 40; // 00FC
+	public static final int OP_EXIT = 41; // 00FD
+	public static final int OP_LOW = 42; // 00FE
+	public static final int OP_HIGH = 43; // 00FF
+	public static final int OP_LD_HF_VX = 44; // FX30
+	public static final int OP_LD_R_VX = 45; // FX75
+	public static final int OP_LD_VX_R = 46; // FX85
+
+	// XO-CHIP
+	public static final int OP_SCU = 47; // 00DN
+	public static final int OP_SAVE_VX_VY = 48; // 5XY2
+	public static final int OP_LOAD_VX_VY = 49; // 5XY3
+	// The only four byte instruction, NNNN is the following word
+	public static final int OP_LD_I_LONG = 50; // F000 NNNN
+	public static final int OP_PLANE = 51; // FN01
+	public static final int OP_AUDIO = 52; // F002
+	public static final int OP_PITCH = 53; // FX3A
+
+	// Superinstructions, always the last operations. 6XNN 6YMM keeps X and Y
+	// in place, NN in bits 16-23 and MM in bits 24-31
+	public static final int OP_FUSED_LD_LD = 54;
+	// DXYN 7ZNN keeps X, Y and N in place, Z in bits 20-23 and NN in 24-31
+	public static final int OP_FUSED_DRW_ADD = 55;
+
+	public static final int OP_COUNT = 56;
+
+	// @formatter:off
+	private static final String[] MNEMONICS = new String[] {
+			"???", "INVALID", "RCA", "NOP", "CLS", "RET", "JP", "CALL", "SE", "SNE", "SE", "LD", "ADD",
+			"LD", "OR", "AND", "XOR", "ADD", "SUB", "SHR", "SUBN", "SHL", "SNE", "LD I", "JP V0", "RND",
+			"DRW", "SKP", "SKNP", "LD DT", "LD K", "LD DT", "LD ST", "ADD I", "LD F", "LD B", "LD [I]",
+			"LD [I]", "SCD", "SCR", "SCL", "EXIT", "LOW", "HIGH", "LD HF", "LD R", "LD R", "SCU", "SAVE",
+			"LOAD", "LD I", "PLANE", "AUDIO", "PITCH", "LD LD", "DRW ADD" };
+
+	private static final String[] PATTERNS = new String[] {
+			"----", "----", "0NNN", "0000", "00E0", "00EE", "1NNN", "2NNN", "3XNN", "4XNN", "5XY0", "6XNN",
+			"7XNN", "8XY0", "8XY1", "8XY2", "8XY3", "8XY4", "8XY5", "8XY6", "8XY7", "8XYE", "9XY0", "ANNN",
+			"BNNN", "CXNN", "DXYN", "EX9E", "EXA1", "FX07", "FX0A", "FX15", "FX18", "FX1E", "FX29", "FX33",
+			"FX55", "FX65", "00CN", "00FB", "00FC", "00FD", "00FE", "00FF", "FX30", "FX75", "FX85", "00DN",
+			"5XY2", "5XY3", "F000", "FN01", "F002", "FX3A", "6XNN 6YNN", "DXYN 7ZNN" };
+
+	// High opcode nibble per operation, superinstructions report their first
+	// half
+	private static final byte[] FAMILIES = new byte[] {
+			0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x1, 0x2, 0x3, 0x4, 0x5, 0x6, 0x7,
+			0x8, 0x8, 0x8, 0x8, 0x8, 0x8, 0x8, 0x8, 0x8, 0x9, 0xA, 0xB, 0xC,
+			0xD, 0xE, 0xE, 0xF, 0xF, 0xF, 0xF, 0xF, 0xF, 0xF, 0xF,
+			0xF, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0xF, 0xF, 0xF, 0x0, 0x5, 0x5, 0xF, 0xF, 0xF, 0xF,
+			0x6, 0xD };
+	// @formatter:on
+
+	private Chip8Decoder() {
+	}
+
+	public static int op(int decoded) {
+		return decoded & 0xFF;
+	}
+
+	public static int x(int decoded) {
+		return (decoded >>> 8) & 0xF;
+	}
+
+	public static int y(int decoded) {
+		return (decoded >>> 12) & 0xF;
+	}
+
+	public static int nnn(int decoded) {
+		return (decoded >>> 16) & 0xFFF;
+	}
+
+	public static int nn(int decoded) {
+		return (decoded >>> 16) & 0xFF;
+	}
+
+	public static int n(int decoded) {
+		return (decoded >>> 16) & 0xF;
+	}
+
+	// Upper 8 bits, the immediate of the second half of a superinstruction
+	public static int fusedNn(int decoded) {
+		return decoded >>> 24;
+	}
+
+	// Bits 20-23, the register of the second half of OP_FUSED_DRW_ADD
+	public static int fusedZ(int decoded) {
+		return (decoded >>> 20) & 0xF;
+	}
+
+	public static int family(int decoded) {
+		return FAMILIES[op(decoded)];
+	}
+
+	public static String mnemonic(int decoded) {
+		return MNEMONICS[op(decoded)];
+	}
+
+	// Opcode pattern of the operation, for example 8XY4
+	public static String pattern(int decoded) {
+		return PATTERNS[op(decoded)];
+	}
+
+	// Decodes a 16 bit opcode, invalid encodings map to OP_INVALID/OP_RCA
+	public static int decode(int opcode) {
+		int controlHigh = (opcode >> 12) & 0xF;
+		int controlLow = (opcode >> 8) & 0xF;
+		int paramHigh = (opcode >> 4) & 0xF;
+		int paramLow = opcode & 0xF;
+
+		switch (controlHigh) {
+		case 0x0:
+			if (controlLow != 0x0)
+				return OP_RCA;
+			if (opcode == 0x0000)
+				return OP_NOP;
+			if (opcode == 0x00E0)
+				return OP_CLS;
+			if (opcode == 0x00EE)
+				return OP_RET;
+			return OP_INVALID;
+		case 0x1:
+			return encode(OP_JP, opcode);
+		case 0x2:
+			return encode(OP_CALL, opcode);
+		case 0x3:
+			return encode(OP_SE_VX_NN, opcode);
+		case 0x4:
+			return encode(OP_SNE_VX_NN, opcode);
+		case 0x5:
+			return paramLow == 0x0 ? encode(OP_SE_VX_VY, opcode) : OP_INVALID;
+		case 0x6:
+			return encode(OP_LD_VX_NN, opcode);
+		case 0x7:
+			return encode(OP_ADD_VX_NN, opcode);
+		case 0x8:
+			switch (paramLow) {
+			case 0x0:
+				return encode(OP_LD_VX_VY, opcode);
+			case 0x1:
+				return encode(OP_OR, opcode);
+			case 0x2:
+				return encode(OP_AND, opcode);
+			case 0x3:
+				return encode(OP_XOR, opcode);
+			case 0x4:
+				return encode(OP_ADD_VX_VY, opcode);
+			case 0x5:
+				return encode(OP_SUB, opcode);
+			case 0x6:
+				return encode(OP_SHR, opcode);
+			case 0x7:
+				return encode(OP_SUBN, opcode);
+			case 0xE:
+				return encode(OP_SHL, opcode);
+			default:
+				return OP_INVALID;
+			}
+		case 0x9:
+			return paramLow == 0x0 ? encode(OP_SNE_VX_VY, opcode) : OP_INVALID;
+		case 0xA:
+			return encode(OP_LD_I, opcode);
+		case 0xB:
+			return encode(OP_JP_V0, opcode);
+		case 0xC:
+			return encode(OP_RND, opcode);
+		case 0xD:
+			return encode(OP_DRW, opcode);
+		case 0xE:
+			if (paramHigh == 0x9 && paramLow == 0xE)
+				return encode(OP_SKP, opcode);
+			if (paramHigh == 0xA && paramLow == 0x1)
+				return encode(OP_SKNP, opcode);
+			return OP_INVALID;
+		default:
+			switch (paramHigh) {
+			case 0x0:
+				if (paramLow == 0x7)
+					return encode(OP_LD_VX_DT, opcode);
+				if (paramLow == 0xA)
+					return encode(OP_LD_VX_K, opcode);
+				return OP_INVALID;
+			case 0x1:
+				if (paramLow == 0x5)
+					return encode(OP_LD_DT_VX, opcode);
+				if (paramLow == 0x8)
+					return encode(OP_LD_ST_VX, opcode);
+				if (paramLow == 0xE)
+					return encode(OP_ADD_I_VX, opcode);
+				return OP_INVALID;
+			case 0x2:
+				return paramLow == 0x9 ? encode(OP_LD_F_VX, opcode) : OP_INVALID;
+			case 0x3:
+				return paramLow == 0x3 ? encode(OP_LD_B_VX, opcode) : OP_INVALID;
+			case 0x5:
+				// The interpreter ignores the low nibble of FX5_ and FX6_
+				return encode(OP_LD_I_VX, opcode);
+			case 0x6:
+				return encode(OP_LD_VX_I, opcode);
+			default:
+				return OP_INVALID;
+			}
+		}
+	}
+
+	// Decodes an opcode of the given machine. Extensions of other machines
+	// stay OP_INVALID
+	public static int decode(int opcode, Chip8Variant variant) {
+		int decoded = decode(opcode);
+		if (variant == Chip8Variant.CHIP8 || (op(decoded) != OP_INVALID && op(decoded) != OP_RCA))
+			return decoded;
+
+		boolean xoChip = variant == Chip8Variant.XOCHIP;
+		int x = (opcode >> 8) & 0xF;
+		int low = opcode & 0xFF;
+		switch (opcode >> 12) {
+		case 0x0:
+			if ((opcode & 0xFFF0) == 0x00C0)
+				return encode(OP_SCD, opcode);
+			if ((opcode & 0xFFF0) == 0x00D0 && xoChip)
+				return encode(OP_SCU, opcode);
+			switch (opcode) {
+			case 0x00FB:
+				return OP_SCR;
+			case 0x00FC:
+				return OP_SCL;
+			case 0x00FD:
+				return OP_EXIT;
+			case 0x00FE:
+				return OP_LOW;
+			case 0x00FF:
+				return OP_HIGH;
+			default:
+				return decoded;
+			}
+		case 0x5:
+			if (xoChip && (opcode & 0xF) == 0x2)
+				return encode(OP_SAVE_VX_VY, opcode);
+			if (xoChip && (opcode & 0xF) == 0x3)
+				return encode(OP_LOAD_VX_VY, opcode);
+			return decoded;
+		case 0xF:
+			if (xoChip && opcode == 0xF000)
+				return OP_LD_I_LONG;
+			if (xoChip && opcode == 0xF002)
+				return OP_AUDIO;
+			if (xoChip && low == 0x01)
+				return encode(OP_PLANE, opcode);
+			if (low == 0x30)
+				return encode(OP_LD_HF_VX, opcode);
+			if (xoChip && low == 0x3A)
+				return encode(OP_PITCH, opcode);
+			// SUPER-CHIP only has 8 flags
+			if (low == 0x75 && (xoChip || x < 8))
+				return encode(OP_LD_R_VX, opcode);
+			if (low == 0x85 && (xoChip || x < 8))
+				return encode(OP_LD_VX_R, opcode);
+			return decoded;
+		default:
+			return decoded;
+		}
+	}
+
+	// Length in bytes of the instruction starting with opcode
+	public static int length(int opcode, Chip8Variant variant) {
+		return variant == Chip8Variant.XOCHIP && opcode == 0xF000 ? 4 : 2;
+	}
+
+	// Fuses two consecutive decoded instructions, returns OP_UNDECODED when
+	// the pair has no superinstruction
+	public static int fuse(int first, int second) {
+		if (op(first) == OP_LD_VX_NN && op(second) == OP_LD_VX_NN)
+			return OP_FUSED_LD_LD | x(first) << 8 | x(second) << 12 | nn(first) << 16 | nn(second) << 24;
+		if (op(first) == OP_DRW && op(second) == OP_ADD_VX_NN)
+			return OP_FUSED_DRW_ADD | x(first) << 8 | y(first) << 12 | n(first) << 16 | x(second) << 20
+					| nn(second) << 24;
+		return OP_UNDECODED;
+	}
+
+	private static int encode(int op, int opcode) {
+		return op | (opcode & 0x0F00) | (opcode & 0x00F0) << 8 | (opcode & 0x0FFF) << 16;
+	}
+}
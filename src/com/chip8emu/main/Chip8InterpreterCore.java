@@ -1,26 +1,81 @@
 package com.chip8emu.main;
 
-import java.util.Random;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class Chip8InterpreterCore {
 	private static final String ERROR_INVALID_INSTRUCTION = "Instruction invalid";
 	private static final String ERROR_INVALID_STACK_ACCESS = "Stack access invalid";
 	private static final String ERROR_INVALID_INPUT_ACCESS = "Input access invalid";
+	private static final String ERROR_INVALID_MEMORY_ACCESS = "Memory access invalid";
 	private static final String ERROR_FONT_TO_BIG = "Font can not be loaded as it is too big in size";
 	private static final String ERROR_RCA_1802_UNSUPPORTED = "RCA 1802 Programs not supported ATM";
 	private static final String ERROR_UNKNOWN_EXCEPTION = "Unknown Exception fired";
+	private static final String ERROR_INVALID_STATE = "Save state invalid";
 
 	// Enables Debug output (CHIP-8 Stack trace etc)
 	private static final boolean DEBUG_OUTPUT = false;
 
 	// Chip-8 specs listed @ https://en.wikipedia.org/wiki/CHIP-8
-	private static final int CHIP8_PROGLOAD_ADDR = 0x200;
-
-	// Time to delay between each cycle in milliseconds
-	public int CHIP8_CLOCK_DELAY_TIME = 17;
+	static final int CHIP8_PROGLOAD_ADDR = 0x200;
+	public static final int CHIP8_DISPLAY_WIDTH = 64;
+	public static final int CHIP8_DISPLAY_HEIGHT = 32;
+	// SUPER-CHIP and XO-CHIP hires mode
+	public static final int HIRES_DISPLAY_WIDTH = 128;
+	public static final int HIRES_DISPLAY_HEIGHT = 64;
+
+	// VRAM holds the largest screen whatever the mode: per hires row two
+	// longs for each of the XO-CHIP bitplanes. Pixel (x, y) of plane p is bit
+	// 63 - (x & 63) of vram[y * VRAM_ROW_LONGS + p * 2 + x / 64], lores
+	// screens only use the first long of the first 32 rows
+	public static final int VRAM_PLANES = 2;
+	public static final int VRAM_ROW_LONGS = VRAM_PLANES * 2;
+	public static final int VRAM_SIZE = HIRES_DISPLAY_HEIGHT * VRAM_ROW_LONGS;
+
+	// Delay and sound timers count down at 60 Hz, one tick per frame
+	public static final int TIMER_HZ = 60;
+
+	// Speed multiplier of run() that runs frames back to back
+	public static final int SPEED_UNCAPPED = 0;
+
+	// Instructions executed by runFrame() before the timers tick
+	public static final int DEFAULT_CYCLES_PER_FRAME = 10;
+
+	// Key events that can be queued between two instruction boundaries
+	private static final int KEY_EVENT_CAPACITY = 64;
+
+	// Executions of a block start before the JIT compiles it
+	private static final int JIT_THRESHOLD = 32;
+
+	// Save state, big endian: magic, version, variant, display flags (hires,
+	// exited), selected planes, audio pitch, V0-VF, stack, SP, IP, I, DT, ST,
+	// RNG state, keys, most recent key, FX0A state (waiting, register, key
+	// pressed meanwhile), cycle count, RPL flags, audio pattern, VRAM and
+	// ram. Ram comes last as its size depends on the variant
+	public static final int STATE_MAGIC = 0x43385354; // "C8ST"
+	public static final int STATE_VERSION = 3;
+	// Version 1 states hold a java.util.Random state instead of a SplitMix64
+	// one, which only changes the random numbers drawn after loading.
+	// Versions 1 and 2 are CHIP-8 only: ram, 32 VRAM rows, then registers
+	private static final int STATE_VERSION_LCG_RANDOM = 1;
+	private static final int STATE_VERSION_CHIP8 = 2;
+	private static final int STATE_REGISTERS_SIZE = 16 + 16 * 4 + 3 * 4 + 2 + 8 + 16 + 1 + 3 + 8;
+	static final int LEGACY_STATE_SIZE = 4 + 4 + 4096 + CHIP8_DISPLAY_HEIGHT * 8 + STATE_REGISTERS_SIZE;
+	// Everything before VRAM is small and stored in full by rewind deltas
+	static final int STATE_VRAM_OFFSET = 4 + 4 + 4 + STATE_REGISTERS_SIZE + 16 + 16;
+	static final int STATE_RAM_OFFSET = STATE_VRAM_OFFSET + VRAM_SIZE * 8;
+	// Size of the largest state, the one of an XO-CHIP core
+	public static final int STATE_SIZE = STATE_RAM_OFFSET + 65536;
+
+	// Granularity of ram dirty tracking, one bit per page
+	static final int RAM_PAGE_SIZE = 256;
+
+	// 8x10 digits of SUPER-CHIP, XO-CHIP adds A-F. Right after the small font
+	static final int BIG_FONT_ADDR = 0x50;
+	private static final int BIG_FONT_HEIGHT = 10;
 
 	// @formatter:off
-	private static final byte[] CHIP8_FONT_DATA = new byte[] { (byte) 0xF0, (byte) 0x90, (byte) 0x90, (byte) 0x90,
+	static final byte[] CHIP8_FONT_DATA = new byte[] { (byte) 0xF0, (byte) 0x90, (byte) 0x90, (byte) 0x90,
 			(byte) 0xF0, // 0
 			(byte) 0x40, (byte) 0xC0, (byte) 0x40, (byte) 0x40, (byte) 0xE0, // 1
 			(byte) 0xF0, (byte) 0x10, (byte) 0xF0, (byte) 0x80, (byte) 0xF0, // 2
@@ -37,32 +92,146 @@ public class Chip8InterpreterCore {
 			(byte) 0xE0, (byte) 0x90, (byte) 0x90, (byte) 0x90, (byte) 0xE0, // D
 			(byte) 0xF0, (byte) 0x80, (byte) 0xE0, (byte) 0x80, (byte) 0xF0, // E
 			(byte) 0xF0, (byte) 0x80, (byte) 0xE0, (byte) 0x80, (byte) 0x80 };// F
+
+	static final byte[] BIG_FONT_DATA = new byte[] {
+			(byte) 0x3C, (byte) 0x7E, (byte) 0xE7, (byte) 0xC3, (byte) 0xC3, (byte) 0xC3, (byte) 0xC3, (byte) 0xE7, (byte) 0x7E, (byte) 0x3C, // 0
+			(byte) 0x18, (byte) 0x38, (byte) 0x58, (byte) 0x18, (byte) 0x18, (byte) 0x18, (byte) 0x18, (byte) 0x18, (byte) 0x18, (byte) 0x3C, // 1
+			(byte) 0x3E, (byte) 0x7F, (byte) 0xC3, (byte) 0x06, (byte) 0x0C, (byte) 0x18, (byte) 0x30, (byte) 0x60, (byte) 0xFF, (byte) 0xFF, // 2
+			(byte) 0x3C, (byte) 0x7E, (byte) 0xC3, (byte) 0x03, (byte) 0x0E, (byte) 0x0E, (byte) 0x03, (byte) 0xC3, (byte) 0x7E, (byte) 0x3C, // 3
+			(byte) 0x06, (byte) 0x0E, (byte) 0x1E, (byte) 0x36, (byte) 0x66, (byte) 0xC6, (byte) 0xFF, (byte) 0xFF, (byte) 0x06, (byte) 0x06, // 4
+			(byte) 0xFF, (byte) 0xFF, (byte) 0xC0, (byte) 0xC0, (byte) 0xFC, (byte) 0xFE, (byte) 0x03, (byte) 0xC3, (byte) 0x7E, (byte) 0x3C, // 5
+			(byte) 0x3E, (byte) 0x7C, (byte) 0xC0, (byte) 0xC0, (byte) 0xFC, (byte) 0xFE, (byte) 0xC3, (byte) 0xC3, (byte) 0x7E, (byte) 0x3C, // 6
+			(byte) 0xFF, (byte) 0xFF, (byte) 0x03, (byte) 0x06, (byte) 0x0C, (byte) 0x18, (byte) 0x30, (byte) 0x60, (byte) 0x60, (byte) 0x60, // 7
+			(byte) 0x3C, (byte) 0x7E, (byte) 0xC3, (byte) 0xC3, (byte) 0x7E, (byte) 0x7E, (byte) 0xC3, (byte) 0xC3, (byte) 0x7E, (byte) 0x3C, // 8
+			(byte) 0x3C, (byte) 0x7E, (byte) 0xC3, (byte) 0xC3, (byte) 0x7F, (byte) 0x3F, (byte) 0x03, (byte) 0x03, (byte) 0x3E, (byte) 0x7C, // 9
+			(byte) 0x3C, (byte) 0x7E, (byte) 0xC3, (byte) 0xC3, (byte) 0xFF, (byte) 0xFF, (byte) 0xC3, (byte) 0xC3, (byte) 0xC3, (byte) 0xC3, // A
+			(byte) 0xFC, (byte) 0xFE, (byte) 0xC3, (byte) 0xC3, (byte) 0xFE, (byte) 0xFE, (byte) 0xC3, (byte) 0xC3, (byte) 0xFE, (byte) 0xFC, // B
+			(byte) 0x3C, (byte) 0x7E, (byte) 0xC3, (byte) 0xC0, (byte) 0xC0, (byte) 0xC0, (byte) 0xC0, (byte) 0xC3, (byte) 0x7E, (byte) 0x3C, // C
+			(byte) 0xFC, (byte) 0xFE, (byte) 0xC3, (byte) 0xC3, (byte) 0xC3, (byte) 0xC3, (byte) 0xC3, (byte) 0xC3, (byte) 0xFE, (byte) 0xFC, // D
+			(byte) 0xFF, (byte) 0xFF, (byte) 0xC0, (byte) 0xC0, (byte) 0xFC, (byte) 0xFC, (byte) 0xC0, (byte) 0xC0, (byte) 0xFF, (byte) 0xFF, // E
+			(byte) 0xFF, (byte) 0xFF, (byte) 0xC0, (byte) 0xC0, (byte) 0xFC, (byte) 0xFC, (byte) 0xC0, (byte) 0xC0, (byte) 0xC0, (byte) 0xC0 };// F
 	// @formatter:on
-	private int instructionPointer;
+	// Package-private members are also used by compiled blocks
+	int instructionPointer;
 	private int stackPointer;
-	private int addrRegister;
+	int addrRegister;
 	private int[] stack;
 	private byte[] input;
 	private byte[] vRegisters;
 	private byte[] ram;
-	private byte[] vram;
-	private byte delayTimer;
-	private byte soundTimer;
+	// Packed rows, see VRAM_ROW_LONGS
+	private long[] vram;
+	byte delayTimer;
+	byte soundTimer;
 	private int mostRecentInput;
 
 	private Thread runThread;
-	private Random random;
+	Chip8Random random;
+
+	// Machine being emulated and the state of the SUPER-CHIP and XO-CHIP
+	// extensions. planeMask selects the bitplanes drawing and scrolling
+	// affect, pitch and audioPattern are set by FX3A and F002
+	private Chip8Variant variant;
+	private boolean hires;
+	private boolean exited;
+	private int planeMask;
+	private int pitch;
+	private byte[] rplFlags;
+	private byte[] audioPattern;
+
+	// Decoded instruction per instruction pointer, 0 when not decoded yet
+	private ExecutionMode executionMode;
+	private int[] decodedCache;
+
+	// JIT tier: execution count and compiled block per block start
+	private int[] blockHeat;
+	private CompiledBlock[] compiledBlocks;
+	// Whether the next instruction runJit executes starts a block: it
+	// follows a branch, an instruction that ends a block or a compiled block
+	private boolean atBlockStart = true;
+	// Addresses [cachedFrom, cachedTo) decoded since the caches were last
+	// cleared. Heat and compiled blocks only exist at decoded addresses, so
+	// resets only clear the part of the caches a program used
+	private int cachedFrom;
+	private int cachedTo;
 
 	private boolean isProgramLoaded;
 	private boolean isRunning;
-	private boolean hasDrawn;
+
+	// Set whenever VRAM changes, cleared when a frame is published
+	private boolean vramDirty;
+	private FrameExchange frameExchange;
+	// Receives a copy of every published frame while set
+	private volatile FrameRecorder frameRecorder;
+	// Renders one frame of audio per frame while set
+	private volatile AudioPipeline audio;
+
+	private final Chip8Debugger debugger;
+	// Instructions left of a frame the debugger stopped
+	private int openFrameBudget;
+	// Ram accesses are reported to the debugger while set
+	private boolean watchingMemory;
+
+	// Ram pages and VRAM rows written since the last take, one bit each
+	private long[] dirtyPages;
+	private long dirtyRows;
+
+	// Rewind history, captured at the end of every frame while not rewinding
+	private RewindBuffer rewindBuffer;
+	private volatile boolean rewinding;
+
+	// Null unless metrics are enabled. Per-core counts are added to the
+	// shared metrics after every runCycles call
+	private Chip8Metrics metrics;
+	private long[] opcodeFamilyCounts;
+	private int drawCalls;
+	private int collisions;
+
+	// Headless cores never take down the JVM
+	private boolean headless;
+	// Deterministic cores only apply input at frame boundaries
+	private volatile boolean deterministic;
+	private long cycleCount;
+	// Frames run by runFrame(), not part of the machine state. Volatile so
+	// front ends can derive the achieved speed from it
+	private volatile long frameCount;
+	// Frames run() executes per 1/TIMER_HZ seconds
+	private volatile int speed = 1;
+	// Emulated clock speed, runFrame() carries the remainder of
+	// instructionsPerSecond / TIMER_HZ over to the next frame
+	private volatile int instructionsPerSecond;
+	private int cycleRemainder;
+
+	// Host key events, written by any one thread and applied by the thread
+	// running the interpreter
+	private KeyEventQueue keyEvents;
+
+	// FNV-1a and length of the code passed to loadCode
+	private long programHash;
+	private int programLength;
+
+	// At most one of them is set. A replay replaces host input, it applies
+	// its key events itself and host key events are dropped meanwhile
+	private InputRecorder inputRecorder;
+	private volatile InputReplay inputReplay;
+
+	// FX0A state, the next key press completes the instruction. Until then
+	// runCycles returns without executing anything
+	private boolean waitingForInput;
+	private int waitingRegister;
 
 	public Chip8InterpreterCore() {
-		this.random = new Random();
+		this.random = new Chip8Random();
 		this.vRegisters = new byte[16];
-		this.ram = new byte[4096];
-		this.vram = new byte[32 * 64]; // One byte per pixel
+		this.vram = new long[VRAM_SIZE];
+		this.rplFlags = new byte[16];
+		this.audioPattern = new byte[16];
+		this.planeMask = 1;
+		allocateMemory(Chip8Variant.valueOf(System.getProperty("chip8.variant", "CHIP8")));
+		this.executionMode = ExecutionMode.valueOf(System.getProperty("chip8.executionMode", "DECODED"));
 		this.input = new byte[16];
+		this.keyEvents = new KeyEventQueue(KEY_EVENT_CAPACITY);
+		this.debugger = new Chip8Debugger();
 
 		this.addrRegister = 0;
 		this.stackPointer = 0;
@@ -73,7 +242,21 @@ public class Chip8InterpreterCore {
 		this.soundTimer = 0;
 		this.isProgramLoaded = false;
 		this.isRunning = false;
-		this.hasDrawn = false;
+		this.vramDirty = true;
+		this.frameExchange = new FrameExchange(VRAM_SIZE);
+		this.instructionsPerSecond = DEFAULT_CYCLES_PER_FRAME * TIMER_HZ;
+	}
+
+	// Ram and everything sized by it
+	private void allocateMemory(Chip8Variant variant) {
+		this.variant = variant;
+		this.ram = new byte[variant.ramSize];
+		this.decodedCache = new int[ram.length];
+		this.blockHeat = new int[ram.length];
+		this.compiledBlocks = new CompiledBlock[ram.length];
+		this.cachedFrom = ram.length;
+		this.cachedTo = 0;
+		this.dirtyPages = new long[(ram.length / RAM_PAGE_SIZE + 63) / 64];
 	}
 
 	private void dumpMemory(byte[] memory) {
@@ -100,6 +283,18 @@ public class Chip8InterpreterCore {
 		return memory;
 	}
 
+	private void dumpMemory(long[] memory) {
+		for (int i = 0; i < memory.length; i++)
+			System.out.println(String.format("0x%02X: %016X", i, memory[i]));
+	}
+
+	private long[] clearMemory(long[] memory) {
+		for (int i = 0; i < memory.length; i++)
+			memory[i] = 0;
+
+		return memory;
+	}
+
 	private int[] clearMemory(int[] memory) {
 		for (int i = 0; i < memory.length; i++)
 			memory[i] = 0;
@@ -109,41 +304,58 @@ public class Chip8InterpreterCore {
 
 	private void clear() {
 		vram = clearMemory(vram);
+		vramDirty = true;
 		ram = clearMemory(ram);
+		Arrays.fill(dirtyPages, -1L);
+		dirtyRows = -1L;
+		hires = false;
+		exited = false;
+		planeMask = 1;
+		pitch = 64;
+		rplFlags = clearMemory(rplFlags);
+		audioPattern = clearMemory(audioPattern);
 		vRegisters = clearMemory(vRegisters);
 		stack = clearMemory(stack);
+		clearCaches();
 		stackPointer = 0;
 		instructionPointer = 0;
 		addrRegister = 0;
 		delayTimer = 0;
 		soundTimer = 0;
+		cycleCount = 0;
+		waitingForInput = false;
+		atBlockStart = true;
+		openFrameBudget = 0;
+		debugger.reset();
 		isProgramLoaded = false;
 		isRunning = false;
 	}
 
-	// Loads font into ram from 0x000, 0x1FF
-	private void loadFont(byte[] font) {
-		if (font.length > 0x1FF)
+	// Loads font into ram from address, below 0x1FF
+	private void loadFont(byte[] font, int address) {
+		if (address + font.length > 0x1FF)
 			fail(ERROR_FONT_TO_BIG);
 
 		for (int i = 0; i < font.length; i++) {
-			ram[i] = font[i];
+			ram[address + i] = font[i];
 		}
 	}
 
 	private void printScreen() {
-		for (int row = 0; row < 32; row++) {
-			for (int column = 0; column < 8; column++) {
-				for (int bit = 7; bit >= 0; bit--) {
-					System.out.print(((vram[column + row * 8] >> bit) & 0x1));
-				}
-				System.out.print(" ");
+		for (int row = 0; row < getDisplayHeight(); row++) {
+			for (int column = 0; column < getDisplayWidth(); column++) {
+				System.out.print((vram[row * VRAM_ROW_LONGS + (column >>> 6)] >>> (63 - (column & 63))) & 0x1);
+				if (column % 8 == 7)
+					System.out.print(" ");
 			}
 			System.out.print("\n");
 		}
 	}
 
 	private void fail(String error) {
+		if (headless)
+			throw new IllegalStateException(error);
+
 		System.err.println("\n" + error);
 		System.out.flush();
 		System.err.flush();
@@ -157,7 +369,7 @@ public class Chip8InterpreterCore {
 		System.exit(-1);
 	}
 
-	private int popStack() {
+	int popStack() {
 		if (stackPointer > 0)
 			stackPointer--;
 		else
@@ -166,7 +378,7 @@ public class Chip8InterpreterCore {
 		return stack[stackPointer];
 	}
 
-	private void pushStack(int addr) {
+	void pushStack(int addr) {
 		stack[stackPointer] = addr;
 
 		if (stackPointer < stack.length - 1)
@@ -175,34 +387,111 @@ public class Chip8InterpreterCore {
 			fail(ERROR_INVALID_STACK_ACCESS);
 	}
 
-	private byte getInput(int num) {
+	byte getInput(int num) {
 		if (num > 0xF)
 			fail(ERROR_INVALID_INPUT_ACCESS);
 
 		return input[num];
 	}
 
+	// Key events only queue, they take effect at the next instruction
+	// boundary. Both may be called from one thread other than the one running
+	// the interpreter. While a replay runs they are ignored, the replay is the
+	// only input then
 	public void inputPressed(int num) {
 		if (DEBUG_OUTPUT)
 			System.out.println("KEY PRESSED: " + String.format("0x%02X", num));
-		if (num > 0xF)
+		if (num < 0 || num > 0xF)
 			fail(ERROR_INVALID_INPUT_ACCESS);
 
-		synchronized (input) {
-			input[num] = 1;
-			mostRecentInput = num;
-			input.notifyAll();
-		}
+		if (inputReplay == null)
+			keyEvents.offer(num, true, System.nanoTime());
 	}
 
 	public void inputReleased(int num) {
 		if (DEBUG_OUTPUT)
 			System.out.println("KEY RELEASED: " + String.format("0x%02X", num));
 
-		if (num > 0xF)
+		if (num < 0 || num > 0xF)
 			fail(ERROR_INVALID_INPUT_ACCESS);
 
-		input[num] = 0;
+		if (inputReplay == null)
+			keyEvents.offer(num, false, System.nanoTime());
+	}
+
+	// Applies the queued host key events
+	private void drainInput() {
+		int event;
+		while ((event = keyEvents.poll()) >= 0) {
+			// Queued just before the replay started
+			if (inputReplay != null)
+				continue;
+
+			applyKey(event);
+			if (metrics != null)
+				metrics.recordInputLatency(System.nanoTime() - keyEvents.getLastTimestamp());
+		}
+	}
+
+	// Applies a key event of the host or of a replay, as encoded by
+	// KeyEventQueue. A press completes a pending FX0A
+	void applyKey(int event) {
+		int key = event & KeyEventQueue.KEY;
+		if ((event & KeyEventQueue.PRESSED) != 0) {
+			input[key] = 1;
+			mostRecentInput = key;
+			if (waitingForInput) {
+				vRegisters[waitingRegister] = (byte) key;
+				waitingForInput = false;
+			}
+		} else {
+			input[key] = 0;
+		}
+
+		if (inputRecorder != null)
+			inputRecorder.keyEvent(frameCount, cycleCount, event);
+	}
+
+	boolean hasPendingInput() {
+		return !keyEvents.isEmpty();
+	}
+
+	// Returns a core that ran a session to the settings of a new one, so
+	// InstanceHost can reuse its memory for the next session. Call it while
+	// the core is not running
+	void recycle() {
+		keyEvents.clear();
+		input = clearMemory(input);
+		mostRecentInput = 16;
+		inputRecorder = null;
+		inputReplay = null;
+		rewindBuffer = null;
+		rewinding = false;
+		frameRecorder = null;
+		audio = null;
+		debugger.clearPoints();
+		debugger.setListener(null);
+		setMetrics(null);
+		deterministic = false;
+		speed = 1;
+		instructionsPerSecond = DEFAULT_CYCLES_PER_FRAME * TIMER_HZ;
+		cycleRemainder = 0;
+		frameCount = 0;
+		clear();
+	}
+
+	// Approximate heap bytes of the arrays the core owns: ram and the
+	// execution caches sized by it, VRAM, the published frames, the key ring
+	// and the rewind buffer. References count 4 bytes, as with compressed
+	// oops, and compiled blocks are not included
+	public long getMemoryFootprint() {
+		long bytes = ram.length + 4L * decodedCache.length + 4L * blockHeat.length + 4L * compiledBlocks.length;
+		// VRAM and the three frames of the exchange
+		bytes += 4L * 8 * VRAM_SIZE;
+		bytes += 9L * KEY_EVENT_CAPACITY;
+		if (rewindBuffer != null)
+			bytes += rewindBuffer.getCapacityBytes();
+		return bytes;
 	}
 
 	public boolean isProgramLoaded() {
@@ -213,40 +502,471 @@ public class Chip8InterpreterCore {
 		return isRunning;
 	}
 
-	public boolean hasDrawn() {
-		if (hasDrawn) {
-			hasDrawn = false;
-			return true;
+	public boolean isWaitingForInput() {
+		return waitingForInput;
+	}
+
+	// Set by the SUPER-CHIP 00FD, nothing runs until the next program
+	public boolean isExited() {
+		return exited;
+	}
+
+	public Chip8Variant getVariant() {
+		return variant;
+	}
+
+	// Switches the emulated machine. Ram is reallocated for the variant, so
+	// the program has to be loaded again. Call it while halted
+	public void setVariant(Chip8Variant variant) {
+		if (variant == this.variant)
+			return;
+
+		allocateMemory(variant);
+		clear();
+		if (rewindBuffer != null)
+			rewindBuffer.clear();
+	}
+
+	// Size of the current screen, 128x64 in hires mode and 64x32 otherwise
+	public int getDisplayWidth() {
+		return hires ? HIRES_DISPLAY_WIDTH : CHIP8_DISPLAY_WIDTH;
+	}
+
+	public int getDisplayHeight() {
+		return hires ? HIRES_DISPLAY_HEIGHT : CHIP8_DISPLAY_HEIGHT;
+	}
+
+	public Chip8Debugger getDebugger() {
+		return debugger;
+	}
+
+	// Machine state for debuggers, consistent while the debugger has the
+	// core stopped or the core is halted
+	public int getRegister(int register) {
+		return vRegisters[register] & 0xFF;
+	}
+
+	public int getAddressRegister() {
+		return addrRegister;
+	}
+
+	public int getInstructionPointer() {
+		return instructionPointer;
+	}
+
+	public int getStackPointer() {
+		return stackPointer;
+	}
+
+	public int getDelayTimer() {
+		return delayTimer & 0xFF;
+	}
+
+	public int getSoundTimer() {
+		return soundTimer & 0xFF;
+	}
+
+	public int readMemory(int address) {
+		return ram[address] & 0xFF;
+	}
+
+	public long getCycleCount() {
+		return cycleCount;
+	}
+
+	public long getFrameCount() {
+		return frameCount;
+	}
+
+	public int getSpeed() {
+		return speed;
+	}
+
+	// Fast forward for run(): every 1/TIMER_HZ seconds speed whole frames
+	// run, timers included, so the game runs speed times faster in every
+	// respect. SPEED_UNCAPPED runs frames as fast as possible. Renderers
+	// only ever draw the latest published frame, which skips the rest
+	public void setSpeed(int speed) {
+		if (speed < 0)
+			throw new IllegalArgumentException("Invalid speed " + speed);
+
+		this.speed = speed;
+	}
+
+	public long getProgramHash() {
+		return programHash;
+	}
+
+	// Headless mode is meant for embedders and batch runs: failures throw an
+	// IllegalStateException instead of exiting the JVM
+	public void setHeadless(boolean headless) {
+		this.headless = headless;
+	}
+
+	public boolean isDeterministic() {
+		return deterministic;
+	}
+
+	// In deterministic mode key events are applied once per frame, before
+	// runFrame() executes any instruction, instead of at the next instruction
+	// boundary. Together with a seeded RNG, every frame is then a function of
+	// the previous state and the events queued before it, so two runs with
+	// the same seed and the same input per frame are bit identical.
+	// runCycles() and step() do not apply input in this mode
+	public void setDeterministic(boolean deterministic) {
+		this.deterministic = deterministic;
+	}
+
+	// Reseeds the CXNN generator, part of the machine state from then on
+	public void setRandomSeed(long seed) {
+		random.setSeed(seed);
+	}
+
+	public ExecutionMode getExecutionMode() {
+		return executionMode;
+	}
+
+	public void setExecutionMode(ExecutionMode executionMode) {
+		this.executionMode = executionMode;
+	}
+
+	public int getCyclesPerFrame() {
+		return instructionsPerSecond / TIMER_HZ;
+	}
+
+	public void setCyclesPerFrame(int cyclesPerFrame) {
+		setInstructionsPerSecond(cyclesPerFrame * TIMER_HZ);
+	}
+
+	public int getInstructionsPerSecond() {
+		return instructionsPerSecond;
+	}
+
+	// May be changed from any thread, takes effect with the next frame
+	public void setInstructionsPerSecond(int instructionsPerSecond) {
+		if (instructionsPerSecond < 0)
+			throw new IllegalArgumentException("Invalid instructions per second " + instructionsPerSecond);
+
+		this.instructionsPerSecond = instructionsPerSecond;
+	}
+
+	// Live packed rows laid out as described at VRAM_ROW_LONGS. Only safe to
+	// read from the thread driving the interpreter, other threads use
+	// acquireFrame()
+	public long[] getVRAM() {
+		return vram;
+	}
+
+	// Latest published frame, never blocks the emulation thread. Returns null
+	// until the first frame was published
+	public FrameExchange.Frame acquireFrame() {
+		return frameExchange.acquire();
+	}
+
+	private void publishFrame() {
+		if (!vramDirty)
+			return;
+
+		frameExchange.publish(vram, getDisplayWidth(), getDisplayHeight());
+		FrameRecorder frameRecorder = this.frameRecorder;
+		if (frameRecorder != null)
+			frameRecorder.offer(vram, getDisplayWidth(), getDisplayHeight(), frameCount);
+		vramDirty = false;
+		if (metrics != null)
+			metrics.framePublished();
+	}
+
+	// Bytes saveState writes, at most STATE_SIZE
+	public int getStateSize() {
+		return STATE_RAM_OFFSET + ram.length;
+	}
+
+	// Writes the complete machine state at the buffer position,
+	// getStateSize() bytes. Call it from the thread driving the interpreter
+	// or while halted
+	public void saveState(ByteBuffer buffer) {
+		saveMachine(buffer);
+		buffer.put(ram);
+	}
+
+	// The first STATE_RAM_OFFSET bytes of saveState, everything but ram
+	void saveMachine(ByteBuffer buffer) {
+		saveHeader(buffer);
+		for (int i = 0; i < vram.length; i++)
+			buffer.putLong(vram[i]);
+	}
+
+	// The first STATE_VRAM_OFFSET bytes of saveState, registers and
+	// everything else before VRAM
+	void saveHeader(ByteBuffer buffer) {
+		buffer.putInt(STATE_MAGIC);
+		buffer.putInt(STATE_VERSION);
+		buffer.put((byte) variant.ordinal());
+		buffer.put((byte) ((hires ? 1 : 0) | (exited ? 2 : 0)));
+		buffer.put((byte) planeMask);
+		buffer.put((byte) pitch);
+		saveRegisters(buffer);
+		buffer.put(rplFlags);
+		buffer.put(audioPattern);
+	}
+
+	private void saveRegisters(ByteBuffer buffer) {
+		buffer.put(vRegisters);
+		for (int i = 0; i < stack.length; i++)
+			buffer.putInt(stack[i]);
+		buffer.putInt(stackPointer);
+		buffer.putInt(instructionPointer);
+		buffer.putInt(addrRegister);
+		buffer.put(delayTimer);
+		buffer.put(soundTimer);
+		buffer.putLong(random.getState());
+		buffer.put(input);
+		buffer.put((byte) mostRecentInput);
+		buffer.put((byte) (waitingForInput ? 1 : 0));
+		buffer.put((byte) waitingRegister);
+		// Key presses complete FX0A as soon as they are applied, none is ever
+		// pending
+		buffer.put((byte) 0);
+		buffer.putLong(cycleCount);
+	}
+
+	// Restores a state written by saveState, same threading rules. The core
+	// switches to the variant of the state. Decoded and compiled code is
+	// dropped, it is rebuilt as the program runs
+	public void loadState(ByteBuffer buffer) {
+		if (buffer.remaining() < LEGACY_STATE_SIZE || buffer.getInt() != STATE_MAGIC)
+			throw new IllegalArgumentException(ERROR_INVALID_STATE);
+		int version = buffer.getInt();
+		if (version == STATE_VERSION_CHIP8 || version == STATE_VERSION_LCG_RANDOM) {
+			loadChip8State(buffer);
+		} else if (version == STATE_VERSION) {
+			int ordinal = buffer.get();
+			if (ordinal < 0 || ordinal >= Chip8Variant.values().length)
+				throw new IllegalArgumentException(ERROR_INVALID_STATE);
+			Chip8Variant variant = Chip8Variant.values()[ordinal];
+			if (buffer.remaining() < STATE_RAM_OFFSET - 4 - 4 - 1 + variant.ramSize)
+				throw new IllegalArgumentException(ERROR_INVALID_STATE);
+
+			setVariant(variant);
+			int flags = buffer.get();
+			hires = (flags & 1) != 0;
+			exited = (flags & 2) != 0;
+			planeMask = buffer.get() & ((1 << VRAM_PLANES) - 1);
+			pitch = buffer.get() & 0xFF;
+			loadRegisters(buffer);
+			buffer.get(rplFlags);
+			buffer.get(audioPattern);
+			for (int i = 0; i < vram.length; i++)
+				vram[i] = buffer.getLong();
+			buffer.get(ram);
+		} else {
+			throw new IllegalArgumentException(ERROR_INVALID_STATE);
+		}
+
+		clearCaches();
+		vramDirty = true;
+		Arrays.fill(dirtyPages, -1L);
+		dirtyRows = -1L;
+		isProgramLoaded = true;
+	}
+
+	// Versions 1 and 2, written before the extensions existed
+	private void loadChip8State(ByteBuffer buffer) {
+		setVariant(Chip8Variant.CHIP8);
+		hires = false;
+		exited = false;
+		planeMask = 1;
+		pitch = 64;
+		rplFlags = clearMemory(rplFlags);
+		audioPattern = clearMemory(audioPattern);
+		buffer.get(ram);
+		clearMemory(vram);
+		for (int row = 0; row < CHIP8_DISPLAY_HEIGHT; row++)
+			vram[row * VRAM_ROW_LONGS] = buffer.getLong();
+		loadRegisters(buffer);
+	}
+
+	private void loadRegisters(ByteBuffer buffer) {
+		buffer.get(vRegisters);
+		for (int i = 0; i < stack.length; i++)
+			stack[i] = buffer.getInt();
+		stackPointer = buffer.getInt();
+		instructionPointer = buffer.getInt();
+		addrRegister = buffer.getInt();
+		delayTimer = buffer.get();
+		soundTimer = buffer.get();
+		random.setState(buffer.getLong());
+		buffer.get(input);
+		mostRecentInput = buffer.get();
+		waitingForInput = buffer.get() != 0;
+		waitingRegister = buffer.get() & 0xF;
+		if (buffer.get() != 0 && waitingForInput) {
+			// Written by versions that completed FX0A lazily
+			vRegisters[waitingRegister] = (byte) mostRecentInput;
+			waitingForInput = false;
+		}
+		cycleCount = buffer.getLong();
+
+		if (stackPointer < 0 || stackPointer >= stack.length)
+			throw new IllegalArgumentException(ERROR_INVALID_STATE);
+	}
+
+	// Dirty masks since the previous call, used by rewind captures. Bit p of
+	// pages[p / 64] stands for ram page p, pages beyond ram stay clear
+	void takeDirtyPages(long[] pages) {
+		int pageCount = ram.length / RAM_PAGE_SIZE;
+		for (int i = 0; i < pages.length; i++) {
+			long mask = i < dirtyPages.length ? dirtyPages[i] : 0;
+			if (pageCount < (i + 1) * 64)
+				mask &= pageCount <= i * 64 ? 0 : -1L >>> (64 - (pageCount - i * 64));
+			pages[i] = mask;
 		}
+		Arrays.fill(dirtyPages, 0);
+	}
+
+	long takeDirtyRows() {
+		long rows = dirtyRows;
+		dirtyRows = 0;
+		return rows;
+	}
 
-		return false;
+	// Copies ram page p as saveState would write it
+	void copyRamPage(int page, byte[] target, int offset) {
+		System.arraycopy(ram, page * RAM_PAGE_SIZE, target, offset, RAM_PAGE_SIZE);
 	}
 
-	public byte[] getVRAM() {
-		synchronized (vram) {
-			return vram;
+	// Writes VRAM row y big endian as saveState would, returns the offset
+	// after it
+	int copyVramRow(int y, byte[] target, int offset) {
+		for (int i = y * VRAM_ROW_LONGS; i < (y + 1) * VRAM_ROW_LONGS; i++) {
+			long value = vram[i];
+			for (int shift = 56; shift >= 0; shift -= 8)
+				target[offset++] = (byte) (value >>> shift);
 		}
+		return offset;
+	}
+
+	public Chip8Metrics getMetrics() {
+		return metrics;
+	}
+
+	// Null disables collection
+	public void setMetrics(Chip8Metrics metrics) {
+		this.metrics = metrics;
+		this.opcodeFamilyCounts = metrics != null ? new long[16] : null;
+		this.drawCalls = 0;
+		this.collisions = 0;
+	}
+
+	private void flushMetrics(int executed) {
+		metrics.addInstructions(executed);
+		for (int family = 0; family < opcodeFamilyCounts.length; family++)
+			if (opcodeFamilyCounts[family] != 0) {
+				metrics.addOpcodeFamily(family, opcodeFamilyCounts[family]);
+				opcodeFamilyCounts[family] = 0;
+			}
+		if (drawCalls != 0) {
+			metrics.addDrawCalls(drawCalls, collisions);
+			drawCalls = 0;
+			collisions = 0;
+		}
+	}
+
+	public RewindBuffer getRewindBuffer() {
+		return rewindBuffer;
+	}
+
+	// Set before the core runs, null disables rewind
+	public void setRewindBuffer(RewindBuffer rewindBuffer) {
+		this.rewindBuffer = rewindBuffer;
+	}
+
+	public FrameRecorder getFrameRecorder() {
+		return frameRecorder;
+	}
+
+	// May be set from any thread, null stops capturing. The recorder still
+	// has to be closed
+	public void setFrameRecorder(FrameRecorder frameRecorder) {
+		this.frameRecorder = frameRecorder;
+	}
+
+	public AudioPipeline getAudio() {
+		return audio;
+	}
+
+	// May be set from any thread, null mutes the core
+	public void setAudio(AudioPipeline audio) {
+		this.audio = audio;
+	}
+
+	byte[] getAudioPattern() {
+		return audioPattern;
+	}
+
+	int getPitch() {
+		return pitch;
+	}
+
+	public boolean isRewinding() {
+		return rewinding;
+	}
+
+	// While rewinding, every frame restores the previous captured frame
+	// instead of executing instructions
+	public void setRewinding(boolean rewinding) {
+		this.rewinding = rewinding;
 	}
 
 	public boolean loadCode(byte[] code) {
+		return loadCode(ByteBuffer.wrap(code));
+	}
+
+	// Copies the remaining bytes of code, for example a memory mapped ROM,
+	// straight into ram. The buffer position is left unchanged
+	public boolean loadCode(ByteBuffer code) {
 		// Clear memory
 		clear();
 
 		// TL;DR lol
-		if (code.length > ram.length - CHIP8_PROGLOAD_ADDR)
+		int length = code.remaining();
+		if (length > ram.length - CHIP8_PROGLOAD_ADDR - 1)
 			return false;
 
-		for (int i = 0; i < code.length; i++)
-			ram[1 + i + CHIP8_PROGLOAD_ADDR] = code[i];
+		code.duplicate().get(ram, 1 + CHIP8_PROGLOAD_ADDR, length);
+		programHash = Fnv1a.hash(ram, 1 + CHIP8_PROGLOAD_ADDR, length);
+		programLength = length;
 
 		instructionPointer = CHIP8_PROGLOAD_ADDR;
 
 		// Load font
-		loadFont(CHIP8_FONT_DATA);
+		loadFont(CHIP8_FONT_DATA, 0);
+		if (variant != Chip8Variant.CHIP8)
+			loadFont(BIG_FONT_DATA, BIG_FONT_ADDR);
+
+		if (rewindBuffer != null)
+			rewindBuffer.clear();
 
 		return isProgramLoaded = true;
 	}
 
+	// Analyzes the loaded program and fills the execution caches before it
+	// starts: every reachable instruction is decoded and in JIT mode loop
+	// heads are compiled right away. Call between loadCode and running
+	public RomAnalyzer.Analysis prewarm() {
+		RomAnalyzer.Analysis analysis = RomAnalyzer.analyze(Arrays.copyOf(ram, ram.length), programLength, variant);
+		for (RomAnalyzer.Block block : analysis.blocks) {
+			for (int ip = block.start; ip < block.end; ip += Chip8Decoder.length(fetch(ip), variant))
+				if (decodedCache[ip] == Chip8Decoder.OP_UNDECODED)
+					decodedCache[ip] = decodeAt(ip);
+
+			if (executionMode == ExecutionMode.JIT && block.is(RomAnalyzer.BLOCK_LOOP_HEAD)
+					&& compiledBlocks[block.start] == null)
+				compiledBlocks[block.start] = BlockCompiler.compile(ram, block.start, hasLongSkips());
+		}
+		return analysis;
+	}
+
 	public void dump() {
 		// Print system state
 		System.out.println("-------------------------------------------------\n");
@@ -280,498 +1000,1205 @@ public class Chip8InterpreterCore {
 			delayTimer--;
 		if (soundTimer > 0)
 			soundTimer--;
+		if (metrics != null)
+			metrics.timerTick();
 	}
 
-	public void run() {
-		this.runThread = new Thread(new Runnable() {
+	// Executes a single instruction inline. Returns false without doing
+	// anything while FX0A is waiting for a key press
+	public boolean step() {
+		return runCycles(1) == 1;
+	}
 
-			@Override
-			public void run() {
-				boolean exit = false;
+	// Executes up to budget instructions, returns how many actually ran
+	public int runCycles(int budget) {
+		boolean deterministic = this.deterministic;
+		// Checked once per call, the dispatch loops never look at it
+		boolean debugging = debugger.isArmed();
+		int executed = 0;
+		while (executed < budget) {
+			int remaining = budget - executed;
+			if (!deterministic) {
+				InputReplay inputReplay = this.inputReplay;
+				if (inputReplay != null) {
+					inputReplay.feed(this, frameCount, cycleCount);
+					remaining = inputReplay.cyclesUntilNext(frameCount, cycleCount, remaining);
+				}
+				drainInput();
+			}
+			if (waitingForInput || exited)
+				break;
+
+			if (debugging) {
+				executed += runDebugged(remaining);
+				if (debugger.isStopped())
+					break;
+			} else if (executionMode == ExecutionMode.JIT) {
+				executed += runJit(remaining);
+			} else if (executionMode == ExecutionMode.DECODED) {
+				executed += runDecoded(remaining);
+			} else {
+				cycle();
+				executed++;
+			}
+		}
 
-				while (!exit) {
-					if (DEBUG_OUTPUT)
-						debugDump();
+		if (metrics != null)
+			flushMetrics(executed);
+		return executed;
+	}
+
+	// Executes one frame worth of instructions, ticks the timers and
+	// publishes the frame if VRAM changed. While rewinding it steps back one
+	// frame instead. While the debugger has the core stopped it does nothing,
+	// a frame it stopped in runs to its end once the debugger continues
+	public int runFrame() {
+		if (rewinding) {
+			rewindFrame();
+			return 0;
+		}
+		if (debugger.isArmed() && !debugger.beginFrame(this))
+			return 0;
+
+		int budget;
+		if (openFrameBudget > 0) {
+			budget = openFrameBudget;
+			openFrameBudget = 0;
+		} else {
+			int instructionsPerSecond = this.instructionsPerSecond;
+			if (inputReplay != null)
+				instructionsPerSecond = inputReplay.speed(frameCount);
+			else if (inputRecorder != null)
+				inputRecorder.speed(frameCount, instructionsPerSecond);
+			cycleRemainder += instructionsPerSecond;
+			budget = cycleRemainder / TIMER_HZ;
+			cycleRemainder -= budget * TIMER_HZ;
+			if (deterministic) {
+				if (inputReplay != null)
+					inputReplay.feed(this, frameCount, cycleCount);
+				drainInput();
+			}
+		}
+
+		int executed = runCycles(budget);
+		if (executed < budget && debugger.isStopped()) {
+			// Shows the screen as it is at the stop
+			openFrameBudget = budget - executed;
+			publishFrame();
+			return executed;
+		}
+		AudioPipeline audio = this.audio;
+		if (audio != null)
+			audio.render(this);
+		tick();
+		if (inputRecorder != null && vramDirty)
+			inputRecorder.frame(frameCount, Fnv1a.fold(Fnv1a.hash(vram)));
+		if (inputReplay != null)
+			inputReplay.endFrame(frameCount, vramDirty, vram);
+		endFrame();
+
+		frameCount++;
+		if (inputReplay != null)
+			inputReplay.checkEnd(frameCount, cycleCount, vram);
+		return executed;
+	}
+
+	// Records the session from here on: the RNG is reseeded and the current
+	// state, then every key event and a hash of every drawn frame are
+	// written. Call it while the core is halted, usually right after
+	// loadCode. The recording assumes an uninterrupted session without
+	// rewinding or loading states
+	public void startRecording(InputRecorder recorder) {
+		// Deterministic cores keep their configured sequence
+		long seed = deterministic ? random.getState() : System.nanoTime();
+		random.setSeed(seed);
+		// The replay starts by loading a state, which marks VRAM changed
+		vramDirty = true;
+		recorder.begin(this, seed, frameCount, cycleCount, instructionsPerSecond, cycleRemainder);
+		this.inputRecorder = recorder;
+		this.inputReplay = null;
+	}
+
+	// Ends the recording, the recorder still has to be closed
+	public void stopRecording() {
+		if (inputRecorder != null) {
+			inputRecorder.end(frameCount, cycleCount, Fnv1a.fold(Fnv1a.hash(vram)));
+			inputRecorder = null;
+		}
+	}
+
+	// Restores the recorded start state, subsequent frames take their input
+	// from the replay until it is finished
+	public void startReplay(InputReplay replay) {
+		this.inputRecorder = null;
+		cycleRemainder = replay.begin(this, frameCount);
+		this.inputReplay = replay;
+	}
+
+	public void stopReplay() {
+		inputReplay = null;
+	}
+
+	private void endFrame() {
+		if (rewindBuffer != null)
+			rewindBuffer.capture(this);
+		publishFrame();
+	}
+
+	private void rewindFrame() {
+		if (rewindBuffer != null)
+			rewindBuffer.rewind(this);
+		publishFrame();
+	}
+
+	void beginKeyWait(int register) {
+		waitingForInput = true;
+		waitingRegister = register;
+	}
+
+	// DXYN, shared by all execution modes. Each sprite row is shifted into
+	// place, with a rotate where drawing wraps around the right edge, and
+	// XORed into the packed screen row
+	void drawSprite(int x, int y, int height) {
+		if (hires || planeMask != 1 || (height == 0 && variant != Chip8Variant.CHIP8)) {
+			drawExtendedSprite(x, y, height);
+			return;
+		}
+
+		checkMemory(addrRegister + 1, height, false);
+
+		vRegisters[0xF] = 0;
+		drawCalls++;
 
-					try {
-						Thread.sleep(CHIP8_CLOCK_DELAY_TIME);
-					} catch (InterruptedException e1) {
-						exit = true;
+		boolean clip = variant.clipSprites;
+		int column = x & (CHIP8_DISPLAY_WIDTH - 1);
+		int top = y & (CHIP8_DISPLAY_HEIGHT - 1);
+		for (int i = 0; i < height; i++) {
+			int row = top + i;
+			if (row >= CHIP8_DISPLAY_HEIGHT) {
+				if (clip)
+					break;
+				row -= CHIP8_DISPLAY_HEIGHT;
+			}
+
+			long bits = (ram[addrRegister + 1 + i] & 0xFFL) << 56;
+			xorPixels(row * VRAM_ROW_LONGS, row, clip ? bits >>> column : Long.rotateRight(bits, column));
+		}
+		collisions += vRegisters[0xF];
+	}
+
+	// DXYN in hires mode, with several planes selected or for the 16x16
+	// sprites SUPER-CHIP and XO-CHIP draw for N = 0. In hires mode a row
+	// spans two longs. XO-CHIP draws the same number of rows from
+	// consecutive data for every selected plane
+	private void drawExtendedSprite(int x, int y, int height) {
+		boolean wide = height == 0 && variant != Chip8Variant.CHIP8;
+		if (wide)
+			height = 16;
+		int rowBytes = wide ? 2 : 1;
+		int planeBytes = height * rowBytes;
+		checkMemory(addrRegister + 1, planeBytes * Integer.bitCount(planeMask), false);
+
+		vRegisters[0xF] = 0;
+		drawCalls++;
+
+		boolean clip = variant.clipSprites;
+		int width = getDisplayWidth();
+		int screenHeight = getDisplayHeight();
+		int column = x & (width - 1);
+		int top = y & (screenHeight - 1);
+		int source = addrRegister + 1;
+		for (int plane = 0; plane < VRAM_PLANES; plane++) {
+			if ((planeMask & (1 << plane)) == 0)
+				continue;
+
+			for (int i = 0; i < height; i++, source += rowBytes) {
+				int row = top + i;
+				if (row >= screenHeight) {
+					if (clip)
 						continue;
-					}
+					row -= screenHeight;
+				}
 
-					// Stage 1: LOAD
-					if (instructionPointer >= ram.length - 2)
-						fail("EOF");
-					byte[] opcode = new byte[] { ram[++instructionPointer], ram[++instructionPointer] };
-					byte controlHigh = (byte) ((opcode[0] & 0xF0) >> 4);
-					byte controlLow = (byte) (opcode[0] & 0x0F);
-					byte paramHigh = (byte) ((opcode[1] & 0xF0) >> 4);
-					byte paramLow = (byte) (opcode[1] & 0x0F);
-
-					if (DEBUG_OUTPUT) {
-						System.out.print("\n\n\n");
-						dumpMemory(new byte[] { controlHigh, controlLow, paramHigh, paramLow });
-						System.out.println("");
-					}
+				long bits = (ram[source] & 0xFFL) << 56;
+				if (wide)
+					bits |= (ram[source + 1] & 0xFFL) << 48;
+				int index = row * VRAM_ROW_LONGS + plane * 2;
+				if (!hires) {
+					xorPixels(index, row, clip ? bits >>> column : Long.rotateRight(bits, column));
+				} else if (column < 64) {
+					xorPixels(index, row, bits >>> column);
+					xorPixels(index + 1, row, column == 0 ? 0 : bits << (64 - column));
+				} else {
+					xorPixels(index + 1, row, bits >>> (column - 64));
+					xorPixels(index, row, clip || column == 64 ? 0 : bits << (128 - column));
+				}
+			}
+		}
+		collisions += vRegisters[0xF];
+	}
 
-					// Stage 2 + 3: DECODE & EXECUTE
-					try {
-						switch (controlHigh) {
-						case 0x0:
-							switch (controlLow) {
-							case 0x0:
-								switch (paramHigh) {
-								case 0x0:
-									// NOOP operation
-									if (DEBUG_OUTPUT)
-										System.out.println("NOOP");
-									if (paramLow != 0x0)
-										fail(ERROR_INVALID_INSTRUCTION);
-									break;
-								case 0xE:
-									switch (paramLow) {
-									case 0x0: // 00E0 clear screen
-										if (DEBUG_OUTPUT)
-											System.out.println("Clear screen");
-										clearMemory(vram);
-										break;
-									case 0xE: // 00EE return from subroutine
-										if (DEBUG_OUTPUT)
-											System.out.print("return from subroutine; pop stack (IP: "
-													+ instructionPointer + " -> ");
-										instructionPointer = popStack();
-										if (DEBUG_OUTPUT)
-											System.out.print(instructionPointer + ")");
-
-										break;
-									default:
-										fail(ERROR_INVALID_INSTRUCTION);
-										break;
-									}
-									break;
-								default:
-									fail(ERROR_INVALID_INSTRUCTION);
-									break;
-								}
-								break;
-							default:
-								fail(ERROR_RCA_1802_UNSUPPORTED);
-								break;
-
-							}
+	private void xorPixels(int index, int row, long sprite) {
+		long pixels = vram[index];
+		if ((pixels & sprite) != 0)
+			vRegisters[0xF] = 1;
+		if (sprite != 0) {
+			vramDirty = true;
+			dirtyRows |= 1L << row;
+		}
+		vram[index] = pixels ^ sprite;
+	}
 
-							break;
-						case 0x1: // 1NNN jump to addr NNN
-							if (DEBUG_OUTPUT)
-								System.out.println("Jump to "
-										+ (((controlLow << 8) & 0xFF0) + ((paramHigh << 4) & 0xF0) + paramLow));
-							instructionPointer = ((controlLow << 8) & 0xFF0) + ((paramHigh << 4) & 0xF0) + paramLow;
-							break;
-						case 0x2: // 2NNN call subroutine @ NNN
-							if (DEBUG_OUTPUT)
-								System.out.println("Call subroutine "
-										+ (((controlLow << 8) & 0xFF0) + ((paramHigh << 4) & 0xF0) + paramLow)
-										+ " (IP: " + instructionPointer + ")");
-							pushStack(instructionPointer);
-							instructionPointer = ((controlLow << 8) & 0xFF0) + ((paramHigh << 4) & 0xF0) + paramLow;
-							break;
-						case 0x3: // 3XNN Skips the next instruction if VX
-									// equals NN
-							if (DEBUG_OUTPUT)
-								System.out.println("Skips instruction if VX equals NN + (VX: " + vRegisters[controlLow]
-										+ ", NN: " + (((paramHigh << 4) & 0xF0) + paramLow) + ")");
-							if (vRegisters[controlLow] == ((paramHigh << 4) & 0xF0) + paramLow)
-								instructionPointer += 2;
-							break;
-						case 0x4: // 4XNN Skips the next instruction if VX
-									// doesn't
-									// equal NN
-							if (DEBUG_OUTPUT)
-								System.out.println(
-										"Skips instruction if VX doesn't equals NN + (VX: " + vRegisters[controlLow]
-												+ ", NN: " + (((paramHigh << 4) & 0xF0) + paramLow) + ")");
-							if (vRegisters[controlLow] != ((paramHigh << 4) & 0xF0) + paramLow)
-								instructionPointer += 2;
-							break;
-						case 0x5:
-							switch (paramLow) {
-							case 0x0: // 5XY0 Skips the next instruction if VX
-										// equals VY
-								if (DEBUG_OUTPUT)
-									System.out.println("Skips next instruction if VX equals VY + (VX: "
-											+ vRegisters[controlLow] + ", VY: " + vRegisters[paramHigh] + ")");
-								if (vRegisters[controlLow] == vRegisters[paramHigh])
-									instructionPointer += 2;
-								break;
-							default:
-								fail(ERROR_INVALID_INSTRUCTION);
-								break;
-							}
-							break;
-						case 0x6: // 6XNN Sets VX to NN
-							if (DEBUG_OUTPUT)
-								System.out.println("Sets VX to NN + (VX: " + vRegisters[controlLow] + ", NN: "
-										+ ((((paramHigh << 4) & 0xF0) + paramLow)) + ")");
-							vRegisters[controlLow] = (byte) (((paramHigh << 4) & 0xF0) + paramLow);
-							break;
-						case 0x7: // 7XNN Adds NN to VX
-							if (DEBUG_OUTPUT)
-								System.out.println("Adds NN(" + ((((paramHigh << 4) & 0xF0) + paramLow)) + ") to VX("
-										+ vRegisters[controlLow] + ")");
-							vRegisters[controlLow] += (byte) (((paramHigh << 4) & 0xF0) + paramLow);
-							break;
-						case 0x8:
-							switch (paramLow) {
-							case 0x0: // 8XY0 Sets VX to the value of VY
-								if (DEBUG_OUTPUT)
-									System.out.println("Sets VX to the value of VY:" + vRegisters[paramHigh]);
-								vRegisters[controlLow] = vRegisters[paramHigh];
-								break;
-							case 0x1: // 8XY1 Sets VX to VX or VY
-								if (DEBUG_OUTPUT)
-									System.out.println("Sets VX(" + vRegisters[controlLow] + ") to VX or VY:"
-											+ vRegisters[paramHigh]);
-								vRegisters[controlLow] = (byte) (vRegisters[controlLow] | vRegisters[paramHigh]);
-								break;
-							case 0x2: // 8XY2 Sets VX to VX and VY
-								if (DEBUG_OUTPUT)
-									System.out.println("Sets VX(" + vRegisters[controlLow] + ") to VX and VY:"
-											+ vRegisters[paramHigh]);
-								vRegisters[controlLow] = (byte) (vRegisters[controlLow] & vRegisters[paramHigh]);
-								break;
-							case 0x3: // 8XY3 Sets VX to VX xor VY
-								if (DEBUG_OUTPUT)
-									System.out.println("Sets VX(" + vRegisters[controlLow] + ") to VX xor VY:"
-											+ vRegisters[paramHigh]);
-								vRegisters[controlLow] = (byte) (vRegisters[controlLow] ^ vRegisters[paramHigh]);
-								break;
-							case 0x4: // 8XY4 Adds VY to VX. VF is set to 1 when
-										// there's a carry, and to 0 when there
-										// isn't
-								if (DEBUG_OUTPUT)
-									System.out.println("Adds VX(" + vRegisters[controlLow] + ") to VY("
-											+ vRegisters[paramHigh]
-											+ "). VF is set to 1 when there's a carry, and to 0 when there isn't. Carry? "
-											+ (vRegisters[controlLow] + vRegisters[paramHigh] > Byte.MAX_VALUE));
-								vRegisters[0xF] = 0;
-								if (vRegisters[controlLow] + vRegisters[paramHigh] > Byte.MAX_VALUE)
-									vRegisters[0xF] = 1;
-								break;
-							case 0x5: // 8XY5 VY is subtracted from VX. VF is
-										// set to
-										// 0 when there's a borrow, and 1 when
-										// there
-										// isn't
-								if (DEBUG_OUTPUT)
-									System.out.println("VY(" + vRegisters[paramHigh] + ") is subtracted from VX("
-											+ vRegisters[controlLow]
-											+ "). VF is set to 0 when there's a borrow, and to 1 when there isn't. Borrow? "
-											+ (vRegisters[controlLow] - vRegisters[paramHigh] < 0));
-								vRegisters[0xF] = 1;
-								if (vRegisters[controlLow] - vRegisters[paramHigh] < 0)
-									vRegisters[0xF] = 0;
-								break;
-							case 0x6: // 8XY6 Shifts VX right by one. VF is set
-										// to
-										// the value of the least significant
-										// bit of
-										// VX before the shift.
-								if (DEBUG_OUTPUT)
-									System.out.println("Shifts VX(" + vRegisters[controlLow]
-											+ ") right by one. VF is set to the value of the least significant bit of VX before the shift: "
-											+ (vRegisters[controlLow] & 0x1));
-
-								vRegisters[0xF] = (byte) (vRegisters[controlLow] & 0x1);
-								vRegisters[controlLow] = (byte) (vRegisters[controlLow] >> 1);
-								break;
-							case 0x7: // 8XY7 Sets VX to VY minus VX. VF is set
-										// to 0
-										// when there's a borrow, and 1 when
-										// there
-										// isn't
-								if (DEBUG_OUTPUT)
-									System.out.println(
-											"Sets VX(" + vRegisters[controlLow] + ") to VY(" + vRegisters[paramHigh]
-													+ ") minus VX. VF is set to 0 when there's a borrow, and 1 when there isn't. Borrow?"
-													+ (vRegisters[paramHigh] - vRegisters[controlLow] < 0));
-								vRegisters[0xF] = 1;
-								if (vRegisters[paramHigh] - vRegisters[controlLow] < 0)
-									vRegisters[0xF] = 0;
-								vRegisters[controlLow] = (byte) (vRegisters[paramHigh] - vRegisters[controlLow]);
-								break;
-							case 0xE: // 8XYE Shifts VX left by one. VF is set
-										// to
-										// the value of the most significant bit
-										// of
-										// VX before the shift.
-								if (DEBUG_OUTPUT)
-									System.out.println("Shifts VX(" + vRegisters[controlLow]
-											+ ") left by one. VF is set to the value of the most significant bit of VX before the shift: "
-											+ (vRegisters[controlLow] & 0x80));
-								vRegisters[0xF] = (byte) (vRegisters[controlLow] & 0x80);
-								vRegisters[controlLow] = (byte) (vRegisters[controlLow] << 1);
-								break;
-							default:
-								fail(ERROR_INVALID_INSTRUCTION);
-								break;
-							}
-							break;
-						case 0x9:
-							// 9XY0 Skips the next instruction if VX doesn't
-							// equal
-							// VY
-							if (DEBUG_OUTPUT)
-								System.out.println("Skips the next instruction if VX(" + vRegisters[controlLow]
-										+ ") doesn't equal VY(" + vRegisters[paramHigh] + ")");
-							if (paramLow != 0x0)
-								fail(ERROR_INVALID_INSTRUCTION);
-							if (vRegisters[controlLow] != vRegisters[paramHigh])
-								instructionPointer += 2;
-							break;
-						case 0xA: // ANNN Sets I to the address NNN
-							if (DEBUG_OUTPUT)
-								System.out.println("Sets I to the Address NNN: "
-										+ (((controlLow << 8) & 0xFF0) + ((paramHigh << 4) & 0xF0) + paramLow));
-							addrRegister = ((controlLow << 8) & 0xFF0) + ((paramHigh << 4) & 0xF0) + paramLow;
-							break;
-						case 0xB: // BNNN Jumps to the address NNN plus V0
-							if (DEBUG_OUTPUT)
-								System.out.println("Jumps to the address NNN("
-										+ (((controlLow << 8) & 0xFF0) + ((paramHigh << 4) & 0xF0) + paramLow)
-										+ ") plus V0(" + vRegisters[0x0] + ")");
-							instructionPointer = ((controlLow << 8) & 0xFF0) + ((paramHigh << 4) & 0xF0) + paramLow
-									+ vRegisters[0x0];
-							break;
-						case 0xC: // CXNN Sets VX to the result of a bitwise and
-									// operation on a random number and NN
-							if (DEBUG_OUTPUT)
-								System.out.println(
-										"Sets VX to the result of a bitwise and operation on a random number and NN: "
-												+ (((paramHigh << 4) & 0xF0) + paramLow));
-							vRegisters[controlLow] = (byte) ((((paramHigh << 4) & 0xF0) + paramLow)
-									& random.nextInt(0xFF));
-							break;
-						case 0xD: // DXYN Sprites stored in memory at location
-									// in
-									// index register (I), 8bits wide. Wraps
-									// around
-									// the screen. If when drawn, clears a
-									// pixel,
-									// register VF is set to 1 otherwise it is
-									// zero.
-									// All drawing is XOR drawing (i.e. it
-									// toggles
-									// the screen pixels). Sprites are drawn
-									// starting at position VX, VY. N is the
-									// number
-									// of 8bit rows that need to be drawn. If N
-									// is
-									// greater than 1, second line continues at
-									// position VX, VY+1, and so on.
-							synchronized (vram) {
-								int x = vRegisters[controlLow];
-								int y = vRegisters[paramHigh];
-
-								if (DEBUG_OUTPUT)
-									System.out.println("Drawing sprite @ (" + x + ", " + y + ")");
-
-								vRegisters[0xF] = 0;
-
-								// for i < height
-								for (int i = 1; i <= paramLow; i++) {
-									// retrieve current sprite
-									byte currentSprite = ram[addrRegister + i];
-									for (int bitShift = 0; bitShift < 8; bitShift++) {
-										// Get pixel to draw on
-										int pixelToDrawOn = x + bitShift + (y + i - 1) * 64;
-										pixelToDrawOn = pixelToDrawOn % (32 * 64);
-
-										// Bigger than last pixel in our row ->
-										// subtract 64 (overflow)
-										if (x + bitShift > 63)
-											pixelToDrawOn -= 64;
-
-										// XOR Drawing (if they differ,
-										// flip/toggle
-										// pixel)
-										try {
-											if (((currentSprite << bitShift) & 0x80) != 0) {
-												if (vram[pixelToDrawOn] == 1) {
-													vram[pixelToDrawOn] = 0;
-													vRegisters[0xF] = 1;
-												} else {
-													vram[pixelToDrawOn] = 1;
-													hasDrawn = true;
-												}
-											}
-										} catch (Exception e) {
-											e.printStackTrace();
-											System.out.flush();
-											System.err.flush();
-											Thread.sleep(100);
-											fail(ERROR_UNKNOWN_EXCEPTION);
-										}
-									}
-								}
-							}
+	// 00E0, only clears the selected planes
+	void clearScreen() {
+		if (planeMask == 1 && variant != Chip8Variant.XOCHIP) {
+			clearMemory(vram);
+		} else {
+			for (int i = 0; i < vram.length; i++)
+				if ((planeMask & (1 << ((i >>> 1) & 1))) != 0)
+					vram[i] = 0;
+		}
+		vramDirty = true;
+		dirtyRows = -1L;
+	}
 
+	// 00FE and 00FF, switching the resolution clears the screen
+	private void setHires(boolean hires) {
+		this.hires = hires;
+		clearMemory(vram);
+		vramDirty = true;
+		dirtyRows = -1L;
+	}
+
+	// 00CN and 00DN, moves the selected planes down by rows, up when rows is
+	// negative. Rows scrolled in are blank. Both SCHIP and XO-CHIP scroll by
+	// rows and pixels of the current resolution like Octo, so a lores 00CN
+	// moves N lores rows. The half distance lores scrolls of the original
+	// HP48 SUPER-CHIP 1.1 are not emulated
+	private void scrollVertical(int rows) {
+		int height = getDisplayHeight();
+		for (int plane = 0; plane < VRAM_PLANES; plane++) {
+			if ((planeMask & (1 << plane)) == 0)
+				continue;
+
+			for (int i = 0; i < height; i++) {
+				// Bottom up when moving down, so no row is overwritten before
+				// it moved
+				int row = rows > 0 ? height - 1 - i : i;
+				int from = row - rows;
+				int index = row * VRAM_ROW_LONGS + plane * 2;
+				boolean inside = from >= 0 && from < height;
+				vram[index] = inside ? vram[from * VRAM_ROW_LONGS + plane * 2] : 0;
+				vram[index + 1] = inside ? vram[from * VRAM_ROW_LONGS + plane * 2 + 1] : 0;
+			}
+		}
+		vramDirty = true;
+		dirtyRows = -1L;
+	}
+
+	// 00FB and 00FC, moves the selected planes right by pixels of the current
+	// resolution, left when pixels is negative. 4 lores pixels in lores, see
+	// scrollVertical
+	private void scrollHorizontal(int pixels) {
+		int height = getDisplayHeight();
+		for (int plane = 0; plane < VRAM_PLANES; plane++) {
+			if ((planeMask & (1 << plane)) == 0)
+				continue;
+
+			for (int row = 0; row < height; row++) {
+				int index = row * VRAM_ROW_LONGS + plane * 2;
+				long left = vram[index];
+				long right = vram[index + 1];
+				if (!hires) {
+					vram[index] = pixels > 0 ? left >>> pixels : left << -pixels;
+				} else if (pixels > 0) {
+					vram[index] = left >>> pixels;
+					vram[index + 1] = right >>> pixels | left << (64 - pixels);
+				} else {
+					vram[index] = left << -pixels | right >>> (64 + pixels);
+					vram[index + 1] = right << -pixels;
+				}
+			}
+		}
+		vramDirty = true;
+		dirtyRows = -1L;
+	}
+
+	// SUPER-CHIP and XO-CHIP instructions, shared by the interpreter and the
+	// decoded cache. ip is the address after the instruction, returns the
+	// address to continue at
+	private int executeExtended(int decoded, int ip) {
+		int x = Chip8Decoder.x(decoded);
+		int y = Chip8Decoder.y(decoded);
+		switch (Chip8Decoder.op(decoded)) {
+		case Chip8Decoder.OP_SCD:
+			scrollVertical(Chip8Decoder.n(decoded));
+			break;
+		case Chip8Decoder.OP_SCU:
+			scrollVertical(-Chip8Decoder.n(decoded));
+			break;
+		case Chip8Decoder.OP_SCR:
+			scrollHorizontal(4);
+			break;
+		case Chip8Decoder.OP_SCL:
+			scrollHorizontal(-4);
+			break;
+		case Chip8Decoder.OP_EXIT:
+			exited = true;
+			break;
+		case Chip8Decoder.OP_LOW:
+			setHires(false);
+			break;
+		case Chip8Decoder.OP_HIGH:
+			setHires(true);
+			break;
+		case Chip8Decoder.OP_LD_HF_VX:
+			addrRegister = BIG_FONT_ADDR + (vRegisters[x] & 0xF) * BIG_FONT_HEIGHT - 1;
+			break;
+		case Chip8Decoder.OP_LD_R_VX:
+			System.arraycopy(vRegisters, 0, rplFlags, 0, x + 1);
+			break;
+		case Chip8Decoder.OP_LD_VX_R:
+			System.arraycopy(rplFlags, 0, vRegisters, 0, x + 1);
+			break;
+		case Chip8Decoder.OP_SAVE_VX_VY:
+			storeRange(x, y);
+			break;
+		case Chip8Decoder.OP_LOAD_VX_VY:
+			loadRange(x, y);
+			break;
+		case Chip8Decoder.OP_LD_I_LONG:
+			if (ip >= ram.length - 2)
+				fail("EOF");
+			addrRegister = fetch(ip);
+			ip += 2;
+			break;
+		case Chip8Decoder.OP_PLANE:
+			planeMask = x & ((1 << VRAM_PLANES) - 1);
+			break;
+		case Chip8Decoder.OP_AUDIO:
+			checkMemory(addrRegister, audioPattern.length, false);
+			System.arraycopy(ram, addrRegister, audioPattern, 0, audioPattern.length);
+			break;
+		case Chip8Decoder.OP_PITCH:
+			pitch = vRegisters[x] & 0xFF;
+			break;
+		default:
+			fail(ERROR_INVALID_INSTRUCTION);
+			break;
+		}
+		return ip;
+	}
+
+	// 5XY2, VX to VY at I, in descending order if X > Y. I is not changed
+	private void storeRange(int x, int y) {
+		int count = Math.abs(x - y) + 1;
+		int step = x <= y ? 1 : -1;
+		checkMemory(addrRegister, count, true);
+		invalidateDecoded(addrRegister, count);
+		markDirty(addrRegister, count);
+
+		for (int i = 0; i < count; i++)
+			ram[addrRegister + i] = vRegisters[x + i * step];
+	}
+
+	// 5XY3
+	private void loadRange(int x, int y) {
+		int count = Math.abs(x - y) + 1;
+		int step = x <= y ? 1 : -1;
+		checkMemory(addrRegister, count, false);
+		for (int i = 0; i < count; i++)
+			vRegisters[x + i * step] = ram[addrRegister + i];
+	}
+
+	// Address a skip continues at when the instruction at ip is skipped. The
+	// four byte F000 NNNN of XO-CHIP is skipped as a whole
+	private int skip(int ip) {
+		if (hasLongSkips() && ip >= 0 && ip < ram.length - 2 && fetch(ip) == 0xF000)
+			return ip + 4;
+		return ip + 2;
+	}
+
+	private boolean hasLongSkips() {
+		return variant == Chip8Variant.XOCHIP;
+	}
+
+	// FX33
+	void storeBcd(byte vx) {
+		checkMemory(addrRegister, 3, true);
+		invalidateDecoded(addrRegister, 3);
+		markDirty(addrRegister, 3);
+
+		byte one = (byte) (vx % 10);
+		vx /= 10;
+		byte ten = (byte) (vx % 10);
+		vx /= 10;
+		byte hundred = (byte) (vx % 10);
+		ram[addrRegister] = hundred;
+		ram[addrRegister + 1] = ten;
+		ram[addrRegister + 2] = one;
+	}
+
+	// FX55
+	void storeRegisters(int count) {
+		checkMemory(addrRegister, count, true);
+		invalidateDecoded(addrRegister, count);
+		markDirty(addrRegister, count);
+
+		for (int i = 0; i < count; i++)
+			ram[addrRegister + i] = vRegisters[i];
+	}
+
+	// FX65
+	void loadRegisters(int count) {
+		checkMemory(addrRegister, count, false);
+		for (int i = 0; i < count; i++)
+			vRegisters[i] = ram[addrRegister + i];
+	}
+
+	// Fails instead of letting ram[address, address + length) throw. Every
+	// ram access of an instruction passes here, so the debugger sees it
+	private void checkMemory(int address, int length, boolean write) {
+		if (length > 0 && (address < 0 || address + length > ram.length))
+			fail(ERROR_INVALID_MEMORY_ACCESS);
+		if (watchingMemory)
+			debugger.memoryAccess(address, length, write);
+	}
+
+	private void markDirty(int address, int length) {
+		if (length > 0)
+			for (int page = address / RAM_PAGE_SIZE; page <= (address + length - 1) / RAM_PAGE_SIZE; page++)
+				dirtyPages[page >>> 6] |= 1L << page;
+	}
+
+	private int fetch(int address) {
+		return (ram[address + 1] & 0xFF) << 8 | ram[address + 2] & 0xFF;
+	}
+
+	// Decodes the instruction at address and fuses it with its successor
+	// when possible. The successor is only fused if fetching it would not
+	// trip the EOF check
+	private int decodeAt(int address) {
+		if (address < cachedFrom)
+			cachedFrom = address;
+		if (address >= cachedTo)
+			cachedTo = address + 1;
+
+		int decoded = Chip8Decoder.decode(fetch(address), variant);
+		if (address + 2 < ram.length - 2) {
+			int fused = Chip8Decoder.fuse(decoded, Chip8Decoder.decode(fetch(address + 2), variant));
+			if (fused != Chip8Decoder.OP_UNDECODED)
+				return fused;
+		}
+
+		return decoded;
+	}
+
+	private void clearCaches() {
+		if (cachedFrom < cachedTo) {
+			Arrays.fill(decodedCache, cachedFrom, cachedTo, Chip8Decoder.OP_UNDECODED);
+			Arrays.fill(blockHeat, cachedFrom, cachedTo, 0);
+			Arrays.fill(compiledBlocks, cachedFrom, cachedTo, null);
+		}
+		cachedFrom = ram.length;
+		cachedTo = 0;
+	}
+
+	// Drops every cached instruction and compiled block that overlaps
+	// ram[address, address + length), superinstructions span up to 4 bytes
+	private void invalidateDecoded(int address, int length) {
+		int from = Math.max(address - 4, 0);
+		int to = Math.min(address + length, decodedCache.length);
+		for (int i = from; i < to; i++)
+			decodedCache[i] = Chip8Decoder.OP_UNDECODED;
+
+		from = Math.max(address - 2 * BlockCompiler.MAX_BLOCK_LENGTH, 0);
+		for (int i = from; i < to; i++) {
+			CompiledBlock block = compiledBlocks[i];
+			if ((block != null && block.end > address) || (block == null && blockHeat[i] >= JIT_THRESHOLD)) {
+				compiledBlocks[i] = null;
+				blockHeat[i] = 0;
+			}
+		}
+	}
+
+	// While the debugger is armed: one instruction at a time with the
+	// debugger checked around each, through the decoded cache unless the
+	// interpreter is selected. Stops early when the debugger stops the core
+	private int runDebugged(int budget) {
+		int executed = 0;
+		watchingMemory = debugger.watchesMemory();
+		try {
+			while (executed < budget && !waitingForInput && !exited && !debugger.beforeInstruction(this)) {
+				if (executionMode == ExecutionMode.INTERPRETER) {
+					cycle();
+					executed++;
+				} else {
+					executed += runDecoded(1);
+				}
+				if (debugger.afterInstruction(this))
+					break;
+			}
+		} finally {
+			watchingMemory = false;
+		}
+
+		return executed;
+	}
+
+	// Runs hot blocks compiled, everything else through the decoded cache
+	private int runJit(int budget) {
+		final CompiledBlock[] compiledBlocks = this.compiledBlocks;
+		int executed = 0;
+
+		while (executed < budget && !waitingForInput && !exited) {
+			int ip = instructionPointer;
+			CompiledBlock block = null;
+			if (ip >= 0 && ip < compiledBlocks.length) {
+				block = compiledBlocks[ip];
+				// Only block starts heat up, so the addresses inside a hot
+				// block do not get overlapping blocks of their own
+				if (block == null && atBlockStart && ++blockHeat[ip] == JIT_THRESHOLD)
+					block = compiledBlocks[ip] = BlockCompiler.compile(ram, ip, hasLongSkips());
+			}
+
+			if (block != null) {
+				// Stops early at the end of the budget, mid block
+				int ran = runBlock(block, budget - executed);
+				executed += ran;
+				atBlockStart = ran == block.length;
+			} else {
+				executed += runDecoded(1);
+				atBlockStart = instructionPointer != ip + 2
+						|| (ip >= 0 && BlockCompiler.endsBlock(Chip8Decoder.op(decodedCache[ip])));
+			}
+		}
+
+		return executed;
+	}
+
+	// Returns the number of instructions executed, the budget when that is
+	// less than the length of the block
+	private int runBlock(CompiledBlock block, int budget) {
+		int length = Math.min(block.length, budget);
+		try {
+			instructionPointer = block.execute(this, vRegisters, budget);
+		} catch (IllegalStateException e) {
+			// Helpers that can fail store the address after their instruction
+			cycleCount += (instructionPointer - block.start) / 2;
+			throw e;
+		} catch (Exception e) {
+			cycleCount += (instructionPointer - block.start) / 2;
+			if (headless)
+				throw new IllegalStateException(ERROR_UNKNOWN_EXCEPTION, e);
+			e.printStackTrace();
+			System.out.flush();
+			System.err.flush();
+			fail(ERROR_UNKNOWN_EXCEPTION);
+		}
+
+		cycleCount += length;
+		if (opcodeFamilyCounts != null)
+			for (int i = 0; i < length; i++)
+				opcodeFamilyCounts[(ram[block.start + 1 + 2 * i] >>> 4) & 0xF]++;
+		return length;
+	}
+
+	// Executes cached (super)instructions until the budget is used up, FX0A
+	// starts waiting or 00FD exits, returns the number of instructions
+	// executed
+	private int runDecoded(int budget) {
+		final byte[] vRegisters = this.vRegisters;
+		final int[] decodedCache = this.decodedCache;
+		final long[] opcodeFamilyCounts = this.opcodeFamilyCounts;
+		final int lastAddress = ram.length - 2;
+		int ip = instructionPointer;
+		int executed = 0;
+
+		// ip and the instruction count live in locals, the finally block
+		// writes them back whichever way the loop is left
+		try {
+			while (executed < budget && !waitingForInput && !exited) {
+				if (ip >= lastAddress) {
+					executed++;
+					instructionPointer = ip;
+					fail("EOF");
+				}
+
+				int decoded;
+				if (ip < 0) {
+					// Only reachable through BNNN with a negative V0, the
+					// reference interpreter still fetches from ram[0] there
+					decoded = Chip8Decoder.decode(fetch(ip), variant);
+				} else {
+					decoded = decodedCache[ip];
+					if (decoded == Chip8Decoder.OP_UNDECODED)
+						decoded = decodedCache[ip] = decodeAt(ip);
+				}
+
+				int op = Chip8Decoder.op(decoded);
+				if (budget - executed < 2 && op >= Chip8Decoder.OP_FUSED_LD_LD) {
+					// Not enough budget left for both halves
+					decoded = Chip8Decoder.decode(fetch(ip), variant);
+					op = Chip8Decoder.op(decoded);
+				}
+
+				int x = Chip8Decoder.x(decoded);
+				int y = Chip8Decoder.y(decoded);
+				executed++;
+				ip += 2;
+				if (opcodeFamilyCounts != null)
+					countFamilies(opcodeFamilyCounts, decoded);
+
+				switch (op) {
+				case Chip8Decoder.OP_NOP:
+					break;
+				case Chip8Decoder.OP_CLS:
+					clearScreen();
+					break;
+				case Chip8Decoder.OP_RET:
+					ip = popStack();
+					break;
+				case Chip8Decoder.OP_JP:
+					ip = Chip8Decoder.nnn(decoded);
+					break;
+				case Chip8Decoder.OP_CALL:
+					pushStack(ip);
+					ip = Chip8Decoder.nnn(decoded);
+					break;
+				case Chip8Decoder.OP_SE_VX_NN:
+					if (vRegisters[x] == Chip8Decoder.nn(decoded))
+						ip = skip(ip);
+					break;
+				case Chip8Decoder.OP_SNE_VX_NN:
+					if (vRegisters[x] != Chip8Decoder.nn(decoded))
+						ip = skip(ip);
+					break;
+				case Chip8Decoder.OP_SE_VX_VY:
+					if (vRegisters[x] == vRegisters[y])
+						ip = skip(ip);
+					break;
+				case Chip8Decoder.OP_LD_VX_NN:
+					vRegisters[x] = (byte) Chip8Decoder.nn(decoded);
+					break;
+				case Chip8Decoder.OP_ADD_VX_NN:
+					vRegisters[x] += (byte) Chip8Decoder.nn(decoded);
+					break;
+				case Chip8Decoder.OP_LD_VX_VY:
+					vRegisters[x] = vRegisters[y];
+					break;
+				case Chip8Decoder.OP_OR:
+					vRegisters[x] = (byte) (vRegisters[x] | vRegisters[y]);
+					break;
+				case Chip8Decoder.OP_AND:
+					vRegisters[x] = (byte) (vRegisters[x] & vRegisters[y]);
+					break;
+				case Chip8Decoder.OP_XOR:
+					vRegisters[x] = (byte) (vRegisters[x] ^ vRegisters[y]);
+					break;
+				case Chip8Decoder.OP_ADD_VX_VY:
+					vRegisters[0xF] = 0;
+					if (vRegisters[x] + vRegisters[y] > Byte.MAX_VALUE)
+						vRegisters[0xF] = 1;
+					break;
+				case Chip8Decoder.OP_SUB:
+					vRegisters[0xF] = 1;
+					if (vRegisters[x] - vRegisters[y] < 0)
+						vRegisters[0xF] = 0;
+					break;
+				case Chip8Decoder.OP_SHR:
+					vRegisters[0xF] = (byte) (vRegisters[x] & 0x1);
+					vRegisters[x] = (byte) (vRegisters[x] >> 1);
+					break;
+				case Chip8Decoder.OP_SUBN:
+					vRegisters[0xF] = 1;
+					if (vRegisters[y] - vRegisters[x] < 0)
+						vRegisters[0xF] = 0;
+					vRegisters[x] = (byte) (vRegisters[y] - vRegisters[x]);
+					break;
+				case Chip8Decoder.OP_SHL:
+					vRegisters[0xF] = (byte) (vRegisters[x] & 0x80);
+					vRegisters[x] = (byte) (vRegisters[x] << 1);
+					break;
+				case Chip8Decoder.OP_SNE_VX_VY:
+					if (vRegisters[x] != vRegisters[y])
+						ip = skip(ip);
+					break;
+				case Chip8Decoder.OP_LD_I:
+					addrRegister = Chip8Decoder.nnn(decoded);
+					break;
+				case Chip8Decoder.OP_JP_V0:
+					ip = Chip8Decoder.nnn(decoded) + vRegisters[0x0];
+					break;
+				case Chip8Decoder.OP_RND:
+					vRegisters[x] = (byte) (Chip8Decoder.nn(decoded) & random.nextInt(0xFF));
+					break;
+				case Chip8Decoder.OP_DRW:
+					drawSprite(vRegisters[x], vRegisters[y], Chip8Decoder.n(decoded));
+					break;
+				case Chip8Decoder.OP_SKP:
+					if (getInput(vRegisters[x]) == 1)
+						ip = skip(ip);
+					break;
+				case Chip8Decoder.OP_SKNP:
+					if (getInput(vRegisters[x]) == 0)
+						ip = skip(ip);
+					break;
+				case Chip8Decoder.OP_LD_VX_DT:
+					vRegisters[x] = delayTimer;
+					break;
+				case Chip8Decoder.OP_LD_VX_K:
+					beginKeyWait(x);
+					break;
+				case Chip8Decoder.OP_LD_DT_VX:
+					delayTimer = vRegisters[x];
+					break;
+				case Chip8Decoder.OP_LD_ST_VX:
+					soundTimer = vRegisters[x];
+					break;
+				case Chip8Decoder.OP_ADD_I_VX:
+					addrRegister += vRegisters[x];
+					break;
+				case Chip8Decoder.OP_LD_F_VX:
+					addrRegister = ((int) vRegisters[x] & 0xFF) * 5 - 1;
+					break;
+				case Chip8Decoder.OP_LD_B_VX:
+					storeBcd(vRegisters[x]);
+					break;
+				case Chip8Decoder.OP_LD_I_VX:
+					storeRegisters(x);
+					break;
+				case Chip8Decoder.OP_LD_VX_I:
+					loadRegisters(x);
+					break;
+				case Chip8Decoder.OP_FUSED_LD_LD:
+					vRegisters[x] = (byte) Chip8Decoder.nn(decoded);
+					executed++;
+					ip += 2;
+					vRegisters[y] = (byte) Chip8Decoder.fusedNn(decoded);
+					break;
+				case Chip8Decoder.OP_FUSED_DRW_ADD:
+					drawSprite(vRegisters[x], vRegisters[y], Chip8Decoder.n(decoded));
+					executed++;
+					ip += 2;
+					vRegisters[Chip8Decoder.fusedZ(decoded)] += (byte) Chip8Decoder.fusedNn(decoded);
+					break;
+				case Chip8Decoder.OP_SCD:
+				case Chip8Decoder.OP_SCR:
+				case Chip8Decoder.OP_SCL:
+				case Chip8Decoder.OP_EXIT:
+				case Chip8Decoder.OP_LOW:
+				case Chip8Decoder.OP_HIGH:
+				case Chip8Decoder.OP_LD_HF_VX:
+				case Chip8Decoder.OP_LD_R_VX:
+				case Chip8Decoder.OP_LD_VX_R:
+				case Chip8Decoder.OP_SCU:
+				case Chip8Decoder.OP_SAVE_VX_VY:
+				case Chip8Decoder.OP_LOAD_VX_VY:
+				case Chip8Decoder.OP_LD_I_LONG:
+				case Chip8Decoder.OP_PLANE:
+				case Chip8Decoder.OP_AUDIO:
+				case Chip8Decoder.OP_PITCH:
+					instructionPointer = ip;
+					ip = executeExtended(decoded, ip);
+					break;
+				case Chip8Decoder.OP_RCA:
+					instructionPointer = ip;
+					fail(ERROR_RCA_1802_UNSUPPORTED);
+					break;
+				default:
+					instructionPointer = ip;
+					fail(ERROR_INVALID_INSTRUCTION);
+					break;
+				}
+			}
+		} catch (IllegalStateException e) {
+			throw e;
+		} catch (Exception e) {
+			instructionPointer = ip;
+			if (headless)
+				throw new IllegalStateException(ERROR_UNKNOWN_EXCEPTION, e);
+			e.printStackTrace();
+			System.out.flush();
+			System.err.flush();
+			fail(ERROR_UNKNOWN_EXCEPTION);
+		} finally {
+			instructionPointer = ip;
+			cycleCount += executed;
+		}
+
+		return executed;
+	}
+
+	private static void countFamilies(long[] opcodeFamilyCounts, int decoded) {
+		opcodeFamilyCounts[Chip8Decoder.family(decoded)]++;
+		// Second half of a superinstruction
+		int op = Chip8Decoder.op(decoded);
+		if (op == Chip8Decoder.OP_FUSED_LD_LD)
+			opcodeFamilyCounts[0x6]++;
+		else if (op == Chip8Decoder.OP_FUSED_DRW_ADD)
+			opcodeFamilyCounts[0x7]++;
+	}
+
+	// DEBUG_OUTPUT trace of the instruction being executed
+	private void trace(int opcode) {
+		System.out.println(String.format("%03X: %04X %s", instructionPointer - 2, opcode,
+				Chip8Decoder.mnemonic(Chip8Decoder.decode(opcode))));
+	}
+
+	private void cycle() {
+		// Stage 1: LOAD
+		cycleCount++;
+		if (instructionPointer >= ram.length - 2)
+			fail("EOF");
+		int high = ram[++instructionPointer] & 0xFF;
+		int low = ram[++instructionPointer] & 0xFF;
+		int controlHigh = high >> 4;
+		int controlLow = high & 0x0F;
+		int paramHigh = low >> 4;
+		int paramLow = low & 0x0F;
+		if (opcodeFamilyCounts != null)
+			opcodeFamilyCounts[controlHigh]++;
+
+		if (DEBUG_OUTPUT)
+			trace(high << 8 | low);
+
+		// Stage 2 + 3: DECODE & EXECUTE
+		try {
+			if (variant != Chip8Variant.CHIP8) {
+				// Instructions of the extensions take precedence where they
+				// overlap with the invalid ones below
+				int decoded = Chip8Decoder.decode(high << 8 | low, variant);
+				if (Chip8Decoder.op(decoded) >= Chip8Decoder.OP_SCD) {
+					instructionPointer = executeExtended(decoded, instructionPointer);
+					return;
+				}
+			}
+
+			switch (controlHigh) {
+			case 0x0:
+				switch (controlLow) {
+				case 0x0:
+					switch (paramHigh) {
+					case 0x0:
+						// NOOP operation
+						if (paramLow != 0x0)
+							fail(ERROR_INVALID_INSTRUCTION);
+						break;
+					case 0xE:
+						switch (paramLow) {
+						case 0x0: // 00E0 clear screen
+							clearScreen();
 							break;
-						case 0xE:
-							if (paramHigh == 0x9 && paramLow == 0xE) {
-								// EX9E Skips the next instruction if the key
-								// stored
-								// in VX is pressed.
-								if (DEBUG_OUTPUT)
-									System.out.println("Skips the next instruction if the key stored in VX("
-											+ vRegisters[controlLow] + ") is pressed: "
-											+ getInput(vRegisters[controlLow]));
-								if (getInput(vRegisters[controlLow]) == 1)
-									instructionPointer += 2;
-							} else if (paramHigh == 0xA && paramLow == 0x1) {
-								// EXA1 Skips the next instruction if the key
-								// stored
-								// in VX isn't pressed.
-								if (DEBUG_OUTPUT)
-									System.out.println("Skips the next instruction if the key stored in VX("
-											+ vRegisters[controlLow] + ") isn't pressed: "
-											+ getInput(vRegisters[controlLow]));
-								if (getInput(vRegisters[controlLow]) == 0)
-									instructionPointer += 2;
-							} else
-								fail(ERROR_INVALID_INSTRUCTION);
-							break;
-						case 0xF:
-							switch (paramHigh) {
-							case 0x0:
-								if (paramLow == 0x7) {
-									// FX07 Sets VX to the value of the delay
-									// timer.
-									if (DEBUG_OUTPUT)
-										System.out.println("Sets VX to the value of the delay timer: " + delayTimer);
-									vRegisters[controlLow] = delayTimer;
-								} else if (paramLow == 0xA) {
-									// FX0A A key press is awaited, and then
-									// stored
-									// in VX.
-									synchronized (input) {
-										try {
-											// if (DEBUG_OUTPUT)
-											System.out.println("Waits for key input");
-											input.wait();
-										} catch (InterruptedException e) {
-											e.printStackTrace();
-										}
-									}
-									vRegisters[controlLow] = (byte) mostRecentInput;
-
-								} else
-									fail(ERROR_INVALID_INSTRUCTION);
-								break;
-							case 0x1:
-								if (paramLow == 0x5) {
-									// FX15 Sets the delay timer to VX.
-									if (DEBUG_OUTPUT)
-										System.out.println("Sets the delay timer to VX: " + vRegisters[controlLow]);
-
-									delayTimer = vRegisters[controlLow];
-								} else if (paramLow == 0x8) {
-									// FX18 Sets the sound timer to VX
-									if (DEBUG_OUTPUT)
-										System.out.println("Sets the sound timer to VX: " + vRegisters[controlLow]);
-
-									soundTimer = vRegisters[controlLow];
-								} else if (paramLow == 0xE) {
-									// FX1E Adds VX to I.
-									if (DEBUG_OUTPUT)
-										System.out.println(
-												"Adds VX(" + vRegisters[controlLow] + ")  to I: " + addrRegister);
-
-									addrRegister += vRegisters[controlLow];
-								} else
-									fail(ERROR_INVALID_INSTRUCTION);
-								break;
-							case 0x2:
-								if (paramLow == 0x9) {
-									// FX29 Sets I to the location of the sprite
-									// for
-									// the character in VX. Characters 0-F (in
-									// hexadecimal) are represented by a 4x5
-									// font.
-									if (DEBUG_OUTPUT)
-										System.out.println("Sets I(" + (int) addrRegister + ") to controlLow * 5: "
-												+ (((int) vRegisters[controlLow] & 0xFF) * 5));
-									addrRegister = ((int) vRegisters[controlLow] & 0xFF) * 5 - 1;
-								} else
-									fail(ERROR_INVALID_INSTRUCTION);
-								break;
-							case 0x3:
-								if (paramLow != 0x3)
-									fail(ERROR_INVALID_INSTRUCTION);
-								// FX33 Stores the Binary-coded decimal
-								// representation of VX, with the most
-								// significant
-								// of three digits at the address in I, the
-								// middle
-								// digit at I plus 1, and the least significant
-								// digit at I plus 2. (In other words, take the
-								// decimal representation of VX, place the
-								// hundreds
-								// digit in memory at location in I, the tens
-								// digit
-								// at location I+1, and the ones digit at
-								// location
-								// I+2.)
-
-								if (DEBUG_OUTPUT)
-									System.out.println("Stores decimal represantation of VX...");
-								byte vx = vRegisters[controlLow];
-								byte one = (byte) (vx % 10);
-								vx /= 10;
-								byte ten = (byte) (vx % 10);
-								vx /= 10;
-								byte hundred = (byte) (vx % 10);
-								ram[addrRegister] = hundred;
-								ram[addrRegister + 1] = ten;
-								ram[addrRegister + 2] = one;
-								break;
-							case 0x5: // FX55 Stores V0 to VX in memory starting
-										// at
-										// address I
-								if (DEBUG_OUTPUT)
-									System.out.println("Stores V0 to VX in memory starting at adress I");
-								for (int i = 0; i < controlLow; i++)
-									ram[addrRegister + i] = vRegisters[i];
-								break;
-							case 0x6: // FX65 Fills V0 to VX with values from
-										// memory
-										// starting at address I
-								if (DEBUG_OUTPUT)
-									System.out.println("Fills V0 to VX with values from memory starting at address I");
-								for (int i = 0; i < controlLow; i++)
-									vRegisters[i] = ram[addrRegister + i];
-								break;
-							default:
-								fail(ERROR_INVALID_INSTRUCTION);
-							}
+						case 0xE: // 00EE return from subroutine
+							instructionPointer = popStack();
 							break;
 						default:
+							fail(ERROR_INVALID_INSTRUCTION);
 							break;
 						}
-					} catch (Exception e) {
-						e.printStackTrace();
-						System.out.flush();
-						System.err.flush();
-						try {
-							Thread.sleep(100);
-						} catch (InterruptedException e1) {
-							e1.printStackTrace();
-						}
-						fail(ERROR_UNKNOWN_EXCEPTION);
+						break;
+					default:
+						fail(ERROR_INVALID_INSTRUCTION);
+						break;
 					}
+					break;
+				default:
+					fail(ERROR_RCA_1802_UNSUPPORTED);
+					break;
+
+				}
+
+				break;
+			case 0x1: // 1NNN jump to addr NNN
+				instructionPointer = ((controlLow << 8) & 0xFF0) + ((paramHigh << 4) & 0xF0) + paramLow;
+				break;
+			case 0x2: // 2NNN call subroutine @ NNN
+				pushStack(instructionPointer);
+				instructionPointer = ((controlLow << 8) & 0xFF0) + ((paramHigh << 4) & 0xF0) + paramLow;
+				break;
+			case 0x3: // 3XNN Skips the next instruction if VX
+						// equals NN
+				if (vRegisters[controlLow] == ((paramHigh << 4) & 0xF0) + paramLow)
+					instructionPointer = skip(instructionPointer);
+				break;
+			case 0x4: // 4XNN Skips the next instruction if VX
+						// doesn't
+						// equal NN
+				if (vRegisters[controlLow] != ((paramHigh << 4) & 0xF0) + paramLow)
+					instructionPointer = skip(instructionPointer);
+				break;
+			case 0x5:
+				switch (paramLow) {
+				case 0x0: // 5XY0 Skips the next instruction if VX
+							// equals VY
+					if (vRegisters[controlLow] == vRegisters[paramHigh])
+						instructionPointer = skip(instructionPointer);
+					break;
+				default:
+					fail(ERROR_INVALID_INSTRUCTION);
+					break;
+				}
+				break;
+			case 0x6: // 6XNN Sets VX to NN
+				vRegisters[controlLow] = (byte) (((paramHigh << 4) & 0xF0) + paramLow);
+				break;
+			case 0x7: // 7XNN Adds NN to VX
+				vRegisters[controlLow] += (byte) (((paramHigh << 4) & 0xF0) + paramLow);
+				break;
+			case 0x8:
+				switch (paramLow) {
+				case 0x0: // 8XY0 Sets VX to the value of VY
+					vRegisters[controlLow] = vRegisters[paramHigh];
+					break;
+				case 0x1: // 8XY1 Sets VX to VX or VY
+					vRegisters[controlLow] = (byte) (vRegisters[controlLow] | vRegisters[paramHigh]);
+					break;
+				case 0x2: // 8XY2 Sets VX to VX and VY
+					vRegisters[controlLow] = (byte) (vRegisters[controlLow] & vRegisters[paramHigh]);
+					break;
+				case 0x3: // 8XY3 Sets VX to VX xor VY
+					vRegisters[controlLow] = (byte) (vRegisters[controlLow] ^ vRegisters[paramHigh]);
+					break;
+				case 0x4: // 8XY4 Adds VY to VX. VF is set to 1 when
+							// there's a carry, and to 0 when there
+							// isn't
+					vRegisters[0xF] = 0;
+					if (vRegisters[controlLow] + vRegisters[paramHigh] > Byte.MAX_VALUE)
+						vRegisters[0xF] = 1;
+					break;
+				case 0x5: // 8XY5 VY is subtracted from VX. VF is
+							// set to
+							// 0 when there's a borrow, and 1 when
+							// there
+							// isn't
+					vRegisters[0xF] = 1;
+					if (vRegisters[controlLow] - vRegisters[paramHigh] < 0)
+						vRegisters[0xF] = 0;
+					break;
+				case 0x6: // 8XY6 Shifts VX right by one. VF is set
+							// to
+							// the value of the least significant
+							// bit of
+							// VX before the shift.
+
+					vRegisters[0xF] = (byte) (vRegisters[controlLow] & 0x1);
+					vRegisters[controlLow] = (byte) (vRegisters[controlLow] >> 1);
+					break;
+				case 0x7: // 8XY7 Sets VX to VY minus VX. VF is set
+							// to 0
+							// when there's a borrow, and 1 when
+							// there
+							// isn't
+					vRegisters[0xF] = 1;
+					if (vRegisters[paramHigh] - vRegisters[controlLow] < 0)
+						vRegisters[0xF] = 0;
+					vRegisters[controlLow] = (byte) (vRegisters[paramHigh] - vRegisters[controlLow]);
+					break;
+				case 0xE: // 8XYE Shifts VX left by one. VF is set
+							// to
+							// the value of the most significant bit
+							// of
+							// VX before the shift.
+					vRegisters[0xF] = (byte) (vRegisters[controlLow] & 0x80);
+					vRegisters[controlLow] = (byte) (vRegisters[controlLow] << 1);
+					break;
+				default:
+					fail(ERROR_INVALID_INSTRUCTION);
+					break;
+				}
+				break;
+			case 0x9:
+				// 9XY0 Skips the next instruction if VX doesn't
+				// equal
+				// VY
+				if (paramLow != 0x0)
+					fail(ERROR_INVALID_INSTRUCTION);
+				if (vRegisters[controlLow] != vRegisters[paramHigh])
+					instructionPointer = skip(instructionPointer);
+				break;
+			case 0xA: // ANNN Sets I to the address NNN
+				addrRegister = ((controlLow << 8) & 0xFF0) + ((paramHigh << 4) & 0xF0) + paramLow;
+				break;
+			case 0xB: // BNNN Jumps to the address NNN plus V0
+				instructionPointer = ((controlLow << 8) & 0xFF0) + ((paramHigh << 4) & 0xF0) + paramLow
+						+ vRegisters[0x0];
+				break;
+			case 0xC: // CXNN Sets VX to the result of a bitwise and
+						// operation on a random number and NN
+				vRegisters[controlLow] = (byte) ((((paramHigh << 4) & 0xF0) + paramLow)
+						& random.nextInt(0xFF));
+				break;
+			case 0xD: // DXYN Sprites stored in memory at location
+						// in
+						// index register (I), 8bits wide. Wraps
+						// around
+						// the screen. If when drawn, clears a
+						// pixel,
+						// register VF is set to 1 otherwise it is
+						// zero.
+						// All drawing is XOR drawing (i.e. it
+						// toggles
+						// the screen pixels). Sprites are drawn
+						// starting at position VX, VY. N is the
+						// number
+						// of 8bit rows that need to be drawn. If N
+						// is
+						// greater than 1, second line continues at
+						// position VX, VY+1, and so on.
+				drawSprite(vRegisters[controlLow], vRegisters[paramHigh], paramLow);
+
+				break;
+			case 0xE:
+				if (paramHigh == 0x9 && paramLow == 0xE) {
+					// EX9E Skips the next instruction if the key
+					// stored
+					// in VX is pressed.
+					if (getInput(vRegisters[controlLow]) == 1)
+						instructionPointer = skip(instructionPointer);
+				} else if (paramHigh == 0xA && paramLow == 0x1) {
+					// EXA1 Skips the next instruction if the key
+					// stored
+					// in VX isn't pressed.
+					if (getInput(vRegisters[controlLow]) == 0)
+						instructionPointer = skip(instructionPointer);
+				} else
+					fail(ERROR_INVALID_INSTRUCTION);
+				break;
+			case 0xF:
+				switch (paramHigh) {
+				case 0x0:
+					if (paramLow == 0x7) {
+						// FX07 Sets VX to the value of the delay
+						// timer.
+						vRegisters[controlLow] = delayTimer;
+					} else if (paramLow == 0xA) {
+						// FX0A A key press is awaited, and then
+						// stored
+						// in VX.
+						beginKeyWait(controlLow);
+
+					} else
+						fail(ERROR_INVALID_INSTRUCTION);
+					break;
+				case 0x1:
+					if (paramLow == 0x5) {
+						// FX15 Sets the delay timer to VX.
+
+						delayTimer = vRegisters[controlLow];
+					} else if (paramLow == 0x8) {
+						// FX18 Sets the sound timer to VX
+
+						soundTimer = vRegisters[controlLow];
+					} else if (paramLow == 0xE) {
+						// FX1E Adds VX to I.
+
+						addrRegister += vRegisters[controlLow];
+					} else
+						fail(ERROR_INVALID_INSTRUCTION);
+					break;
+				case 0x2:
+					if (paramLow == 0x9) {
+						// FX29 Sets I to the location of the sprite
+						// for
+						// the character in VX. Characters 0-F (in
+						// hexadecimal) are represented by a 4x5
+						// font.
+						addrRegister = ((int) vRegisters[controlLow] & 0xFF) * 5 - 1;
+					} else
+						fail(ERROR_INVALID_INSTRUCTION);
+					break;
+				case 0x3:
+					if (paramLow != 0x3)
+						fail(ERROR_INVALID_INSTRUCTION);
+					// FX33 Stores the Binary-coded decimal
+					// representation of VX, with the most
+					// significant
+					// of three digits at the address in I, the
+					// middle
+					// digit at I plus 1, and the least significant
+					// digit at I plus 2. (In other words, take the
+					// decimal representation of VX, place the
+					// hundreds
+					// digit in memory at location in I, the tens
+					// digit
+					// at location I+1, and the ones digit at
+					// location
+					// I+2.)
+
+					storeBcd(vRegisters[controlLow]);
+					break;
+				case 0x5: // FX55 Stores V0 to VX in memory starting
+							// at
+							// address I
+					storeRegisters(controlLow);
+					break;
+				case 0x6: // FX65 Fills V0 to VX with values from
+							// memory
+							// starting at address I
+					loadRegisters(controlLow);
+					break;
+				default:
+					fail(ERROR_INVALID_INSTRUCTION);
+				}
+				break;
+			default:
+				break;
+			}
+		} catch (IllegalStateException e) {
+			throw e;
+		} catch (Exception e) {
+			if (headless)
+				throw new IllegalStateException(ERROR_UNKNOWN_EXCEPTION, e);
+			e.printStackTrace();
+			System.out.flush();
+			System.err.flush();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e1) {
+				e1.printStackTrace();
+			}
+			fail(ERROR_UNKNOWN_EXCEPTION);
+		}
+	}
+
+	// Runs frames on a new thread in real time: every 1/TIMER_HZ seconds of
+	// wall clock one frame of instructions executes and the timers tick once.
+	// The thread is parked in between, so it only uses the CPU it needs
+	public void run() {
+		this.runThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				FrameClock clock = new FrameClock(TIMER_HZ);
+				boolean uncapped = false;
+
+				while (true) {
+					int speed = Chip8InterpreterCore.this.speed;
+					// A stopped core waits for the debugger at 60 Hz
+					if (speed == SPEED_UNCAPPED && debugger.isStopped())
+						speed = 1;
+					if (speed == SPEED_UNCAPPED) {
+						if (Thread.interrupted())
+							break;
+						uncapped = true;
+						runFrame();
+						continue;
+					}
+
+					if (uncapped) {
+						// Pace from now on instead of catching up
+						clock.reset();
+						uncapped = false;
+					}
+					if (!clock.awaitFrame())
+						break;
+
+					if (DEBUG_OUTPUT)
+						debugDump();
 
-					// Should we exit?
-					exit = Thread.interrupted() | exit;
+					for (int i = 0; i < speed; i++)
+						runFrame();
 				}
 			}
 		});
@@ -0,0 +1,232 @@
+package com.chip8emu.main;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Throughput and frame timing counters, shareable between any number of
+ * interpreter cores. Cores keep plain per-core counts and add them here once
+ * per runCycles call, so the striped counters stay off the per-instruction
+ * path. A core without metrics only pays a null check per call.
+ */
+public final class Chip8Metrics implements Chip8MetricsMBean {
+	public static final String OBJECT_NAME = "com.chip8emu:type=Metrics";
+
+	private final LongAdder instructions = new LongAdder();
+	private final LongAdder[] opcodeFamilies = new LongAdder[16];
+	private final LongAdder framesPublished = new LongAdder();
+	private final LongAdder drawCalls = new LongAdder();
+	private final LongAdder collisions = new LongAdder();
+	private final LongAdder timerTicks = new LongAdder();
+	private final LatencyHistogram frameTimes = new LatencyHistogram();
+	// Time from a host key event to the instruction boundary applying it
+	private final LatencyHistogram inputLatencies = new LatencyHistogram();
+
+	// Rate over the last sampling interval
+	private volatile long instructionsPerSecond;
+	private long lastSampleNanos = System.nanoTime();
+	private long lastSampleInstructions;
+
+	private ScheduledExecutorService logger;
+
+	public Chip8Metrics() {
+		for (int i = 0; i < opcodeFamilies.length; i++)
+			opcodeFamilies[i] = new LongAdder();
+	}
+
+	void addInstructions(long count) {
+		instructions.add(count);
+	}
+
+	void addOpcodeFamily(int family, long count) {
+		opcodeFamilies[family].add(count);
+	}
+
+	void addDrawCalls(long draws, long collisions) {
+		drawCalls.add(draws);
+		this.collisions.add(collisions);
+	}
+
+	void framePublished() {
+		framesPublished.increment();
+	}
+
+	void timerTick() {
+		timerTicks.increment();
+	}
+
+	void recordInputLatency(long nanos) {
+		inputLatencies.record(nanos);
+	}
+
+	public void recordFrameTime(long nanos) {
+		frameTimes.record(nanos);
+	}
+
+	public LatencyHistogram getFrameTimes() {
+		return frameTimes;
+	}
+
+	public LatencyHistogram getInputLatencies() {
+		return inputLatencies;
+	}
+
+	@Override
+	public long getInstructions() {
+		return instructions.sum();
+	}
+
+	@Override
+	public long getInstructionsPerSecond() {
+		return instructionsPerSecond;
+	}
+
+	@Override
+	public long[] getOpcodeFamilyCounts() {
+		long[] counts = new long[opcodeFamilies.length];
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = opcodeFamilies[i].sum();
+		return counts;
+	}
+
+	@Override
+	public long getFramesPublished() {
+		return framesPublished.sum();
+	}
+
+	@Override
+	public long getDrawCalls() {
+		return drawCalls.sum();
+	}
+
+	@Override
+	public long getCollisions() {
+		return collisions.sum();
+	}
+
+	@Override
+	public long getTimerTicks() {
+		return timerTicks.sum();
+	}
+
+	@Override
+	public long getFrameTimeCount() {
+		return frameTimes.getCount();
+	}
+
+	@Override
+	public double getFrameTimeMeanMicros() {
+		return frameTimes.getMean() / 1e3;
+	}
+
+	@Override
+	public double getFrameTimeP50Micros() {
+		return frameTimes.getPercentile(0.5) / 1e3;
+	}
+
+	@Override
+	public double getFrameTimeP99Micros() {
+		return frameTimes.getPercentile(0.99) / 1e3;
+	}
+
+	@Override
+	public double getFrameTimeMaxMicros() {
+		return frameTimes.getMax() / 1e3;
+	}
+
+	@Override
+	public long getInputEvents() {
+		return inputLatencies.getCount();
+	}
+
+	@Override
+	public double getInputLatencyP99Micros() {
+		return inputLatencies.getPercentile(0.99) / 1e3;
+	}
+
+	@Override
+	public double getInputLatencyMaxMicros() {
+		return inputLatencies.getMax() / 1e3;
+	}
+
+	@Override
+	public void reset() {
+		instructions.reset();
+		for (LongAdder family : opcodeFamilies)
+			family.reset();
+		framesPublished.reset();
+		drawCalls.reset();
+		collisions.reset();
+		timerTicks.reset();
+		frameTimes.reset();
+		inputLatencies.reset();
+		synchronized (this) {
+			lastSampleNanos = System.nanoTime();
+			lastSampleInstructions = 0;
+		}
+	}
+
+	// Updates the instruction rate from the instructions executed since the
+	// previous sample
+	public synchronized void sample() {
+		long now = System.nanoTime();
+		long count = instructions.sum();
+		if (now > lastSampleNanos)
+			instructionsPerSecond = (count - lastSampleInstructions) * 1000000000L / (now - lastSampleNanos);
+		lastSampleNanos = now;
+		lastSampleInstructions = count;
+	}
+
+	public void register() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+	}
+
+	public void unregister() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+	}
+
+	// Samples and prints a summary line every period on a daemon thread
+	public synchronized void startLogging(long period, TimeUnit unit) {
+		if (logger != null)
+			return;
+
+		logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "chip8-metrics");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		logger.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				sample();
+				System.out.println(summary());
+			}
+		}, period, period, unit);
+	}
+
+	public synchronized void stopLogging() {
+		if (logger != null) {
+			logger.shutdown();
+			logger = null;
+		}
+	}
+
+	public String summary() {
+		return String.format(
+				"metrics: %d instructions (%d/s), %d frames, %d draws, %d collisions, %d ticks, "
+						+ "frame time p50 %.2f ms p99 %.2f ms max %.2f ms, input latency p99 %.2f ms",
+				getInstructions(), getInstructionsPerSecond(), getFramesPublished(), getDrawCalls(),
+				getCollisions(), getTimerTicks(), getFrameTimeP50Micros() / 1e3, getFrameTimeP99Micros() / 1e3,
+				getFrameTimeMaxMicros() / 1e3, getInputLatencyP99Micros() / 1e3);
+	}
+}
@@ -0,0 +1,40 @@
+package com.chip8emu.main;
+
+/**
+ * JMX view of {@link Chip8Metrics}. Frame times and input latencies are in
+ * microseconds.
+ */
+public interface Chip8MetricsMBean {
+	long getInstructions();
+
+	long getInstructionsPerSecond();
+
+	// Instructions per high opcode nibble, index 0xD counts DXYN
+	long[] getOpcodeFamilyCounts();
+
+	long getFramesPublished();
+
+	long getDrawCalls();
+
+	long getCollisions();
+
+	long getTimerTicks();
+
+	long getFrameTimeCount();
+
+	double getFrameTimeMeanMicros();
+
+	double getFrameTimeP50Micros();
+
+	double getFrameTimeP99Micros();
+
+	double getFrameTimeMaxMicros();
+
+	long getInputEvents();
+
+	double getInputLatencyP99Micros();
+
+	double getInputLatencyMaxMicros();
+
+	void reset();
+}
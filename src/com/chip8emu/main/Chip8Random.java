@@ -0,0 +1,62 @@
+package com.chip8emu.main;
+
+import java.util.Random;
+
+/**
+ * SplitMix64 generator for CXNN. Its whole state is one long, so it is part
+ * of the save state, and split() derives an independent generator, for
+ * example one per run of a parallel experiment. Extends Random so the usual
+ * bounded draws are available. Not thread safe, it is only used by the
+ * thread running the interpreter.
+ */
+public class Chip8Random extends Random {
+	private static final long serialVersionUID = 2L;
+
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	// Assigned by setSeed, which Random calls before field initializers run
+	private long state;
+
+	public Chip8Random() {
+		super();
+	}
+
+	public Chip8Random(long seed) {
+		super(seed);
+	}
+
+	@Override
+	public void setSeed(long seed) {
+		super.setSeed(seed);
+		state = seed;
+	}
+
+	public long getState() {
+		return state;
+	}
+
+	public void setState(long state) {
+		this.state = state;
+	}
+
+	// New generator whose sequence is independent of the rest of this one
+	public Chip8Random split() {
+		return new Chip8Random(mix64(nextLong() ^ GOLDEN_GAMMA));
+	}
+
+	@Override
+	public long nextLong() {
+		return mix64(state += GOLDEN_GAMMA);
+	}
+
+	@Override
+	protected int next(int bits) {
+		return (int) (mix64(state += GOLDEN_GAMMA) >>> (64 - bits));
+	}
+
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,44 @@
+package com.chip8emu.main;
+
+import java.util.Locale;
+
+// Machine a core emulates, the default can be set with -Dchip8.variant=<name>
+public enum Chip8Variant {
+	// 64x32, 4 KB, sprites wrap around the edges
+	CHIP8(4096, 1, false),
+	// SUPER-CHIP 1.1: 128x64 hires mode, scrolling, 16x16 sprites, the big
+	// font and RPL flags. Sprites are clipped at the edges. Scrolls move
+	// pixels of the current resolution, in lores too, like Octo
+	SCHIP(4096, 1, true),
+	// XO-CHIP: SUPER-CHIP plus 64 KB, two bitplanes, F000 NNNN, register
+	// ranges and audio patterns. Sprites wrap, scrolls as SUPER-CHIP
+	XOCHIP(65536, 2, false);
+
+	final int ramSize;
+	final int planes;
+	final boolean clipSprites;
+
+	private Chip8Variant(int ramSize, int planes, boolean clipSprites) {
+		this.ramSize = ramSize;
+		this.planes = planes;
+		this.clipSprites = clipSprites;
+	}
+
+	public int getRamSize() {
+		return ramSize;
+	}
+
+	public int getPlanes() {
+		return planes;
+	}
+
+	// By the extensions Octo uses, .sc8 and .xo8. Null for anything else
+	public static Chip8Variant forFileName(String name) {
+		String lowerName = name.toLowerCase(Locale.ROOT);
+		if (lowerName.endsWith(".sc8"))
+			return SCHIP;
+		if (lowerName.endsWith(".xo8"))
+			return XOCHIP;
+		return null;
+	}
+}
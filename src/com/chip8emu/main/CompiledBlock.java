@@ -0,0 +1,99 @@
+package com.chip8emu.main;
+
+/**
+ * Base class of the classes the JIT generates for hot basic blocks. The
+ * protected helpers are the slow paths compiled code calls back into. Helpers
+ * that can fail store the address following their instruction first, so the
+ * core can account for a block that was only partially executed.
+ */
+public abstract class CompiledBlock {
+	// First instruction pointer of the block
+	final int start;
+	// Number of CHIP-8 instructions in the block
+	final int length;
+	// One past the last ram byte the block was compiled from
+	final int end;
+
+	protected CompiledBlock(int start, int length) {
+		this.start = start;
+		this.length = length;
+		this.end = start + 2 * length + 1;
+	}
+
+	// Executes the block, or only its first budget instructions when that
+	// is less than its length. Returns the instruction pointer following the
+	// last instruction executed
+	public abstract int execute(Chip8InterpreterCore core, byte[] vRegisters, int budget);
+
+	protected static void setAddress(Chip8InterpreterCore core, int address) {
+		core.addrRegister = address;
+	}
+
+	protected static void addAddress(Chip8InterpreterCore core, int value) {
+		core.addrRegister += value;
+	}
+
+	protected static void fontAddress(Chip8InterpreterCore core, int value) {
+		core.addrRegister = (value & 0xFF) * 5 - 1;
+	}
+
+	protected static int delayTimer(Chip8InterpreterCore core) {
+		return core.delayTimer;
+	}
+
+	protected static void setDelayTimer(Chip8InterpreterCore core, int value) {
+		core.delayTimer = (byte) value;
+	}
+
+	protected static void setSoundTimer(Chip8InterpreterCore core, int value) {
+		core.soundTimer = (byte) value;
+	}
+
+	protected static int random(Chip8InterpreterCore core, int mask) {
+		return mask & core.random.nextInt(0xFF);
+	}
+
+	protected static void clearScreen(Chip8InterpreterCore core) {
+		core.clearScreen();
+	}
+
+	protected static void drawSprite(Chip8InterpreterCore core, int next, int x, int y, int height) {
+		core.instructionPointer = next;
+		core.drawSprite(x, y, height);
+	}
+
+	protected static void loadRegisters(Chip8InterpreterCore core, int next, int count) {
+		core.instructionPointer = next;
+		core.loadRegisters(count);
+	}
+
+	protected static void storeRegisters(Chip8InterpreterCore core, int next, int count) {
+		core.instructionPointer = next;
+		core.storeRegisters(count);
+	}
+
+	protected static void storeBcd(Chip8InterpreterCore core, int next, int value) {
+		core.instructionPointer = next;
+		core.storeBcd((byte) value);
+	}
+
+	protected static int getInput(Chip8InterpreterCore core, int next, int key) {
+		core.instructionPointer = next;
+		return core.getInput(key);
+	}
+
+	protected static void awaitKey(Chip8InterpreterCore core, int register) {
+		core.beginKeyWait(register);
+	}
+
+	protected static int call(Chip8InterpreterCore core, int next, int target) {
+		core.instructionPointer = next;
+		core.pushStack(next);
+		return target;
+	}
+
+	protected static int ret(Chip8InterpreterCore core, int next) {
+		core.instructionPointer = next;
+		return core.popStack();
+	}
+}
@@ -2,14 +2,24 @@ package com.chip8emu.main;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.IntBuffer;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.sound.sampled.LineUnavailableException;
 
 import javax.swing.JFileChooser;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
 import org.newdawn.slick.*;
 
 public class EmuMain extends BasicGame {
@@ -27,64 +37,155 @@ public class EmuMain extends BasicGame {
 	}
 
 	private final static short CHIP8_DISPLAY_SCALE = 16;
+	// Held to rewind, one frame per frame
+	private final static int REWIND_KEY = Input.KEY_BACK;
+	// + and - change the emulated clock speed by one instruction per frame
+	private final static int INSTRUCTIONS_PER_SECOND_STEP = Chip8InterpreterCore.TIMER_HZ;
+	// Cycles through the fast forward multipliers
+	private final static int TURBO_KEY = Input.KEY_TAB;
+	private final static int[] TURBO_SPEEDS = { 1, 2, 4, 8, Chip8InterpreterCore.SPEED_UNCAPPED };
+	// Starts and stops capturing frames to chip8-<time>.c8f, see FrameCapture
+	private final static int CAPTURE_KEY = Input.KEY_F9;
+	// F8 stops and continues, F10 steps over, F11 into and F12 out of
+	// subroutines, see Chip8Debugger
+	private final static int DEBUG_PAUSE_KEY = Input.KEY_F8;
+	private final static int STEP_OVER_KEY = Input.KEY_F10;
+	private final static int STEP_INTO_KEY = Input.KEY_F11;
+	private final static int STEP_OUT_KEY = Input.KEY_F12;
+	private final static long SPEED_SAMPLE_NANOS = 500000000L;
+	private final static String LIBRARY_INDEX_NAME = ".chip8-library";
 
 	private Chip8InterpreterCore interpreter;
-	private Map<Integer, Integer> acceptedKeyMapping;
-	private byte[] vram_buffer;
-
-	// Dirty quickm hack
-	private int increaseTimer = -1;
-	private int decreaseTimer = -1;
+	private FrameRasterizer rasterizer;
+	private IntBuffer texturePixels;
+	private Image screen;
+	private Chip8Metrics metrics;
+	private long lastRenderNanos;
+	private int turboIndex;
+	// Achieved speed, sampled from the emulated frame count
+	private long speedSampleNanos;
+	private long speedSampleFrames;
+	private String speedText;
+	private KeyMap acceptedKeyMapping;
+	// -Dchip8.record=<file> records every session for InputReplayer
+	private String recordingPath;
+	private InputRecorder recorder;
+	private FrameRecorder frameRecorder;
+	private AudioPipeline audio;
+	// -Dchip8.library=<dir> starts ROMs from a library instead of the file
+	// chooser, F5 moves to the next one
+	private RomLibrary library;
+	private int libraryIndex = -1;
+	// -Dchip8.variant, used for ROMs whose extension does not name one
+	private Chip8Variant defaultVariant;
 
 	public EmuMain(String gameName) {
 		super(gameName);
 
 		this.interpreter = new Chip8InterpreterCore();
-		this.acceptedKeyMapping = new HashMap<>();
-
-		// Setup input
-		acceptedKeyMapping.put(Input.KEY_1, 0x0);
-		acceptedKeyMapping.put(Input.KEY_2, 0x1);
-		acceptedKeyMapping.put(Input.KEY_3, 0x2);
-		acceptedKeyMapping.put(Input.KEY_4, 0x3);
-		acceptedKeyMapping.put(Input.KEY_Q, 0x4);
-		acceptedKeyMapping.put(Input.KEY_W, 0x5);
-		acceptedKeyMapping.put(Input.KEY_E, 0x6);
-		acceptedKeyMapping.put(Input.KEY_R, 0x7);
-		acceptedKeyMapping.put(Input.KEY_A, 0x8);
-		acceptedKeyMapping.put(Input.KEY_S, 0x9);
-		acceptedKeyMapping.put(Input.KEY_D, 0xA);
-		acceptedKeyMapping.put(Input.KEY_F, 0xB);
-		acceptedKeyMapping.put(Input.KEY_Y, 0xC);
-		acceptedKeyMapping.put(Input.KEY_X, 0xD);
-		acceptedKeyMapping.put(Input.KEY_C, 0xE);
-		acceptedKeyMapping.put(Input.KEY_V, 0xF);
+		this.defaultVariant = interpreter.getVariant();
+		// Rasterized at hires resolution, the GPU scales the texture
+		this.rasterizer = new FrameRasterizer(Chip8InterpreterCore.HIRES_DISPLAY_WIDTH,
+				Chip8InterpreterCore.HIRES_DISPLAY_HEIGHT, 1);
+		rasterizer.setPersistence(Float.parseFloat(System.getProperty("chip8.persistence", "0")));
+		this.texturePixels = BufferUtils.createIntBuffer(rasterizer.getWidth() * rasterizer.getHeight());
+		interpreter.setInstructionsPerSecond(
+				Integer.getInteger("chip8.instructionsPerSecond", interpreter.getInstructionsPerSecond()));
+		this.recordingPath = System.getProperty("chip8.record");
+		// -Dchip8.seed=<n> runs deterministically with the given CXNN seed
+		if (System.getProperty("chip8.seed") != null) {
+			interpreter.setDeterministic(true);
+			interpreter.setRandomSeed(Long.getLong("chip8.seed"));
+		}
+		interpreter.setRewindBuffer(new RewindBuffer(Integer.getInteger("chip8.rewindKilobytes", 16 * 1024) * 1024,
+				Integer.getInteger("chip8.rewindFrames", 5 * 60 * 60)));
+
+		openAudio(System.getProperty("chip8.audio", "sound"));
+
+		// -Dchip8.breakpoints=<hex address>,... stops at these instructions
+		Chip8Debugger debugger = interpreter.getDebugger();
+		debugger.setListener(new Chip8Debugger.Listener() {
+			@Override
+			public void stopped(Chip8InterpreterCore core, Chip8Debugger.StopReason reason) {
+				printStop(core, reason);
+			}
+		});
+		String breakpoints = System.getProperty("chip8.breakpoints");
+		if (breakpoints != null)
+			for (String address : breakpoints.split(","))
+				debugger.addBreakpoint(Integer.parseInt(address.trim(), 16));
+
+		String libraryRoot = System.getProperty("chip8.library");
+		if (libraryRoot != null)
+			openLibrary(Paths.get(libraryRoot));
+
+		// -Dchip8.metrics=true enables the JMX bean and a periodic log line
+		if (Boolean.getBoolean("chip8.metrics")) {
+			metrics = new Chip8Metrics();
+			interpreter.setMetrics(metrics);
+			try {
+				metrics.register();
+			} catch (JMException e) {
+				e.printStackTrace();
+			}
+			metrics.startLogging(Integer.getInteger("chip8.metricsLogSeconds", 10), TimeUnit.SECONDS);
+		}
+
+		// Setup input, CHIP-8 keys 0x0 to 0xF
+		this.acceptedKeyMapping = new KeyMap(Input.KEY_1, Input.KEY_2, Input.KEY_3, Input.KEY_4, Input.KEY_Q,
+				Input.KEY_W, Input.KEY_E, Input.KEY_R, Input.KEY_A, Input.KEY_S, Input.KEY_D, Input.KEY_F,
+				Input.KEY_Y, Input.KEY_X, Input.KEY_C, Input.KEY_V);
 	}
 
 	@Override
 	public void render(GameContainer gc, Graphics g) throws SlickException {
-		// Retrieve new VRAM buffer only when interpreter has drawn
-		if (interpreter.hasDrawn())
-			vram_buffer = interpreter.getVRAM();
-
-		if (vram_buffer != null)
-			synchronized (vram_buffer) {
-				// for each bit
-				for (int y = 0; y < 32; y++) {
-					for (int x = 0; x < 64; x++) {
-						if (vram_buffer[x + y * 64] != 0) {
-							g.fillRect(x * CHIP8_DISPLAY_SCALE, y * CHIP8_DISPLAY_SCALE, CHIP8_DISPLAY_SCALE,
-									CHIP8_DISPLAY_SCALE);
-						}
-
-					}
-				}
-			}
+		if (metrics != null) {
+			long now = System.nanoTime();
+			if (lastRenderNanos != 0)
+				metrics.recordFrameTime(now - lastRenderNanos);
+			lastRenderNanos = now;
+		}
+
+		// Latest complete frame, the interpreter keeps running meanwhile
+		FrameExchange.Frame frame = interpreter.acquireFrame();
 
+		if (frame == null)
+			return;
+
+		// One texture upload and one quad per frame
+		texturePixels.clear();
+		texturePixels.put(rasterizer.rasterize(frame, interpreter.getFrameCount())).flip();
+		screen.getTexture().bind();
+		GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, 0, 0, rasterizer.getWidth(), rasterizer.getHeight(), GL12.GL_BGRA,
+				GL12.GL_UNSIGNED_INT_8_8_8_8_REV, texturePixels);
+		screen.draw(0, 0, Chip8InterpreterCore.CHIP8_DISPLAY_WIDTH * CHIP8_DISPLAY_SCALE,
+				Chip8InterpreterCore.CHIP8_DISPLAY_HEIGHT * CHIP8_DISPLAY_SCALE);
+
+		if (interpreter.getSpeed() != 1) {
+			updateSpeedText();
+			g.setColor(Color.red);
+			g.drawString(speedText, 10, 10);
+		}
+	}
+
+	private void updateSpeedText() {
+		long now = System.nanoTime();
+		if (speedText != null && now - speedSampleNanos < SPEED_SAMPLE_NANOS)
+			return;
+
+		long frames = interpreter.getFrameCount();
+		double achieved = speedText == null ? 0
+				: (frames - speedSampleFrames) * 1e9 / (now - speedSampleNanos) / Chip8InterpreterCore.TIMER_HZ;
+		int speed = interpreter.getSpeed();
+		speedText = String.format("%s %.1fx", speed == Chip8InterpreterCore.SPEED_UNCAPPED ? "Uncapped" : speed + "x",
+				achieved);
+		speedSampleNanos = now;
+		speedSampleFrames = frames;
 	}
 
 	@Override
 	public void init(GameContainer gc) throws SlickException {
+		screen = new Image(rasterizer.getWidth(), rasterizer.getHeight(), Image.FILTER_NEAREST);
 		programChange();
 
 		// Setup input listening
@@ -93,53 +194,148 @@ public class EmuMain extends BasicGame {
 
 	@Override
 	public void update(GameContainer gc, int delta) throws SlickException {
-		if (interpreter.isProgramLoaded())
-			interpreter.tick();
-
-		if (increaseTimer != -1)
-			increaseTimer++;
-		if (decreaseTimer != -1)
-			decreaseTimer++;
-
-		if (decreaseTimer % 100 == 0) {
-			interpreter.CHIP8_CLOCK_DELAY_TIME++;
-			decreaseTimer = 0;
-		}
-		if (increaseTimer % 100 == 0) {
-			interpreter.CHIP8_CLOCK_DELAY_TIME = interpreter.CHIP8_CLOCK_DELAY_TIME >= 1
-					? interpreter.CHIP8_CLOCK_DELAY_TIME - 1 : 0;
-			increaseTimer = 0;
-		}
+		// The interpreter thread keeps its own 60 Hz clock
 	}
 
 	@Override
 	public void keyPressed(int key, char c) {
-		if (acceptedKeyMapping.containsKey(key))
-			interpreter.inputPressed(acceptedKeyMapping.get(key));
+		int chip8Key = acceptedKeyMapping.get(key);
+		if (chip8Key != KeyMap.UNMAPPED)
+			interpreter.inputPressed(chip8Key);
 
 		if (key == Input.KEY_F5)
 			programChange();
 
-		if (c == '+') {
-			increaseTimer = 0;
-			interpreter.CHIP8_CLOCK_DELAY_TIME = interpreter.CHIP8_CLOCK_DELAY_TIME >= 1
-					? interpreter.CHIP8_CLOCK_DELAY_TIME - 1 : 0;
+		// Recordings cover uninterrupted sessions
+		if (key == REWIND_KEY && recorder == null)
+			interpreter.setRewinding(true);
+
+		if (key == CAPTURE_KEY)
+			toggleCapture();
+
+		Chip8Debugger debugger = interpreter.getDebugger();
+		if (key == DEBUG_PAUSE_KEY) {
+			if (debugger.isStopped())
+				debugger.resume();
+			else
+				debugger.pause();
 		}
-		if (c == '-') {
-			decreaseTimer = 0;
-			interpreter.CHIP8_CLOCK_DELAY_TIME++;
+		if (key == STEP_OVER_KEY)
+			debugger.stepOver();
+		if (key == STEP_INTO_KEY)
+			debugger.stepInto();
+		if (key == STEP_OUT_KEY)
+			debugger.stepOut();
+
+		if (key == TURBO_KEY) {
+			turboIndex = (turboIndex + 1) % TURBO_SPEEDS.length;
+			interpreter.setSpeed(TURBO_SPEEDS[turboIndex]);
+			speedText = null;
 		}
+
+		if (c == '+')
+			changeInstructionsPerSecond(INSTRUCTIONS_PER_SECOND_STEP);
+		if (c == '-')
+			changeInstructionsPerSecond(-INSTRUCTIONS_PER_SECOND_STEP);
 	}
 
 	@Override
 	public void keyReleased(int key, char c) {
-		if (acceptedKeyMapping.containsKey(key))
-			interpreter.inputReleased(acceptedKeyMapping.get(key));
+		int chip8Key = acceptedKeyMapping.get(key);
+		if (chip8Key != KeyMap.UNMAPPED)
+			interpreter.inputReleased(chip8Key);
 
-		if (c == '+')
-			increaseTimer = -1;
-		if (c == '-')
-			decreaseTimer = -1;
+		if (key == REWIND_KEY && recorder == null) {
+			interpreter.setRewinding(false);
+			System.out.println("Rewind: " + interpreter.getRewindBuffer());
+		}
+	}
+
+	// Called on the interpreter thread
+	private static void printStop(Chip8InterpreterCore core, Chip8Debugger.StopReason reason) {
+		StringBuilder registers = new StringBuilder();
+		for (int i = 0; i < 16; i++)
+			registers.append(String.format(" %02X", core.getRegister(i)));
+		System.out.println(String.format("%s at %03X:%s I %03X SP %d DT %d ST %d", reason,
+				core.getInstructionPointer(), registers, core.getAddressRegister(), core.getStackPointer(),
+				core.getDelayTimer(), core.getSoundTimer()));
+	}
+
+	private void changeInstructionsPerSecond(int delta) {
+		interpreter.setInstructionsPerSecond(Math.max(interpreter.getInstructionsPerSecond() + delta, 0));
+		System.out.println("Speed: " + interpreter.getInstructionsPerSecond() + " instructions per second");
+	}
+
+	@Override
+	public boolean closeRequested() {
+		try {
+			interpreter.halt();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		stopRecording();
+		if (frameRecorder != null)
+			toggleCapture();
+		closeAudio();
+		return true;
+	}
+
+	// -Dchip8.audio=sound plays through the sound card, none mutes and a
+	// path ending in .wav writes the audio to that file
+	private void openAudio(String target) {
+		AudioSink sink;
+		try {
+			if (target.equals("none"))
+				return;
+			if (target.toLowerCase(Locale.ROOT).endsWith(".wav"))
+				sink = new WavFileSink(Paths.get(target));
+			else
+				sink = new JavaSoundSink();
+		} catch (IOException | LineUnavailableException e) {
+			System.err.println("No audio: " + e.getMessage());
+			return;
+		}
+		audio = new AudioPipeline(sink);
+		interpreter.setAudio(audio);
+	}
+
+	private void closeAudio() {
+		if (audio == null)
+			return;
+
+		interpreter.setAudio(null);
+		AudioSink sink = audio.getSink();
+		try {
+			sink.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (sink instanceof JavaSoundSink) {
+			JavaSoundSink sound = (JavaSoundSink) sink;
+			System.out.printf("Audio: %d frames, %d overruns, %d underruns, max latency %.1f ms%n",
+					audio.getFrames(), sound.getOverruns(), sound.getUnderruns(), sound.getMaxLatencyNanos() / 1e6);
+		}
+		audio = null;
+	}
+
+	private void toggleCapture() {
+		try {
+			if (frameRecorder == null) {
+				Path path = Paths.get(String.format("chip8-%d.c8f", System.currentTimeMillis()));
+				frameRecorder = new FrameRecorder(path);
+				interpreter.setFrameRecorder(frameRecorder);
+				System.out.println("Capturing frames to " + path);
+			} else {
+				interpreter.setFrameRecorder(null);
+				frameRecorder.close();
+				System.out.println("Captured " + frameRecorder.getFramesWritten() + " frames, "
+						+ frameRecorder.getDropped() + " dropped");
+				frameRecorder = null;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			frameRecorder = null;
+		}
 	}
 
 	private void programChange() {
@@ -148,24 +344,101 @@ public class EmuMain extends BasicGame {
 		} catch (InterruptedException e1) {
 			e1.printStackTrace();
 		}
+		stopRecording();
 
 		try {
 			if (!loadProgram())
 				System.exit(-1);
+			// Decoded and, in JIT mode, compiled before the first frame
+			interpreter.prewarm();
+			rasterizer.reset();
+			if (recordingPath != null) {
+				recorder = new InputRecorder(Paths.get(recordingPath));
+				interpreter.startRecording(recorder);
+			}
 			interpreter.run();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	private void stopRecording() {
+		if (recorder == null)
+			return;
+
+		interpreter.stopRecording();
+		try {
+			recorder.close();
+			System.out.println("Recorded " + recorder.getFrames() + " frames and " + recorder.getKeyEvents()
+					+ " key events to " + recordingPath);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		recorder = null;
+	}
+
+	private void openLibrary(Path root) {
+		try {
+			library = new RomLibrary(root.resolve(LIBRARY_INDEX_NAME));
+			long start = System.nanoTime();
+			int hashed = library.refresh(Collections.singletonList(root));
+			System.out.printf("Library: %d ROMs, %d hashed in %.1f ms%n", library.getEntries().size(), hashed,
+					(System.nanoTime() - start) / 1e6);
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+			library = null;
+		}
+	}
+
 	private boolean loadProgram() throws IOException {
+		if (library != null && !library.getEntries().isEmpty())
+			return loadLibraryProgram();
+
 		final JFileChooser fc = new JFileChooser();
-		fc.setCurrentDirectory(new File("S:\\eclipse\\workspace-github-emu\\Chip-8 Pack"));
-		fc.setFileFilter(new FileNameExtensionFilter("Chip-8 ROM", "ch8"));
-		if (fc.showOpenDialog(null) == JFileChooser.APPROVE_OPTION)
+		fc.setCurrentDirectory(new File(System.getProperty("user.dir")));
+		fc.setFileFilter(new FileNameExtensionFilter("Chip-8 ROM", "ch8", "sc8", "xo8"));
+		if (fc.showOpenDialog(null) == JFileChooser.APPROVE_OPTION) {
+			selectVariant(fc.getSelectedFile().getName());
 			return interpreter.loadCode(Files.readAllBytes(Paths.get(fc.getSelectedFile().getAbsolutePath())));
+		} else
+			return false;
+	}
+
+	private void selectVariant(String romName) {
+		Chip8Variant variant = Chip8Variant.forFileName(romName);
+		interpreter.setVariant(variant != null ? variant : defaultVariant);
+	}
+
+	// -Dchip8.rom=<name or hex hash> picks the first ROM, otherwise the
+	// library is started from the top
+	private boolean loadLibraryProgram() throws IOException {
+		List<RomLibrary.Entry> entries = library.getEntries();
+		String rom = System.getProperty("chip8.rom");
+		if (libraryIndex < 0 && rom != null)
+			libraryIndex = entries.indexOf(findRom(rom));
 		else
+			libraryIndex = (libraryIndex + 1) % entries.size();
+		if (libraryIndex < 0) {
+			System.err.println("No ROM matches " + rom);
 			return false;
+		}
+
+		RomLibrary.Entry entry = entries.get(libraryIndex);
+		System.out.println("Loading " + entry);
+		selectVariant(entry.name);
+		return library.load(interpreter, entry);
+	}
+
+	private RomLibrary.Entry findRom(String rom) {
+		try {
+			RomLibrary.Entry entry = library.findByHash(Long.parseUnsignedLong(rom, 16));
+			if (entry != null)
+				return entry;
+		} catch (NumberFormatException e) {
+			// Not a hash, try the name
+		}
+		List<RomLibrary.Entry> found = library.find(rom);
+		return found.isEmpty() ? null : found.get(0);
 	}
 
 }
@@ -0,0 +1,11 @@
+package com.chip8emu.main;
+
+// Selected per core, the default can be set with -Dchip8.executionMode=<name>
+public enum ExecutionMode {
+	// Fetches and decodes every opcode through the nested reference switch
+	INTERPRETER,
+	// Executes from a cache of pre-decoded instructions and superinstructions
+	DECODED,
+	// Compiles hot basic blocks to JVM bytecode, cold code runs DECODED
+	JIT
+}
@@ -0,0 +1,55 @@
+package com.chip8emu.main;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Store and load fences for plain accesses, such as those of buffers, which
+ * the Java memory model does not order. The fences of VarHandle are looked up
+ * at runtime, so the code still builds for Java 8, and a Java 8 runtime falls
+ * back to the same fences of sun.misc.Unsafe, looked up by name as well.
+ */
+final class Fences {
+	private static final MethodHandle STORE_FENCE = find("storeFence");
+	private static final MethodHandle LOAD_FENCE = find("loadFence");
+
+	private Fences() {
+	}
+
+	// No store before it is reordered with any store after it
+	static void storeFence() {
+		try {
+			STORE_FENCE.invokeExact();
+		} catch (Throwable e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	// No load before it is reordered with any load after it
+	static void loadFence() {
+		try {
+			LOAD_FENCE.invokeExact();
+		} catch (Throwable e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static MethodHandle find(String name) {
+		MethodType type = MethodType.methodType(void.class);
+		try {
+			return MethodHandles.publicLookup().findStatic(Class.forName("java.lang.invoke.VarHandle"), name, type);
+		} catch (ReflectiveOperationException e) {
+			// Java 8
+		}
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			return MethodHandles.publicLookup().findVirtual(unsafeClass, name, type).bindTo(field.get(null));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+}
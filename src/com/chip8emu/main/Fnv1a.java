@@ -0,0 +1,52 @@
+package com.chip8emu.main;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 64 bit FNV-1a, the hash used for ROM identities and framebuffer hashes in
+ * reports and input recordings. Fast and stable across versions, not meant
+ * to resist deliberate collisions.
+ */
+public final class Fnv1a {
+	private static final long OFFSET_BASIS = 0xCBF29CE484222325L;
+	private static final long PRIME = 0x100000001B3L;
+
+	private Fnv1a() {
+	}
+
+	public static long hash(byte[] data, int offset, int length) {
+		long hash = OFFSET_BASIS;
+		for (int i = offset; i < offset + length; i++) {
+			hash ^= data[i] & 0xFF;
+			hash *= PRIME;
+		}
+		return hash;
+	}
+
+	// Over the remaining bytes, the buffer position is left unchanged
+	public static long hash(ByteBuffer data) {
+		long hash = OFFSET_BASIS;
+		for (int i = data.position(); i < data.limit(); i++) {
+			hash ^= data.get(i) & 0xFF;
+			hash *= PRIME;
+		}
+		return hash;
+	}
+
+	// Over the big endian bytes of the packed rows
+	public static long hash(long[] rows) {
+		long hash = OFFSET_BASIS;
+		for (int i = 0; i < rows.length; i++) {
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				hash ^= (rows[i] >>> shift) & 0xFF;
+				hash *= PRIME;
+			}
+		}
+		return hash;
+	}
+
+	// 32 bit hash for places storing one per frame
+	public static int fold(long hash) {
+		return (int) (hash ^ (hash >>> 32));
+	}
+}
@@ -0,0 +1,255 @@
+package com.chip8emu.main;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Locale;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Reads a capture written by {@link FrameRecorder} frame by frame and converts
+ * it offline to an animated GIF, timed by the emulated frame numbers, or to
+ * a numbered PNG sequence. A capture cut short by a crash ends at its last
+ * complete frame.
+ */
+public final class FrameCapture {
+	private static final int DEFAULT_SCALE = 4;
+	// GIF delays are in hundredths of a second, most viewers show shorter
+	// ones as 1/10 s, so such frames are merged into the next one
+	private static final int MIN_GIF_DELAY = 2;
+	private static final int LAST_GIF_DELAY = 100;
+
+	private final ByteBuffer capture;
+	private final long[] vram = new long[Chip8InterpreterCore.VRAM_SIZE];
+	private long frame = -1;
+	private int width = Chip8InterpreterCore.CHIP8_DISPLAY_WIDTH;
+	private int height = Chip8InterpreterCore.CHIP8_DISPLAY_HEIGHT;
+
+	public static void main(String[] argv) throws IOException {
+		if (argv.length < 2) {
+			System.err.println("Usage: FrameCapture <capture> <output.gif | png directory> [scale=" + DEFAULT_SCALE
+					+ "]");
+			System.exit(-1);
+		}
+
+		Path output = Paths.get(argv[1]);
+		int scale = argv.length > 2 ? Integer.parseInt(argv[2]) : DEFAULT_SCALE;
+		FrameRasterizer rasterizer = new FrameRasterizer(Chip8InterpreterCore.HIRES_DISPLAY_WIDTH,
+				Chip8InterpreterCore.HIRES_DISPLAY_HEIGHT, scale);
+		FrameCapture capture = open(Paths.get(argv[0]));
+		int frames = output.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".gif")
+				? capture.writeGif(output, rasterizer)
+				: capture.writePngs(output, "frame", rasterizer);
+		System.out.println(String.format("%d frames -> %s", frames, output));
+	}
+
+	private FrameCapture(ByteBuffer capture) throws IOException {
+		this.capture = capture;
+		try {
+			if (capture.getInt() != FrameRecorder.MAGIC)
+				throw new IOException("Not a frame capture");
+			int version = capture.getInt();
+			if (version != FrameRecorder.VERSION)
+				throw new IOException("Unsupported frame capture version " + version);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated frame capture", e);
+		}
+	}
+
+	public static FrameCapture open(Path path) throws IOException {
+		return new FrameCapture(ByteBuffer.wrap(Files.readAllBytes(path)));
+	}
+
+	// Decodes the next frame, returns false at the end of the capture
+	public boolean next() {
+		if (!capture.hasRemaining())
+			return false;
+
+		int start = capture.position();
+		try {
+			long nextFrame = frame + 1 + readVarLong();
+			int nextWidth = capture.get() & 0xFF;
+			int nextHeight = capture.get() & 0xFF;
+			long rows = capture.getLong();
+			// Decoded in place, a truncated record is undone below
+			for (int y = 0; y < FrameRecorder.ROWS; y++)
+				if ((rows & (1L << y)) != 0)
+					readRow(y);
+			frame = nextFrame;
+			width = nextWidth;
+			height = nextHeight;
+			return true;
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			undo(start);
+			return false;
+		}
+	}
+
+	// Emulated frame number of the current frame
+	public long getFrame() {
+		return frame;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	// Current frame laid out like the VRAM of the core
+	public long[] getVRAM() {
+		return vram;
+	}
+
+	// Writes the remaining frames as an endlessly looping GIF, returns the
+	// number of frames written
+	public int writeGif(Path file, FrameRasterizer rasterizer) throws IOException {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("gif");
+		if (!writers.hasNext())
+			throw new IOException("No GIF writer available");
+		ImageWriter writer = writers.next();
+
+		// Each frame is written once the next one tells how long it lasts
+		BufferedImage pending = newImage(rasterizer);
+		BufferedImage decoded = newImage(rasterizer);
+		long first = -1;
+		long writtenCentiseconds = 0;
+		int written = 0;
+		Files.deleteIfExists(file);
+		try (ImageOutputStream out = ImageIO.createImageOutputStream(file.toFile())) {
+			writer.setOutput(out);
+			writer.prepareWriteSequence(null);
+			while (next()) {
+				rasterize(rasterizer, decoded);
+				if (first < 0) {
+					first = frame;
+				} else {
+					long centiseconds = (frame - first) * 100 / Chip8InterpreterCore.TIMER_HZ;
+					int delay = (int) (centiseconds - writtenCentiseconds);
+					if (delay >= MIN_GIF_DELAY) {
+						writeGifFrame(writer, pending, delay, written == 0);
+						writtenCentiseconds = centiseconds;
+						written++;
+					}
+				}
+				BufferedImage swap = pending;
+				pending = decoded;
+				decoded = swap;
+			}
+			if (first >= 0) {
+				writeGifFrame(writer, pending, LAST_GIF_DELAY, written == 0);
+				written++;
+			}
+			writer.endWriteSequence();
+		} finally {
+			writer.dispose();
+		}
+		return written;
+	}
+
+	// Writes the remaining frames as numbered PNGs, returns their number
+	public int writePngs(Path directory, String prefix, FrameRasterizer rasterizer) throws IOException {
+		PngFrameSink sink = new PngFrameSink(directory, prefix);
+		while (next())
+			sink.present(rasterizer.rasterize(vram, width, height, frame), rasterizer.getWidth(), rasterizer.getHeight());
+		return sink.getFrameNumber();
+	}
+
+	private void readRow(int y) {
+		int index = y * Chip8InterpreterCore.VRAM_ROW_LONGS;
+		int length = 0;
+		long bits = 0;
+		while (length < FrameRecorder.ROW_BYTES) {
+			int control = capture.get() & 0xFF;
+			int count = control < 0x80 ? control + 1 : control - 0x7E;
+			if (length + count > FrameRecorder.ROW_BYTES)
+				throw new IndexOutOfBoundsException("Row overflow");
+			byte repeated = control < 0x80 ? 0 : capture.get();
+			for (int i = 0; i < count; i++, length++) {
+				bits = (bits << 8) | ((control < 0x80 ? capture.get() : repeated) & 0xFF);
+				if ((length & 7) == 7)
+					vram[index + (length >>> 3)] ^= bits;
+			}
+		}
+	}
+
+	// Decoding XORs, so decoding the same record again restores the frame
+	private void undo(int start) {
+		capture.position(start);
+		try {
+			readVarLong();
+			capture.getShort();
+			long rows = capture.getLong();
+			for (int y = 0; y < FrameRecorder.ROWS; y++)
+				if ((rows & (1L << y)) != 0)
+					readRow(y);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			// Stops at the same byte as the first attempt
+		}
+		capture.position(capture.limit());
+	}
+
+	private long readVarLong() {
+		long value = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = capture.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+	}
+
+	private static BufferedImage newImage(FrameRasterizer rasterizer) {
+		return new BufferedImage(rasterizer.getWidth(), rasterizer.getHeight(), BufferedImage.TYPE_INT_RGB);
+	}
+
+	private void rasterize(FrameRasterizer rasterizer, BufferedImage image) {
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		System.arraycopy(rasterizer.rasterize(vram, width, height, frame), 0, pixels, 0, pixels.length);
+	}
+
+	private static void writeGifFrame(ImageWriter writer, BufferedImage image, int delay, boolean first)
+			throws IOException {
+		IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image),
+				null);
+		String format = metadata.getNativeMetadataFormatName();
+		IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+
+		IIOMetadataNode control = new IIOMetadataNode("GraphicControlExtension");
+		control.setAttribute("disposalMethod", "none");
+		control.setAttribute("userInputFlag", "FALSE");
+		control.setAttribute("transparentColorFlag", "FALSE");
+		control.setAttribute("delayTime", Integer.toString(delay));
+		control.setAttribute("transparentColorIndex", "0");
+		root.appendChild(control);
+
+		if (first) {
+			// NETSCAPE2.0 extension with a loop count of 0, forever
+			IIOMetadataNode extensions = new IIOMetadataNode("ApplicationExtensions");
+			IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+			loop.setAttribute("applicationID", "NETSCAPE");
+			loop.setAttribute("authenticationCode", "2.0");
+			loop.setUserObject(new byte[] { 1, 0, 0 });
+			extensions.appendChild(loop);
+			root.appendChild(extensions);
+		}
+
+		metadata.setFromTree(format, root);
+		writer.writeToSequence(new IIOImage(image, null, metadata), null);
+	}
+}
@@ -0,0 +1,60 @@
+package com.chip8emu.main;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces a loop to a fixed number of frames per second of wall clock time.
+ * Deadlines are absolute, so oversleeping one frame shortens the wait for the
+ * next one instead of accumulating as drift. A loop that falls more than
+ * MAX_LAG_FRAMES behind, for example after the machine was suspended,
+ * resynchronizes instead of running a burst of catch-up frames.
+ */
+public final class FrameClock {
+	private static final int MAX_LAG_FRAMES = 5;
+
+	private final long frameNanos;
+	private long deadline;
+	private long resyncs;
+
+	public FrameClock(int framesPerSecond) {
+		if (framesPerSecond < 1)
+			throw new IllegalArgumentException("Invalid frame rate " + framesPerSecond);
+
+		this.frameNanos = 1000000000L / framesPerSecond;
+		reset();
+	}
+
+	// The next frame is due one frame from now
+	public void reset() {
+		deadline = System.nanoTime() + frameNanos;
+	}
+
+	// Parks until the next frame is due. Returns false when the thread was
+	// interrupted meanwhile, clearing the interrupt
+	public boolean awaitFrame() {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(this, remaining);
+			if (Thread.interrupted())
+				return false;
+		}
+		if (Thread.interrupted())
+			return false;
+
+		if (-remaining > MAX_LAG_FRAMES * frameNanos) {
+			deadline = System.nanoTime();
+			resyncs++;
+		}
+		deadline += frameNanos;
+		return true;
+	}
+
+	public long getFrameNanos() {
+		return frameNanos;
+	}
+
+	// Times the loop fell too far behind and skipped ahead
+	public long getResyncs() {
+		return resyncs;
+	}
+}
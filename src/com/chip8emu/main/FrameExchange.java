@@ -0,0 +1,88 @@
+package com.chip8emu.main;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock free triple buffer handing complete frames from the emulation thread to
+ * a renderer. The writer fills its back buffer and swaps it with the shared
+ * middle buffer, the reader swaps the middle buffer with its front buffer when
+ * a newer frame is available. Neither side ever waits for the other and the
+ * reader always sees a complete frame.
+ */
+public final class FrameExchange {
+	// Bit 2 of the middle state marks a frame the reader has not taken yet
+	private static final int FRESH = 0x4;
+	private static final int INDEX = 0x3;
+
+	/**
+	 * A published frame. It stays unchanged until its reader acquires the next
+	 * frame.
+	 */
+	public static final class Frame {
+		// Laid out like the VRAM of the core
+		final long[] vram;
+		private int width;
+		private int height;
+		private long sequence;
+
+		private Frame(int size) {
+			this.vram = new long[size];
+		}
+
+		// Pixels 64 * word to 64 * word + 63 of row y of a bitplane, the
+		// leftmost one is bit 63
+		public long getPixels(int y, int plane, int word) {
+			return vram[y * Chip8InterpreterCore.VRAM_ROW_LONGS + plane * 2 + word];
+		}
+
+		// Resolution the frame was drawn at
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		// Number of frames published before this one
+		public long getSequence() {
+			return sequence;
+		}
+	}
+
+	private final Frame[] frames;
+	private final AtomicInteger middle;
+	// Writer side
+	private long sequence;
+	private int back;
+	// Reader side
+	private int front;
+	private boolean hasFrame;
+
+	public FrameExchange(int size) {
+		this.frames = new Frame[] { new Frame(size), new Frame(size), new Frame(size) };
+		this.middle = new AtomicInteger(1);
+		this.back = 0;
+		this.front = 2;
+	}
+
+	// Writer side, copies VRAM into the back buffer and publishes it
+	public void publish(long[] vram, int width, int height) {
+		Frame frame = frames[back];
+		System.arraycopy(vram, 0, frame.vram, 0, frame.vram.length);
+		frame.width = width;
+		frame.height = height;
+		frame.sequence = sequence++;
+		back = middle.getAndSet(back | FRESH) & INDEX;
+	}
+
+	// Reader side, returns the latest frame or null if none was published yet
+	public Frame acquire() {
+		if ((middle.get() & FRESH) != 0) {
+			front = middle.getAndSet(front) & INDEX;
+			hasFrame = true;
+		}
+
+		return hasFrame ? frames[front] : null;
+	}
+}
@@ -0,0 +1,196 @@
+package com.chip8emu.main;
+
+/**
+ * Rasterizes packed VRAM rows into a reusable ARGB pixel buffer with integer
+ * scaling. Frames of a lower resolution than the source size, such as lores
+ * frames on a hires raster, are scaled up to it, and each combination of
+ * XO-CHIP bitplanes has its own colour. Optional phosphor persistence keeps a
+ * fading copy of pixels that were switched off, which hides the flicker of
+ * XOR drawn sprites. Nothing is allocated after construction.
+ */
+public final class FrameRasterizer {
+	public static final int DEFAULT_FOREGROUND = 0xFFFFFFFF;
+	public static final int DEFAULT_BACKGROUND = 0xFF000000;
+	// Pixels only set in the second plane, and set in both
+	public static final int DEFAULT_SECOND_PLANE = 0xFF909090;
+	public static final int DEFAULT_BOTH_PLANES = 0xFFC8C8C8;
+
+	// Brightness of a lit pixel, also the size of the palette - 1
+	private static final int FULL_INTENSITY = 0xFF;
+
+	private final int sourceWidth;
+	private final int sourceHeight;
+	private final int scale;
+	private final int width;
+	private final int height;
+
+	// Scaled output, one ARGB int per pixel, row major
+	private final int[] pixels;
+	// Brightness per source pixel, 0 is background and FULL_INTENSITY is lit
+	private final int[] intensity;
+	// Colour per brightness level
+	private final int[] palette;
+	// Colour of a lit pixel per set of planes it is set in
+	private final int[] planeColors;
+
+	private int foreground;
+	private int background;
+	// Fraction of brightness an unlit pixel keeps per frame, in 1/256 steps
+	private int persistence;
+	// Emulated frame of the previous rasterize call, -1 before the first
+	private long lastFrame = -1;
+
+	public FrameRasterizer(int sourceWidth, int sourceHeight, int scale) {
+		if (sourceWidth < 1 || sourceWidth > Chip8InterpreterCore.HIRES_DISPLAY_WIDTH || sourceHeight < 1
+				|| sourceHeight > Chip8InterpreterCore.HIRES_DISPLAY_HEIGHT || scale < 1)
+			throw new IllegalArgumentException("Invalid raster size " + sourceWidth + "x" + sourceHeight + "*" + scale);
+
+		this.sourceWidth = sourceWidth;
+		this.sourceHeight = sourceHeight;
+		this.scale = scale;
+		this.width = sourceWidth * scale;
+		this.height = sourceHeight * scale;
+		this.pixels = new int[width * height];
+		this.intensity = new int[sourceWidth * sourceHeight];
+		this.palette = new int[FULL_INTENSITY + 1];
+		this.planeColors = new int[1 << Chip8InterpreterCore.VRAM_PLANES];
+		setColors(DEFAULT_FOREGROUND, DEFAULT_BACKGROUND);
+		setPlaneColors(DEFAULT_SECOND_PLANE, DEFAULT_BOTH_PLANES);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getScale() {
+		return scale;
+	}
+
+	// The buffer every rasterize call writes into
+	public int[] getPixels() {
+		return pixels;
+	}
+
+	public void setColors(int foreground, int background) {
+		this.foreground = foreground;
+		this.background = background;
+
+		// Linear blend per channel, alpha included
+		for (int level = 0; level <= FULL_INTENSITY; level++) {
+			int argb = 0;
+			for (int shift = 0; shift < 32; shift += 8) {
+				int from = (background >>> shift) & 0xFF;
+				int to = (foreground >>> shift) & 0xFF;
+				argb |= (from + (to - from) * level / FULL_INTENSITY) << shift;
+			}
+			palette[level] = argb;
+		}
+		planeColors[1] = foreground;
+	}
+
+	// Colours of the XO-CHIP planes, the first plane uses the foreground
+	public void setPlaneColors(int second, int both) {
+		planeColors[2] = second;
+		planeColors[3] = both;
+	}
+
+	public int getForeground() {
+		return foreground;
+	}
+
+	public int getBackground() {
+		return background;
+	}
+
+	// 0 switches pixels off immediately, values towards 1 fade them out slower
+	public void setPersistence(float persistence) {
+		if (persistence < 0 || persistence >= 1)
+			throw new IllegalArgumentException("Persistence must be in [0, 1): " + persistence);
+
+		this.persistence = (int) (persistence * 256);
+	}
+
+	public float getPersistence() {
+		return persistence / 256f;
+	}
+
+	// Forgets the fading pixels of earlier frames
+	public void reset() {
+		for (int i = 0; i < intensity.length; i++)
+			intensity[i] = 0;
+		lastFrame = -1;
+	}
+
+	// Each call counts as the emulated frame after the previous one
+	public int[] rasterize(FrameExchange.Frame frame) {
+		return rasterize(frame.vram, frame.getWidth(), frame.getHeight());
+	}
+
+	// For renderers presenting faster than the emulation, frameNumber as
+	// returned by Chip8InterpreterCore.getFrameCount()
+	public int[] rasterize(FrameExchange.Frame frame, long frameNumber) {
+		return rasterize(frame.vram, frame.getWidth(), frame.getHeight(), frameNumber);
+	}
+
+	public int[] rasterize(long[] vram, int frameWidth, int frameHeight) {
+		return rasterize(vram, frameWidth, frameHeight, lastFrame + 1);
+	}
+
+	// VRAM laid out as Chip8InterpreterCore.getVRAM() of a frameWidth x
+	// frameHeight screen, which has to scale to the source size evenly.
+	// Fading pixels decay once per emulated frame since the previous call,
+	// not at all when called again for the same frame
+	public int[] rasterize(long[] vram, int frameWidth, int frameHeight, long frameNumber) {
+		int factor = sourceWidth / frameWidth;
+		if (factor < 1 || frameWidth * factor != sourceWidth || frameHeight * factor != sourceHeight)
+			throw new IllegalArgumentException("Frame " + frameWidth + "x" + frameHeight + " does not scale to "
+					+ sourceWidth + "x" + sourceHeight);
+
+		// Frames going back, after a reset or rewind, count as one frame
+		long elapsed = lastFrame < 0 || frameNumber < lastFrame ? 1 : frameNumber - lastFrame;
+		lastFrame = frameNumber;
+		// persistence^elapsed, which reaches 0 after at most 256 steps
+		int decay = 256;
+		for (long i = 0; i < elapsed && decay != 0; i++)
+			decay = (decay * persistence) >>> 8;
+
+		for (int y = 0; y < frameHeight; y++)
+			rasterizeRow(y, vram, y * Chip8InterpreterCore.VRAM_ROW_LONGS, frameWidth, factor, decay);
+
+		return pixels;
+	}
+
+	private void rasterizeRow(int y, long[] vram, int row, int frameWidth, int factor, int decay) {
+		int size = factor * scale;
+		int line = y * size * width;
+		int p = line;
+		int source = y * factor * sourceWidth;
+
+		for (int x = 0; x < frameWidth; x++, source += factor) {
+			// Pixel x is bit 63 - (x & 63) of both planes, shifted into bit 0
+			int word = row + (x >>> 6);
+			int shift = x & 63;
+			int planes = (int) ((vram[word] << shift) >>> 63) | (int) ((vram[word + 2] << shift) >>> 63) << 1;
+
+			int argb;
+			if (planes != 0) {
+				intensity[source] = FULL_INTENSITY;
+				argb = planeColors[planes];
+			} else {
+				int level = (intensity[source] * decay) >>> 8;
+				intensity[source] = level;
+				argb = palette[level];
+			}
+			for (int s = 0; s < size; s++)
+				pixels[p++] = argb;
+		}
+
+		// The remaining scanlines of the row are copies of the first
+		for (int s = 1; s < size; s++)
+			System.arraycopy(pixels, line, pixels, line + s * width, width);
+	}
+}
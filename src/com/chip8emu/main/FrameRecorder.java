@@ -0,0 +1,254 @@
+package com.chip8emu.main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the frames a core publishes to a compact capture file, for bug
+ * reports and QA. The core only copies each published frame into a slot of a
+ * preallocated ring, a background thread delta codes the frames and writes
+ * them through a FileChannel. The emulation thread never waits and never
+ * allocates: when the writer falls behind and the ring is full, frames are
+ * dropped and counted. {@link FrameCapture} reads captures back and converts
+ * them to an animated GIF or PNGs.
+ *
+ * A capture is a header with magic and version followed by one record per
+ * frame: the frame number as a variable length delta, width, height, a mask
+ * of the VRAM rows that changed and every changed row XORed with the
+ * previous frame and run length coded. Dropped frames simply do not appear,
+ * every record is relative to the one written before it.
+ */
+public final class FrameRecorder implements Closeable {
+	static final int MAGIC = 0x43384643; // "C8FC"
+	static final int VERSION = 1;
+
+	// Both planes of a packed VRAM row
+	static final int ROW_BYTES = Chip8InterpreterCore.VRAM_ROW_LONGS * 8;
+	static final int ROWS = Chip8InterpreterCore.HIRES_DISPLAY_HEIGHT;
+
+	// Frames the ring holds, a bit more than a second at 60 Hz
+	public static final int DEFAULT_CAPACITY = 64;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// Frame delta, width, height, row mask and the rows, run length coding
+	// takes less than two bytes per byte
+	private static final int MAX_RECORD_SIZE = 10 + 2 + 8 + ROWS * 2 * ROW_BYTES;
+	private static final long IDLE_PARK_NANOS = 1000000L;
+
+	// Ring of frame copies, a slot is published by lazySet of tail
+	private final int mask;
+	private final long[][] frames;
+	private final int[] widths;
+	private final int[] heights;
+	private final long[] frameNumbers;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	// Producer side cache of head, refreshed only when the ring looks full
+	private long headLimit;
+	private volatile long dropped;
+
+	// Writer side
+	private final FileChannel channel;
+	private final ByteBuffer out;
+	private final long[] previous = new long[Chip8InterpreterCore.VRAM_SIZE];
+	private final byte[] row = new byte[ROW_BYTES];
+	private long lastFrame = -1;
+	private volatile long framesWritten;
+	private volatile IOException failure;
+
+	private final Thread writer;
+	private volatile boolean closing;
+
+	public FrameRecorder(Path path) throws IOException {
+		this(path, DEFAULT_CAPACITY);
+	}
+
+	// capacity is the number of frames the writer may fall behind by, a
+	// power of two
+	public FrameRecorder(Path path, int capacity) throws IOException {
+		if (capacity < 2 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+
+		this.mask = capacity - 1;
+		this.frames = new long[capacity][Chip8InterpreterCore.VRAM_SIZE];
+		this.widths = new int[capacity];
+		this.heights = new int[capacity];
+		this.frameNumbers = new long[capacity];
+
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		this.out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		out.putInt(MAGIC);
+		out.putInt(VERSION);
+
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "chip8-frame-recorder");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	// Frames dropped because the writer fell behind or failed
+	public long getDropped() {
+		return dropped;
+	}
+
+	public long getFramesWritten() {
+		return framesWritten;
+	}
+
+	// Producer side, called by the core for every published frame. Copies
+	// the frame unless the ring is full
+	void offer(long[] vram, int width, int height, long frame) {
+		long position = tail.get();
+		if (position - headLimit > mask) {
+			headLimit = head.get();
+			if (position - headLimit > mask) {
+				dropped++;
+				return;
+			}
+		}
+
+		int slot = (int) position & mask;
+		System.arraycopy(vram, 0, frames[slot], 0, Chip8InterpreterCore.VRAM_SIZE);
+		widths[slot] = width;
+		heights[slot] = height;
+		frameNumbers[slot] = frame;
+		tail.lazySet(position + 1);
+	}
+
+	// Writes the frames still queued, stops the writer and closes the file.
+	// Rethrows a failure of the writer
+	@Override
+	public void close() throws IOException {
+		closing = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while closing the frame recorder");
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	private void write() {
+		try {
+			while (true) {
+				// Read before polling, frames offered before close() are
+				// still written
+				boolean done = closing;
+				long position = head.get();
+				if (position == tail.get()) {
+					if (done)
+						break;
+					flush();
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+					continue;
+				}
+
+				int slot = (int) position & mask;
+				encode(frames[slot], widths[slot], heights[slot], frameNumbers[slot]);
+				head.lazySet(position + 1);
+				framesWritten++;
+			}
+			flush();
+		} catch (IOException e) {
+			// The ring fills up, everything offered from then on is dropped
+			failure = e;
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+	}
+
+	private void encode(long[] vram, int width, int height, long frame) throws IOException {
+		if (out.remaining() < MAX_RECORD_SIZE)
+			flush();
+
+		// Frames that did not advance the emulated clock, rewound ones for
+		// example, count as one frame
+		if (frame <= lastFrame)
+			frame = lastFrame + 1;
+		writeVarLong(frame - lastFrame - 1);
+		lastFrame = frame;
+		out.put((byte) width);
+		out.put((byte) height);
+
+		long rows = 0;
+		for (int y = 0; y < ROWS; y++)
+			for (int i = 0; i < Chip8InterpreterCore.VRAM_ROW_LONGS; i++)
+				if (vram[y * Chip8InterpreterCore.VRAM_ROW_LONGS + i] != previous[y
+						* Chip8InterpreterCore.VRAM_ROW_LONGS + i])
+					rows |= 1L << y;
+		out.putLong(rows);
+
+		for (int y = 0; y < ROWS; y++) {
+			if ((rows & (1L << y)) == 0)
+				continue;
+
+			for (int i = 0; i < Chip8InterpreterCore.VRAM_ROW_LONGS; i++) {
+				int index = y * Chip8InterpreterCore.VRAM_ROW_LONGS + i;
+				long changed = vram[index] ^ previous[index];
+				for (int b = 0; b < 8; b++)
+					row[i * 8 + b] = (byte) (changed >>> (56 - 8 * b));
+				previous[index] = vram[index];
+			}
+			writeRow();
+		}
+	}
+
+	// Control byte c: c < 0x80 is followed by c + 1 literal bytes, otherwise
+	// by one byte repeated c - 0x7E times
+	private void writeRow() {
+		int i = 0;
+		while (i < ROW_BYTES) {
+			int run = 1;
+			while (i + run < ROW_BYTES && row[i + run] == row[i])
+				run++;
+			if (run >= 2) {
+				out.put((byte) (0x7E + run));
+				out.put(row[i]);
+				i += run;
+				continue;
+			}
+
+			// Literal up to the next run
+			int start = i;
+			while (i < ROW_BYTES && (i + 1 >= ROW_BYTES || row[i + 1] != row[i]))
+				i++;
+			out.put((byte) (i - start - 1));
+			out.put(row, start, i - start);
+		}
+	}
+
+	// Seven bits per byte, least significant group first
+	private void writeVarLong(long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	private void flush() throws IOException {
+		out.flip();
+		while (out.hasRemaining())
+			channel.write(out);
+		out.clear();
+	}
+}
@@ -0,0 +1,11 @@
+package com.chip8emu.main;
+
+import java.io.IOException;
+
+/**
+ * Destination of rasterized frames. Implementations copy what they need, the
+ * pixel buffer is reused for the next frame.
+ */
+public interface FrameSink {
+	void present(int[] argb, int width, int height) throws IOException;
+}
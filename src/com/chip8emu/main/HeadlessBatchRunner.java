@@ -0,0 +1,239 @@
+package com.chip8emu.main;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs every .ch8 ROM of a directory tree and its zip archives headless and
+ * at full speed on all cores and writes one JSON line per ROM with per-frame
+ * framebuffer hashes, instruction count and wall time. Cores run
+ * deterministically with the seed -Dchip8.seed, so reports are reproducible.
+ */
+public class HeadlessBatchRunner {
+	private static final int DEFAULT_FRAMES = 600;
+	private static final String DEFAULT_REPORT = "report.jsonl";
+	// Size of a lores pixel in PNGs
+	private static final int PNG_SCALE = 8;
+	private static final long DEFAULT_SEED = 0;
+
+	public static void main(String[] argv) throws IOException, InterruptedException {
+		if (argv.length < 1) {
+			System.err.println("Usage: HeadlessBatchRunner <rom directory> [frames=" + DEFAULT_FRAMES
+					+ "] [cycles per frame=" + Chip8InterpreterCore.DEFAULT_CYCLES_PER_FRAME + "] [report="
+					+ DEFAULT_REPORT + "] [png directory]");
+			System.exit(-1);
+		}
+
+		Path romDirectory = Paths.get(argv[0]);
+		int frames = argv.length > 1 ? Integer.parseInt(argv[1]) : DEFAULT_FRAMES;
+		int cyclesPerFrame = argv.length > 2 ? Integer.parseInt(argv[2])
+				: Chip8InterpreterCore.DEFAULT_CYCLES_PER_FRAME;
+		Path report = Paths.get(argv.length > 3 ? argv[3] : DEFAULT_REPORT);
+
+		HeadlessBatchRunner runner = new HeadlessBatchRunner(frames, cyclesPerFrame);
+		if (argv.length > 4)
+			runner.setPngDirectory(Paths.get(argv[4]));
+
+		long start = System.nanoTime();
+		List<Result> results = runner.runAll(romDirectory);
+		writeReport(results, report);
+
+		long instructions = 0;
+		int failures = 0;
+		for (Result result : results) {
+			instructions += result.instructions;
+			if (result.error != null)
+				failures++;
+		}
+		System.out.println(String.format("%d ROMs (%d failed), %d instructions in %.3f s -> %s", results.size(),
+				failures, instructions, (System.nanoTime() - start) / 1e9, report));
+	}
+
+	public static final class Result {
+		public final String rom;
+		public final long[] frameHashes;
+		public final int framesRun;
+		public final long instructions;
+		public final long wallTimeNanos;
+		public final boolean waitingForInput;
+		public final String error;
+
+		Result(String rom, long[] frameHashes, int framesRun, long instructions, long wallTimeNanos,
+				boolean waitingForInput, String error) {
+			this.rom = rom;
+			this.frameHashes = frameHashes;
+			this.framesRun = framesRun;
+			this.instructions = instructions;
+			this.wallTimeNanos = wallTimeNanos;
+			this.waitingForInput = waitingForInput;
+			this.error = error;
+		}
+	}
+
+	private final int frames;
+	private final int cyclesPerFrame;
+	private long seed = Long.getLong("chip8.seed", DEFAULT_SEED);
+	// Receives the last frame of every ROM as PNG when set
+	private Path pngDirectory;
+
+	public HeadlessBatchRunner(int frames, int cyclesPerFrame) {
+		this.frames = frames;
+		this.cyclesPerFrame = cyclesPerFrame;
+	}
+
+	public void setPngDirectory(Path pngDirectory) {
+		this.pngDirectory = pngDirectory;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public List<Result> runAll(Path romDirectory) throws IOException, InterruptedException {
+		// Sorted by name, a stable report order independent of scheduling
+		final RomLibrary library = new RomLibrary(null);
+		library.refresh(Collections.singletonList(romDirectory));
+		List<RomLibrary.Entry> roms = library.getEntries();
+
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			List<Future<Result>> futures = new ArrayList<>(roms.size());
+			for (final RomLibrary.Entry rom : roms)
+				futures.add(pool.submit(new Callable<Result>() {
+					@Override
+					public Result call() throws IOException {
+						return run(rom.name, library.read(rom));
+					}
+				}));
+
+			List<Result> results = new ArrayList<>(roms.size());
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					results.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					results.add(new Result(roms.get(i).name, new long[0], 0, 0, 0, false,
+							String.valueOf(e.getCause())));
+				}
+			}
+			return results;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public Result run(Path rom) throws IOException {
+		return run(rom.getFileName().toString(), ByteBuffer.wrap(Files.readAllBytes(rom)));
+	}
+
+	public Result run(String name, ByteBuffer code) throws IOException {
+		Chip8InterpreterCore interpreter = new Chip8InterpreterCore();
+		interpreter.setHeadless(true);
+		interpreter.setDeterministic(true);
+		interpreter.setRandomSeed(seed);
+		interpreter.setCyclesPerFrame(cyclesPerFrame);
+		Chip8Variant variant = Chip8Variant.forFileName(name);
+		if (variant != null)
+			interpreter.setVariant(variant);
+		if (!interpreter.loadCode(code))
+			return new Result(name, new long[0], 0, 0, 0, false, "ROM too big");
+
+		long[] frameHashes = new long[frames];
+		int frame = 0;
+		String error = null;
+		long start = System.nanoTime();
+		try {
+			for (; frame < frames; frame++) {
+				interpreter.runFrame();
+				frameHashes[frame] = Fnv1a.hash(interpreter.getVRAM());
+			}
+		} catch (IllegalStateException e) {
+			error = e.getMessage();
+		}
+		long wallTime = System.nanoTime() - start;
+
+		if (pngDirectory != null) {
+			FrameRasterizer rasterizer = new FrameRasterizer(Chip8InterpreterCore.HIRES_DISPLAY_WIDTH,
+					Chip8InterpreterCore.HIRES_DISPLAY_HEIGHT, PNG_SCALE / 2);
+			new PngFrameSink(pngDirectory, name).present(rasterizer.rasterize(interpreter.getVRAM(),
+					interpreter.getDisplayWidth(), interpreter.getDisplayHeight()), rasterizer.getWidth(),
+					rasterizer.getHeight());
+		}
+
+		return new Result(name, frameHashes, frame, interpreter.getCycleCount(), wallTime,
+				interpreter.isWaitingForInput(), error);
+	}
+
+	private static void writeReport(List<Result> results, Path report) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+			StringBuilder line = new StringBuilder();
+			for (Result result : results) {
+				line.setLength(0);
+				line.append("{\"rom\":\"").append(escape(result.rom)).append('"');
+				line.append(",\"frames\":").append(result.framesRun);
+				line.append(",\"instructions\":").append(result.instructions);
+				line.append(",\"wallTimeNanos\":").append(result.wallTimeNanos);
+				line.append(",\"waitingForInput\":").append(result.waitingForInput);
+				line.append(",\"error\":");
+				if (result.error == null)
+					line.append("null");
+				else
+					line.append('"').append(escape(result.error)).append('"');
+				line.append(",\"frameHashes\":[");
+				for (int i = 0; i < result.framesRun; i++) {
+					if (i > 0)
+						line.append(',');
+					line.append('"').append(String.format("%016x", result.frameHashes[i])).append('"');
+				}
+				line.append("]}");
+				writer.write(line.toString());
+				writer.newLine();
+			}
+		}
+	}
+
+	// JSON string contents, control characters included. Also used by the
+	// RomAnalyzer report
+	static String escape(String value) {
+		StringBuilder escaped = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				escaped.append("\\\"");
+				break;
+			case '\\':
+				escaped.append("\\\\");
+				break;
+			case '\n':
+				escaped.append("\\n");
+				break;
+			case '\r':
+				escaped.append("\\r");
+				break;
+			case '\t':
+				escaped.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					escaped.append(String.format("\\u%04x", (int) c));
+				else
+					escaped.append(c);
+				break;
+			}
+		}
+		return escaped.toString();
+	}
+}
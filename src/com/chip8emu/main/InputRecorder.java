@@ -0,0 +1,163 @@
+package com.chip8emu.main;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes an input recording: the ROM hash, the RNG seed and the machine state
+ * at the start, followed by every key event keyed by the frame and cycle it
+ * was applied at, the clock speed whenever it changes and a hash of
+ * every frame that changed VRAM. {@link InputReplay} feeds such a log back.
+ * Frames and cycles are delta coded as variable length integers, so a typical
+ * session costs about six bytes per drawn frame.
+ *
+ * Records are written by the thread running the interpreter. An I/O error
+ * stops the recording and is rethrown by close().
+ */
+public final class InputRecorder implements Closeable {
+	static final int MAGIC = 0x43384952; // "C8IR"
+	// Version 1 recordings used the java.util.Random sequence for CXNN,
+	// versions 1 and 2 hold a CHIP-8 state without its length
+	static final int VERSION = 3;
+	static final int VERSION_CHIP8 = 2;
+
+	static final int RECORD_END = 0;
+	static final int RECORD_SPEED = 1;
+	static final int RECORD_KEY = 2;
+	static final int RECORD_FRAME = 3;
+
+	private final DataOutputStream out;
+	private IOException failure;
+	private boolean finished;
+
+	private long lastFrame;
+	private long lastCycle;
+	private int lastInstructionsPerSecond;
+	private long keyEvents;
+	private long frames;
+
+	public InputRecorder(Path path) throws IOException {
+		this(Files.newOutputStream(path));
+	}
+
+	public InputRecorder(OutputStream out) {
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+	}
+
+	// Number of key events and frame hashes written so far
+	public long getKeyEvents() {
+		return keyEvents;
+	}
+
+	public long getFrames() {
+		return frames;
+	}
+
+	void begin(Chip8InterpreterCore core, long seed, long frame, long cycle, int instructionsPerSecond,
+			int cycleRemainder) {
+		ByteBuffer state = ByteBuffer.allocate(core.getStateSize());
+		core.saveState(state);
+
+		lastFrame = frame;
+		lastCycle = cycle;
+		lastInstructionsPerSecond = instructionsPerSecond;
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(core.getProgramHash());
+			out.writeLong(seed);
+			out.writeInt(instructionsPerSecond);
+			out.writeInt(cycleRemainder);
+			out.writeInt(state.capacity());
+			out.write(state.array());
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	void speed(long frame, int instructionsPerSecond) {
+		if (instructionsPerSecond == lastInstructionsPerSecond)
+			return;
+
+		lastInstructionsPerSecond = instructionsPerSecond;
+		if (record(RECORD_SPEED, frame))
+			writeVarLong(instructionsPerSecond);
+	}
+
+	void keyEvent(long frame, long cycle, int event) {
+		if (record(RECORD_KEY, frame)) {
+			writeVarLong(cycle - lastCycle);
+			writeByte(event);
+		}
+		lastCycle = cycle;
+		keyEvents++;
+	}
+
+	void frame(long frame, int vramHash) {
+		if (record(RECORD_FRAME, frame))
+			writeInt(vramHash);
+		frames++;
+	}
+
+	// Final frame count, cycle count and VRAM hash, verified by the replay
+	void end(long frame, long cycle, int vramHash) {
+		if (record(RECORD_END, frame)) {
+			writeVarLong(cycle - lastCycle);
+			writeInt(vramHash);
+		}
+		finished = true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			out.close();
+		} catch (IOException e) {
+			if (failure == null)
+				failure = e;
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	private boolean record(int type, long frame) {
+		if (failure != null || finished)
+			return false;
+
+		writeByte(type);
+		writeVarLong(frame - lastFrame);
+		lastFrame = frame;
+		return true;
+	}
+
+	private void writeByte(int value) {
+		try {
+			out.writeByte(value);
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	private void writeInt(int value) {
+		try {
+			out.writeInt(value);
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	// Seven bits per byte, least significant group first
+	private void writeVarLong(long value) {
+		while ((value & ~0x7FL) != 0) {
+			writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		writeByte((int) value);
+	}
+}
@@ -0,0 +1,257 @@
+package com.chip8emu.main;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Feeds a log written by {@link InputRecorder} back into a core: the recorded
+ * start state is loaded, every key event is queued at the exact frame and
+ * cycle it was originally applied at and every frame hash is compared with
+ * the replayed frame. The log is parsed in place as the replay advances, so
+ * replaying allocates nothing per frame.
+ */
+public final class InputReplay {
+	private final ByteBuffer log;
+	private final long romHash;
+	private final long seed;
+	private final int cycleRemainder;
+	private final byte[] state;
+	// Frames from the start to the end record, or to the last record of a
+	// log without one
+	private final long length;
+	private final boolean truncated;
+
+	// Next record, type -1 once the log is exhausted
+	private int nextType;
+	private long nextFrame;
+	private long lastCycle;
+	private int instructionsPerSecond;
+
+	private long framesVerified;
+	private long mismatches;
+	private long firstMismatchFrame = -1;
+	private long startFrame;
+	private boolean finished;
+
+	private InputReplay(ByteBuffer log) throws IOException {
+		this.log = log;
+		try {
+			if (log.getInt() != InputRecorder.MAGIC)
+				throw new IOException("Not an input recording");
+			int version = log.getInt();
+			if (version != InputRecorder.VERSION && version != InputRecorder.VERSION_CHIP8)
+				throw new IOException("Unsupported input recording version " + version);
+			this.romHash = log.getLong();
+			this.seed = log.getLong();
+			this.instructionsPerSecond = log.getInt();
+			this.cycleRemainder = log.getInt();
+			int stateSize = version == InputRecorder.VERSION ? log.getInt() : Chip8InterpreterCore.LEGACY_STATE_SIZE;
+			if (stateSize < 0 || stateSize > Chip8InterpreterCore.STATE_SIZE)
+				throw new IOException("Invalid state in input recording");
+			this.state = new byte[stateSize];
+			log.get(state);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated input recording", e);
+		}
+
+		// One pass over the records up front, so a damaged log cannot make
+		// the replay run forever
+		int records = log.position();
+		int complete = records;
+		long frame = 0;
+		boolean ended = false;
+		try {
+			while (log.hasRemaining() && !ended) {
+				int type = log.get();
+				long next = frame + readVarLong();
+				if (type == InputRecorder.RECORD_END) {
+					readVarLong();
+					log.getInt();
+					ended = true;
+				} else if (type == InputRecorder.RECORD_SPEED)
+					readVarLong();
+				else if (type == InputRecorder.RECORD_KEY) {
+					readVarLong();
+					log.get();
+				} else if (type == InputRecorder.RECORD_FRAME)
+					log.getInt();
+				else
+					break;
+				frame = next;
+				complete = log.position();
+			}
+		} catch (BufferUnderflowException e) {
+			// Partially written last record, dropped below
+		}
+		this.length = frame;
+		this.truncated = !ended;
+		// Drop a partially written last record
+		log.limit(complete);
+		log.position(records);
+	}
+
+	public static InputReplay open(Path path) throws IOException {
+		return new InputReplay(ByteBuffer.wrap(Files.readAllBytes(path)));
+	}
+
+	public static InputReplay open(ByteBuffer log) throws IOException {
+		return new InputReplay(log.slice());
+	}
+
+	public long getRomHash() {
+		return romHash;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	// Length of the recording in frames
+	public long getLength() {
+		return length;
+	}
+
+	// True once the replay ran for the length of the recording
+	public boolean isFinished() {
+		return finished;
+	}
+
+	// The log ended without the end record of a stopped recording
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	public long getFramesVerified() {
+		return framesVerified;
+	}
+
+	public long getMismatches() {
+		return mismatches;
+	}
+
+	// Relative to the start of the replay, -1 without mismatches
+	public long getFirstMismatchFrame() {
+		return firstMismatchFrame;
+	}
+
+	// Restores the start state, returns the recorded remainder of the
+	// instruction budget
+	int begin(Chip8InterpreterCore core, long frame) {
+		core.loadState(ByteBuffer.wrap(state));
+		startFrame = frame;
+		nextFrame = frame;
+		lastCycle = core.getCycleCount();
+		advance();
+		return cycleRemainder;
+	}
+
+	// Clock speed of the frame as recorded
+	int speed(long frame) {
+		while (nextType == InputRecorder.RECORD_SPEED && nextFrame <= frame) {
+			instructionsPerSecond = (int) readVarLong();
+			advance();
+		}
+		return instructionsPerSecond;
+	}
+
+	// Applies the key events due at this frame and cycle to core
+	void feed(Chip8InterpreterCore core, long frame, long cycle) {
+		while (nextType == InputRecorder.RECORD_KEY) {
+			long position = log.position();
+			long keyCycle = lastCycle + readVarLong();
+			if (nextFrame > frame || (nextFrame == frame && keyCycle > cycle)) {
+				log.position((int) position);
+				return;
+			}
+
+			int event = log.get();
+			core.applyKey(event & (KeyEventQueue.KEY | KeyEventQueue.PRESSED));
+			lastCycle = keyCycle;
+			advance();
+		}
+	}
+
+	// Instructions that can run before the next key event is due, at most
+	// budget
+	int cyclesUntilNext(long frame, long cycle, int budget) {
+		if (nextType != InputRecorder.RECORD_KEY || nextFrame != frame)
+			return budget;
+
+		long position = log.position();
+		long keyCycle = lastCycle + readVarLong();
+		log.position((int) position);
+		return (int) Math.max(1, Math.min(budget, keyCycle - cycle));
+	}
+
+	// Compares the frame that just ended with the recording
+	void endFrame(long frame, boolean vramChanged, long[] vram) {
+		// Events the replay never reached are stale once their frame ended
+		skipStale(frame);
+
+		if (nextType == InputRecorder.RECORD_FRAME && nextFrame == frame) {
+			int expected = log.getInt();
+			advance();
+			verify(frame, vramChanged && expected == Fnv1a.fold(Fnv1a.hash(vram)));
+		} else if (vramChanged) {
+			verify(frame, false);
+		}
+	}
+
+	// Checks the recorded end after frameCount frames ran
+	void checkEnd(long frameCount, long cycle, long[] vram) {
+		if (frameCount - startFrame < length || finished)
+			return;
+
+		if (nextType == InputRecorder.RECORD_END && nextFrame == frameCount) {
+			long expectedCycle = lastCycle + readVarLong();
+			int expectedHash = log.getInt();
+			verify(frameCount, expectedCycle == cycle && expectedHash == Fnv1a.fold(Fnv1a.hash(vram)));
+		} else if (!truncated) {
+			verify(frameCount, false);
+		}
+		nextType = -1;
+		finished = true;
+	}
+
+	private void verify(long frame, boolean match) {
+		framesVerified++;
+		if (!match) {
+			if (firstMismatchFrame < 0)
+				firstMismatchFrame = frame - startFrame;
+			mismatches++;
+		}
+	}
+
+	private void skipStale(long frame) {
+		while (nextType == InputRecorder.RECORD_KEY && nextFrame <= frame) {
+			lastCycle += readVarLong();
+			log.get();
+			advance();
+			verify(frame, false);
+		}
+	}
+
+	// Reads the type and frame of the next record
+	private void advance() {
+		if (!log.hasRemaining()) {
+			nextType = -1;
+			return;
+		}
+
+		nextType = log.get();
+		nextFrame += readVarLong();
+	}
+
+	private long readVarLong() {
+		long value = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = log.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+	}
+}
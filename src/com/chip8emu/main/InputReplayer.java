@@ -0,0 +1,50 @@
+package com.chip8emu.main;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Replays an input recording headless and as fast as possible, verifying
+ * every recorded frame hash up to the first mismatch. Exits with a non zero
+ * status when the replay diverged from the recording.
+ */
+public class InputReplayer {
+	public static void main(String[] argv) throws IOException {
+		if (argv.length < 1) {
+			System.err.println("Usage: InputReplayer <recording> [rom]");
+			System.exit(-1);
+		}
+
+		InputReplay replay = InputReplay.open(Paths.get(argv[0]));
+		if (argv.length > 1) {
+			byte[] rom = Files.readAllBytes(Paths.get(argv[1]));
+			if (Fnv1a.hash(rom, 0, rom.length) != replay.getRomHash()) {
+				System.err.println("Recording was made with a different ROM");
+				System.exit(-1);
+			}
+		}
+
+		Chip8InterpreterCore interpreter = new Chip8InterpreterCore();
+		interpreter.setHeadless(true);
+		interpreter.startReplay(replay);
+
+		String error = null;
+		long start = System.nanoTime();
+		try {
+			while (!replay.isFinished() && replay.getMismatches() == 0)
+				interpreter.runFrame();
+		} catch (IllegalStateException e) {
+			error = e.getMessage();
+		}
+		long wallTime = System.nanoTime() - start;
+
+		System.out.println(String.format(
+				"%d frames, %d instructions in %.3f s, %d frames verified, %d mismatches (first at frame %d)%s%s",
+				interpreter.getFrameCount(), interpreter.getCycleCount(), wallTime / 1e9, replay.getFramesVerified(),
+				replay.getMismatches(), replay.getFirstMismatchFrame(), replay.isTruncated() ? ", truncated" : "",
+				error != null ? ", failed: " + error : ""));
+		if (replay.getMismatches() > 0 || replay.isTruncated() || error != null)
+			System.exit(1);
+	}
+}
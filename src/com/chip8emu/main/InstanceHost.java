@@ -0,0 +1,417 @@
+package com.chip8emu.main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hosts many interpreter cores on a small, fixed pool of carrier threads
+ * instead of one thread per core. Every 1/TIMER_HZ seconds each carrier runs
+ * one frame, or speed frames, of every active instance it owns, so a carrier
+ * sleeps once per frame for all of them. Instances that cannot make progress,
+ * paused ones and those waiting in FX0A with both timers expired, are parked:
+ * they leave their carrier's run list and cost nothing until a key press,
+ * resume() or close() wakes them. The cores of closed instances are pooled
+ * and reused by later instances without allocating again, those of failed
+ * instances are dropped.
+ */
+public final class InstanceHost {
+	// Hosted instances share their carrier, so uncapped ones run a bounded
+	// burst of frames per frame of wall clock
+	public static final int UNCAPPED_FRAMES = 16;
+
+	private static final int DEFAULT_INSTANCES = 1000;
+	private static final int DEFAULT_SECONDS = 10;
+
+	private static final int ACTIVE = 0;
+	private static final int PARKED = 1;
+
+	/**
+	 * A core running on the host. Key events may be delivered by any one
+	 * thread at a time, as with the core itself. Frames are read through
+	 * getCore().acquireFrame(), everything else of the core belongs to the
+	 * carrier until the instance is closed.
+	 */
+	public static final class Instance {
+		private final Carrier carrier;
+		private final Chip8InterpreterCore core;
+		// ACTIVE while on, or queued for, the run list of the carrier
+		private final AtomicInteger state = new AtomicInteger(ACTIVE);
+		private volatile boolean paused;
+		private volatile boolean closed;
+		private volatile RuntimeException failure;
+		// Slot the carrier publishes to after every frame, see setExport.
+		// appliedKeys is only used by the carrier
+		private volatile SharedMemoryExport export;
+		private volatile int exportSlot;
+		private int appliedKeys;
+
+		Instance(Carrier carrier, Chip8InterpreterCore core) {
+			this.carrier = carrier;
+			this.core = core;
+		}
+
+		// Belongs to another instance once this one is closed, unless it
+		// failed
+		public Chip8InterpreterCore getCore() {
+			return core;
+		}
+
+		public void inputPressed(int key) {
+			if (closed)
+				return;
+			core.inputPressed(key);
+			wake();
+		}
+
+		public void inputReleased(int key) {
+			if (closed)
+				return;
+			core.inputReleased(key);
+			wake();
+		}
+
+		public void pause() {
+			paused = true;
+		}
+
+		public void resume() {
+			paused = false;
+			wake();
+		}
+
+		// The core returns to the pool with the next frame of the carrier.
+		// Call it from the thread delivering key events, or once that stopped
+		public void close() {
+			closed = true;
+			wake();
+		}
+
+		public boolean isPaused() {
+			return paused;
+		}
+
+		public boolean isParked() {
+			return state.get() == PARKED;
+		}
+
+		public boolean isClosed() {
+			return closed;
+		}
+
+		// The failure that stopped the instance, null while it runs
+		public RuntimeException getFailure() {
+			return failure;
+		}
+
+		public long getFrameCount() {
+			return core.getFrameCount();
+		}
+
+		public long getMemoryFootprint() {
+			return core.getMemoryFootprint();
+		}
+
+		// Publishes the core to slot of export after every frame and takes
+		// its keys from there, inputPressed and inputReleased must not be
+		// used meanwhile. Null stops exporting
+		public void setExport(SharedMemoryExport export, int slot) {
+			this.exportSlot = slot;
+			this.export = export;
+			wake();
+		}
+
+		// Puts a parked instance back on the run list of its carrier. Waking
+		// races with the carrier parking it, whoever moves the state from
+		// PARKED to ACTIVE owns the instance
+		private void wake() {
+			if (state.get() == PARKED && state.compareAndSet(PARKED, ACTIVE))
+				carrier.inbox.offer(this);
+		}
+
+		// Nothing to run until a key press or resume(). A core waiting in
+		// FX0A still counts its timers down, so it is only idle once they
+		// expired. Exported cores get their keys from the slot, so they keep
+		// running to notice them
+		private boolean isIdle() {
+			if (closed)
+				return false;
+			if (paused || core.isExited())
+				return true;
+			return export == null && core.isWaitingForInput() && core.delayTimer == 0 && core.soundTimer == 0
+					&& !core.hasPendingInput();
+		}
+	}
+
+	private final class Carrier implements Runnable {
+		// Started and woken instances, the run list is only touched by the
+		// carrier thread
+		final ConcurrentLinkedQueue<Instance> inbox = new ConcurrentLinkedQueue<>();
+		final ArrayList<Instance> running = new ArrayList<>();
+		final AtomicInteger instances = new AtomicInteger();
+		volatile int active;
+		volatile long resyncs;
+		Thread thread;
+
+		@Override
+		public void run() {
+			FrameClock clock = new FrameClock(Chip8InterpreterCore.TIMER_HZ);
+			while (clock.awaitFrame()) {
+				Instance instance;
+				while ((instance = inbox.poll()) != null)
+					running.add(instance);
+
+				long frames = 0;
+				for (int i = 0; i < running.size();) {
+					int ran = runInstance(running.get(i));
+					if (ran < 0) {
+						// Order does not matter, swap the last one in
+						running.set(i, running.get(running.size() - 1));
+						running.remove(running.size() - 1);
+					} else {
+						frames += ran;
+						i++;
+					}
+				}
+				active = running.size();
+				resyncs = clock.getResyncs();
+				framesRun.add(frames);
+			}
+		}
+
+		// Returns the number of frames run, or -1 when the instance left
+		// the run list
+		private int runInstance(Instance instance) {
+			if (instance.closed) {
+				release(instance);
+				return -1;
+			}
+
+			int frames = 0;
+			if (!instance.paused) {
+				int speed = instance.core.getSpeed();
+				frames = speed == Chip8InterpreterCore.SPEED_UNCAPPED ? UNCAPPED_FRAMES : speed;
+				SharedMemoryExport export = instance.export;
+				int slot = instance.exportSlot;
+				try {
+					if (export != null)
+						instance.appliedKeys = export.applyInput(slot, instance.core, instance.appliedKeys);
+					for (int i = 0; i < frames; i++)
+						instance.core.runFrame();
+					if (export != null)
+						export.publish(slot, instance.core);
+				} catch (RuntimeException e) {
+					// Failed cores, but also bugs such as a bad export slot,
+					// only end their own instance and not the carrier. The
+					// core is not pooled, a key event delivered while closing
+					// must not reach the next instance using it
+					instance.failure = e;
+					instance.closed = true;
+					remove(instance);
+					return -1;
+				}
+			}
+
+			if (!instance.isIdle())
+				return frames;
+
+			// Parked first and checked again, so a key press that arrived
+			// meanwhile either sees PARKED and wakes it or is seen here
+			instance.state.set(PARKED);
+			if (instance.isIdle() || !instance.state.compareAndSet(PARKED, ACTIVE))
+				return -1;
+			return frames;
+		}
+
+		private void release(Instance instance) {
+			remove(instance);
+			instance.core.recycle();
+			pool.get(instance.core.getVariant()).offer(instance.core);
+		}
+
+		private void remove(Instance instance) {
+			hosted.remove(instance);
+			instances.decrementAndGet();
+		}
+	}
+
+	private final Carrier[] carriers;
+	private final ExecutionMode executionMode;
+	private final Set<Instance> hosted = ConcurrentHashMap.newKeySet();
+	// Recycled cores per variant
+	private final Map<Chip8Variant, ConcurrentLinkedQueue<Chip8InterpreterCore>> pool = new EnumMap<>(
+			Chip8Variant.class);
+	private final LongAdder framesRun = new LongAdder();
+
+	// Frame rate over the last sampling interval
+	private long lastSampleNanos = System.nanoTime();
+	private long lastSampleFrames;
+
+	public static void main(String[] argv) throws IOException, InterruptedException {
+		if (argv.length < 1) {
+			System.err.println("Usage: InstanceHost <rom> [instances=" + DEFAULT_INSTANCES + "] [carriers="
+					+ Runtime.getRuntime().availableProcessors() + "] [seconds=" + DEFAULT_SECONDS + "]");
+			System.exit(-1);
+		}
+
+		Path rom = Paths.get(argv[0]);
+		int instances = argv.length > 1 ? Integer.parseInt(argv[1]) : DEFAULT_INSTANCES;
+		int carriers = argv.length > 2 ? Integer.parseInt(argv[2]) : Runtime.getRuntime().availableProcessors();
+		int seconds = argv.length > 3 ? Integer.parseInt(argv[3]) : DEFAULT_SECONDS;
+
+		Chip8Variant variant = Chip8Variant.forFileName(rom.getFileName().toString());
+		ByteBuffer code = ByteBuffer.wrap(Files.readAllBytes(rom));
+		InstanceHost host = new InstanceHost(carriers,
+				ExecutionMode.valueOf(System.getProperty("chip8.executionMode", "DECODED")));
+		Instance first = null;
+		for (int i = 0; i < instances; i++) {
+			Instance instance = host.start(code, variant != null ? variant : Chip8Variant.CHIP8);
+			if (first == null)
+				first = instance;
+		}
+		System.out.println(String.format("%d instances on %d carriers, %d bytes per instance", instances, carriers,
+				first != null ? first.getMemoryFootprint() : 0));
+
+		host.getFramesPerSecond();
+		for (int i = 0; i < seconds; i++) {
+			Thread.sleep(1000);
+			System.out.println(host.summary());
+		}
+		host.shutdown();
+	}
+
+	// Carrier threads start right away. Hosted cores run in executionMode
+	public InstanceHost(int carrierCount, ExecutionMode executionMode) {
+		if (carrierCount < 1)
+			throw new IllegalArgumentException("Invalid carrier count " + carrierCount);
+
+		this.executionMode = executionMode;
+		for (Chip8Variant variant : Chip8Variant.values())
+			pool.put(variant, new ConcurrentLinkedQueue<Chip8InterpreterCore>());
+
+		this.carriers = new Carrier[carrierCount];
+		for (int i = 0; i < carrierCount; i++) {
+			carriers[i] = new Carrier();
+			carriers[i].thread = new Thread(carriers[i], "chip8-carrier-" + i);
+			carriers[i].thread.setDaemon(true);
+			carriers[i].thread.start();
+		}
+	}
+
+	// Loads code into a pooled or new headless core and runs it on the
+	// carrier with the fewest instances. The buffer position is left
+	// unchanged
+	public Instance start(ByteBuffer code, Chip8Variant variant) {
+		Chip8InterpreterCore core = pool.get(variant).poll();
+		if (core == null) {
+			core = new Chip8InterpreterCore();
+			core.setHeadless(true);
+			core.setVariant(variant);
+		}
+		core.setExecutionMode(executionMode);
+		if (!core.loadCode(code)) {
+			core.recycle();
+			pool.get(variant).offer(core);
+			throw new IllegalArgumentException("ROM too big");
+		}
+
+		Carrier carrier = carriers[0];
+		for (Carrier candidate : carriers)
+			if (candidate.instances.get() < carrier.instances.get())
+				carrier = candidate;
+
+		Instance instance = new Instance(carrier, core);
+		carrier.instances.incrementAndGet();
+		hosted.add(instance);
+		carrier.inbox.offer(instance);
+		return instance;
+	}
+
+	public Instance start(byte[] code, Chip8Variant variant) {
+		return start(ByteBuffer.wrap(code), variant);
+	}
+
+	// Instances started and not closed yet
+	public int getInstanceCount() {
+		return hosted.size();
+	}
+
+	// Instances on a run list as of the last frame of each carrier
+	public int getActiveCount() {
+		int active = 0;
+		for (Carrier carrier : carriers)
+			active += carrier.active;
+		return active;
+	}
+
+	public int getPooledCount() {
+		int pooled = 0;
+		for (ConcurrentLinkedQueue<Chip8InterpreterCore> cores : pool.values())
+			pooled += cores.size();
+		return pooled;
+	}
+
+	// Frames run by all instances since the host started
+	public long getFramesRun() {
+		return framesRun.sum();
+	}
+
+	// Aggregate frame rate since the previous call
+	public synchronized double getFramesPerSecond() {
+		long now = System.nanoTime();
+		long frames = framesRun.sum();
+		double rate = now > lastSampleNanos ? (frames - lastSampleFrames) * 1e9 / (now - lastSampleNanos) : 0;
+		lastSampleNanos = now;
+		lastSampleFrames = frames;
+		return rate;
+	}
+
+	// Times a carrier fell too far behind its frames and skipped ahead, a
+	// sign that it hosts more instances than it can run in real time
+	public long getCarrierResyncs() {
+		long resyncs = 0;
+		for (Carrier carrier : carriers)
+			resyncs += carrier.resyncs;
+		return resyncs;
+	}
+
+	// Of all hosted instances, see Chip8InterpreterCore.getMemoryFootprint
+	public long getMemoryFootprint() {
+		long bytes = 0;
+		for (Instance instance : hosted)
+			bytes += instance.getMemoryFootprint();
+		return bytes;
+	}
+
+	// Drops the pooled cores, the next instances allocate new ones
+	public void clearPool() {
+		for (ConcurrentLinkedQueue<Chip8InterpreterCore> cores : pool.values())
+			cores.clear();
+	}
+
+	public String summary() {
+		int instances = getInstanceCount();
+		long footprint = getMemoryFootprint();
+		return String.format("instances=%d active=%d pooled=%d fps=%.0f bytes/instance=%d resyncs=%d", instances,
+				getActiveCount(), getPooledCount(), getFramesPerSecond(), instances > 0 ? footprint / instances : 0,
+				getCarrierResyncs());
+	}
+
+	// Stops the carriers. Instances stop where they are and are not closed
+	public void shutdown() throws InterruptedException {
+		for (Carrier carrier : carriers)
+			carrier.thread.interrupt();
+		for (Carrier carrier : carriers)
+			carrier.thread.join();
+	}
+}
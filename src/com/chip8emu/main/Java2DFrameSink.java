@@ -0,0 +1,70 @@
+package com.chip8emu.main;
+
+import java.awt.Canvas;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.event.KeyListener;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+import javax.swing.JFrame;
+
+/**
+ * Presents frames in a plain Java2D window, one image blit per frame. Needs
+ * no OpenGL.
+ */
+public class Java2DFrameSink implements FrameSink {
+	private final JFrame window;
+	private final Canvas canvas;
+	private final BufferedImage image;
+	private final int[] imagePixels;
+	private BufferStrategy strategy;
+
+	public Java2DFrameSink(String title, int width, int height) {
+		this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		this.imagePixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+		this.canvas = new Canvas();
+		canvas.setPreferredSize(new Dimension(width, height));
+		canvas.setIgnoreRepaint(true);
+
+		this.window = new JFrame(title);
+		window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		window.setResizable(false);
+		window.add(canvas);
+		window.pack();
+		window.setLocationRelativeTo(null);
+		window.setVisible(true);
+	}
+
+	public void addKeyListener(KeyListener listener) {
+		canvas.addKeyListener(listener);
+		canvas.requestFocus();
+	}
+
+	@Override
+	public void present(int[] argb, int width, int height) {
+		System.arraycopy(argb, 0, imagePixels, 0, imagePixels.length);
+
+		if (strategy == null) {
+			if (!canvas.isDisplayable())
+				return;
+			canvas.createBufferStrategy(2);
+			strategy = canvas.getBufferStrategy();
+		}
+
+		do {
+			do {
+				Graphics g = strategy.getDrawGraphics();
+				g.drawImage(image, 0, 0, null);
+				g.dispose();
+			} while (strategy.contentsRestored());
+			strategy.show();
+		} while (strategy.contentsLost());
+	}
+
+	public void close() {
+		window.dispose();
+	}
+}
@@ -0,0 +1,77 @@
+package com.chip8emu.main;
+
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Runs a ROM in a Java2D window through the software rasterizer, for machines
+ * without OpenGL.
+ */
+public class Java2DMain {
+	private static final int DEFAULT_SCALE = 16;
+
+	public static void main(String[] argv) throws IOException {
+		if (argv.length < 1) {
+			System.err.println("Usage: Java2DMain <rom> [scale=" + DEFAULT_SCALE
+					+ "] [persistence=0.0] [instructions per second="
+					+ Chip8InterpreterCore.DEFAULT_CYCLES_PER_FRAME * Chip8InterpreterCore.TIMER_HZ + "]");
+			System.exit(-1);
+		}
+
+		int scale = argv.length > 1 ? Integer.parseInt(argv[1]) : DEFAULT_SCALE;
+		float persistence = argv.length > 2 ? Float.parseFloat(argv[2]) : 0f;
+
+		final Chip8InterpreterCore interpreter = new Chip8InterpreterCore();
+		if (argv.length > 3)
+			interpreter.setInstructionsPerSecond(Integer.parseInt(argv[3]));
+		Chip8Variant variant = Chip8Variant.forFileName(argv[0]);
+		if (variant != null)
+			interpreter.setVariant(variant);
+		if (!interpreter.loadCode(Files.readAllBytes(Paths.get(argv[0])))) {
+			System.err.println("ROM too big");
+			System.exit(-1);
+		}
+
+		// scale is the size of a lores pixel, hires pixels are half as big
+		FrameRasterizer rasterizer = new FrameRasterizer(Chip8InterpreterCore.HIRES_DISPLAY_WIDTH,
+				Chip8InterpreterCore.HIRES_DISPLAY_HEIGHT, (scale + 1) / 2);
+		rasterizer.setPersistence(persistence);
+		Java2DFrameSink sink = new Java2DFrameSink("Chip-8 Emulator", rasterizer.getWidth(), rasterizer.getHeight());
+
+		// CHIP-8 keys 0x0 to 0xF
+		final KeyMap keyMapping = new KeyMap(KeyEvent.VK_1, KeyEvent.VK_2, KeyEvent.VK_3, KeyEvent.VK_4,
+				KeyEvent.VK_Q, KeyEvent.VK_W, KeyEvent.VK_E, KeyEvent.VK_R, KeyEvent.VK_A, KeyEvent.VK_S,
+				KeyEvent.VK_D, KeyEvent.VK_F, KeyEvent.VK_Y, KeyEvent.VK_X, KeyEvent.VK_C, KeyEvent.VK_V);
+
+		sink.addKeyListener(new KeyAdapter() {
+			@Override
+			public void keyPressed(KeyEvent e) {
+				int key = keyMapping.get(e.getKeyCode());
+				if (key != KeyMap.UNMAPPED)
+					interpreter.inputPressed(key);
+			}
+
+			@Override
+			public void keyReleased(KeyEvent e) {
+				int key = keyMapping.get(e.getKeyCode());
+				if (key != KeyMap.UNMAPPED)
+					interpreter.inputReleased(key);
+			}
+		});
+
+		interpreter.run();
+
+		// Presents at the emulated frame rate, the interpreter runs on its own
+		FrameClock clock = new FrameClock(Chip8InterpreterCore.TIMER_HZ);
+		while (interpreter.isRunning() && clock.awaitFrame()) {
+			FrameExchange.Frame frame = interpreter.acquireFrame();
+			if (frame != null)
+				sink.present(rasterizer.rasterize(frame, interpreter.getFrameCount()), rasterizer.getWidth(),
+						rasterizer.getHeight());
+		}
+		sink.close();
+	}
+}
@@ -0,0 +1,147 @@
+package com.chip8emu.main;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Plays audio through javax.sound.sampled. Frames go into a small
+ * preallocated ring, a playback thread moves them into a line buffer of two
+ * frames, so the latency from the emulated frame to the speaker stays
+ * within a few frames. When the emulation runs ahead, turbo for example, the
+ * ring overflows and frames are dropped. When it falls behind the playback
+ * thread plays silence. Both are counted, as is the latency of the last frame
+ * played.
+ */
+public final class JavaSoundSink implements AudioSink {
+	// Frames the emulation may run ahead of playback
+	public static final int DEFAULT_CAPACITY = 4;
+	private static final int LINE_BUFFER_FRAMES = 2;
+
+	private final SourceDataLine line;
+	private final byte[] silence = new byte[AudioPipeline.FRAME_BYTES];
+
+	// Ring of frames, a slot is published by lazySet of tail
+	private final int mask;
+	private final byte[][] frames;
+	private final long[] timestamps;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	// Producer side cache of head, refreshed only when the ring looks full
+	private long headLimit;
+
+	private volatile long overruns;
+	private volatile long underruns;
+	private volatile long latencyNanos;
+	private volatile long maxLatencyNanos;
+
+	private final Thread player;
+	private volatile boolean closing;
+
+	public JavaSoundSink() throws LineUnavailableException {
+		this(DEFAULT_CAPACITY);
+	}
+
+	// capacity is a power of two. Throws when there is no audio device
+	public JavaSoundSink(int capacity) throws LineUnavailableException {
+		if (capacity < 2 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+
+		this.mask = capacity - 1;
+		this.frames = new byte[capacity][AudioPipeline.FRAME_BYTES];
+		this.timestamps = new long[capacity];
+
+		AudioFormat format = new AudioFormat(AudioPipeline.SAMPLE_RATE, 16, 1, true, false);
+		try {
+			this.line = AudioSystem.getSourceDataLine(format);
+		} catch (IllegalArgumentException e) {
+			throw new LineUnavailableException("No audio line: " + e.getMessage());
+		}
+		line.open(format, LINE_BUFFER_FRAMES * AudioPipeline.FRAME_BYTES);
+		line.start();
+
+		this.player = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				play();
+			}
+		}, "chip8-audio");
+		player.setDaemon(true);
+		player.start();
+	}
+
+	// Frames dropped because playback fell behind the emulation
+	public long getOverruns() {
+		return overruns;
+	}
+
+	// Frames of silence played because no emulated frame was ready
+	public long getUnderruns() {
+		return underruns;
+	}
+
+	// From writing a frame to it being queued after everything the line
+	// still buffers, of the last frame played and the maximum
+	public long getLatencyNanos() {
+		return latencyNanos;
+	}
+
+	public long getMaxLatencyNanos() {
+		return maxLatencyNanos;
+	}
+
+	@Override
+	public void write(byte[] pcm, int length) {
+		long position = tail.get();
+		if (position - headLimit > mask) {
+			headLimit = head.get();
+			if (position - headLimit > mask) {
+				overruns++;
+				return;
+			}
+		}
+
+		int slot = (int) position & mask;
+		System.arraycopy(pcm, 0, frames[slot], 0, length);
+		timestamps[slot] = System.nanoTime();
+		tail.lazySet(position + 1);
+	}
+
+	@Override
+	public void close() {
+		closing = true;
+		try {
+			player.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		line.stop();
+		line.close();
+	}
+
+	private void play() {
+		while (!closing) {
+			long position = head.get();
+			if (position == tail.get()) {
+				underruns++;
+				// Blocks until the line has room, which paces this loop
+				line.write(silence, 0, silence.length);
+				continue;
+			}
+
+			int slot = (int) position & mask;
+			// Until the audio the line still holds has played
+			long bufferedNanos = (line.getBufferSize() - line.available()) * 1000000000L
+					/ (AudioPipeline.SAMPLE_RATE * 2);
+			long latency = System.nanoTime() - timestamps[slot] + bufferedNanos;
+			latencyNanos = latency;
+			if (latency > maxLatencyNanos)
+				maxLatencyNanos = latency;
+			line.write(frames[slot], 0, AudioPipeline.FRAME_BYTES);
+			head.lazySet(position + 1);
+		}
+	}
+}
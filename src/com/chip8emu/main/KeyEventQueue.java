@@ -0,0 +1,88 @@
+package com.chip8emu.main;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free single producer, single consumer ring of timestamped key events.
+ * The producer is the thread delivering host key events, the consumer is the
+ * thread running the interpreter, which drains the ring at instruction
+ * boundaries. Neither side ever blocks, an event offered to a full ring is
+ * dropped and counted.
+ */
+public final class KeyEventQueue {
+	// Event encoding: key in the low nibble, PRESSED set for key down
+	public static final int PRESSED = 0x10;
+	public static final int KEY = 0x0F;
+
+	private final int mask;
+	private final byte[] events;
+	private final long[] timestamps;
+
+	// Next slot to read and to write, slots are published by lazySet
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	// Producer side cache of head, refreshed only when the ring looks full
+	private long headLimit;
+	private long dropped;
+
+	// Consumer side, timestamp of the event returned by the last poll
+	private long lastTimestamp;
+
+	public KeyEventQueue(int capacity) {
+		if (capacity < 2 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+
+		this.mask = capacity - 1;
+		this.events = new byte[capacity];
+		this.timestamps = new long[capacity];
+	}
+
+	// Producer side. Returns false when the ring is full
+	public boolean offer(int key, boolean pressed, long timestampNanos) {
+		long position = tail.get();
+		if (position - headLimit > mask) {
+			headLimit = head.get();
+			if (position - headLimit > mask) {
+				dropped++;
+				return false;
+			}
+		}
+
+		int slot = (int) position & mask;
+		events[slot] = (byte) ((key & KEY) | (pressed ? PRESSED : 0));
+		timestamps[slot] = timestampNanos;
+		tail.lazySet(position + 1);
+		return true;
+	}
+
+	// Consumer side. Returns the next event or -1 when the ring is empty
+	public int poll() {
+		long position = head.get();
+		if (position == tail.get())
+			return -1;
+
+		int slot = (int) position & mask;
+		int event = events[slot];
+		lastTimestamp = timestamps[slot];
+		head.lazySet(position + 1);
+		return event;
+	}
+
+	public long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	// Consumer side, drops everything queued so far
+	public void clear() {
+		head.lazySet(tail.get());
+	}
+
+	public boolean isEmpty() {
+		return head.get() == tail.get();
+	}
+
+	// Events lost to a full ring, read by the producer thread
+	public long getDropped() {
+		return dropped;
+	}
+}
@@ -0,0 +1,36 @@
+package com.chip8emu.main;
+
+import java.util.Arrays;
+
+/**
+ * Maps host key codes to CHIP-8 keys through a flat table, so looking up a key
+ * event neither boxes nor hashes.
+ */
+public final class KeyMap {
+	public static final int UNMAPPED = -1;
+
+	private final int[] keys;
+
+	// hostKeys[k] is the host key code for CHIP-8 key k
+	public KeyMap(int... hostKeys) {
+		if (hostKeys.length != 16)
+			throw new IllegalArgumentException("Expected 16 host keys, got " + hostKeys.length);
+
+		int size = 0;
+		for (int hostKey : hostKeys) {
+			if (hostKey < 0)
+				throw new IllegalArgumentException("Invalid host key " + hostKey);
+			size = Math.max(size, hostKey + 1);
+		}
+
+		this.keys = new int[size];
+		Arrays.fill(keys, UNMAPPED);
+		for (int key = 0; key < hostKeys.length; key++)
+			keys[hostKeys[key]] = key;
+	}
+
+	// CHIP-8 key for a host key code, UNMAPPED if there is none
+	public int get(int hostKey) {
+		return hostKey >= 0 && hostKey < keys.length ? keys[hostKey] : UNMAPPED;
+	}
+}
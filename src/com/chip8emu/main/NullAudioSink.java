@@ -0,0 +1,23 @@
+package com.chip8emu.main;
+
+/**
+ * Discards all audio, for headless runs and for measuring the cost of the
+ * pipeline itself on machines without audio hardware.
+ */
+public final class NullAudioSink implements AudioSink {
+	private volatile long frames;
+
+	@Override
+	public void write(byte[] pcm, int length) {
+		frames++;
+	}
+
+	// Frames of audio written so far
+	public long getFrames() {
+		return frames;
+	}
+
+	@Override
+	public void close() {
+	}
+}
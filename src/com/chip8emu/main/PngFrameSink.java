@@ -0,0 +1,44 @@
+package com.chip8emu.main;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Writes every presented frame to a numbered PNG file, for headless runs and
+ * screenshots.
+ */
+public class PngFrameSink implements FrameSink {
+	private final Path directory;
+	private final String prefix;
+	private BufferedImage image;
+	private int[] imagePixels;
+	private int frameNumber;
+
+	public PngFrameSink(Path directory, String prefix) throws IOException {
+		this.directory = Files.createDirectories(directory);
+		this.prefix = prefix;
+	}
+
+	@Override
+	public void present(int[] argb, int width, int height) throws IOException {
+		if (image == null || image.getWidth() != width || image.getHeight() != height) {
+			image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			imagePixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		}
+		System.arraycopy(argb, 0, imagePixels, 0, width * height);
+
+		Path file = directory.resolve(String.format("%s_%06d.png", prefix, frameNumber++));
+		if (!ImageIO.write(image, "png", file.toFile()))
+			throw new IOException("No PNG writer available");
+	}
+
+	// Number of frames written so far
+	public int getFrameNumber() {
+		return frameNumber;
+	}
+}
@@ -0,0 +1,296 @@
+package com.chip8emu.main;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed capacity history of per-frame machine states for rewinding. Every
+ * keyframeInterval frames a full save state is stored, the frames in between
+ * only store the ram pages and VRAM rows that changed since the previous frame
+ * plus the registers. Entries live in one preallocated byte arena, the oldest
+ * keyframe and its deltas are dropped when it is full. Capturing and rewinding
+ * never allocate and must happen on the thread running the interpreter. The
+ * core has to be cleared when it switches variant, which it does itself.
+ */
+public final class RewindBuffer {
+	private static final int MAX_PAGES = (Chip8InterpreterCore.STATE_SIZE - Chip8InterpreterCore.STATE_RAM_OFFSET)
+			/ Chip8InterpreterCore.RAM_PAGE_SIZE;
+	private static final int PAGE_MASK_LONGS = (MAX_PAGES + 63) / 64;
+	private static final int PAGE_SIZE = Chip8InterpreterCore.RAM_PAGE_SIZE;
+	private static final int ROWS = Chip8InterpreterCore.HIRES_DISPLAY_HEIGHT;
+	private static final int ROW_SIZE = Chip8InterpreterCore.VRAM_ROW_LONGS * 8;
+	// Registers and everything else before VRAM
+	private static final int REGISTERS_SIZE = Chip8InterpreterCore.STATE_VRAM_OFFSET;
+	// Delta header: dirty row mask and as many longs of dirty page mask as
+	// the ram of the states needs
+	private static final int MAX_DELTA_SIZE = 8 + PAGE_MASK_LONGS * 8 + MAX_PAGES * PAGE_SIZE + ROWS * ROW_SIZE
+			+ REGISTERS_SIZE;
+
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 60;
+
+	private final byte[] arena;
+	private final int keyframeInterval;
+
+	// Per entry, indexed circularly from head
+	private final int[] offsets;
+	private final int[] lengths;
+	private final boolean[] keyframes;
+	private int head;
+	private int count;
+	private int writePosition;
+	private int framesSinceKeyframe;
+	// Of every entry, deltas cover the ram of states of this size
+	private int stateSize;
+	private final long[] pages;
+
+	// Captures write into the arena through arenaBuffer, restores go through
+	// the scratch state
+	private final ByteBuffer arenaBuffer;
+	private final byte[] restored;
+	private final ByteBuffer restoredBuffer;
+
+	// Capture cost, written by the emulation thread
+	private volatile long lastCaptureNanos;
+	private volatile long maxCaptureNanos;
+	private volatile long totalCaptureNanos;
+	private volatile long captures;
+
+	public RewindBuffer(int capacityBytes, int maxFrames) {
+		this(capacityBytes, maxFrames, DEFAULT_KEYFRAME_INTERVAL);
+	}
+
+	public RewindBuffer(int capacityBytes, int maxFrames, int keyframeInterval) {
+		if (capacityBytes < 2 * (Chip8InterpreterCore.STATE_SIZE + MAX_DELTA_SIZE))
+			throw new IllegalArgumentException("Rewind capacity too small: " + capacityBytes);
+		if (maxFrames < 2 || keyframeInterval < 1)
+			throw new IllegalArgumentException("Invalid rewind frame count " + maxFrames + "/" + keyframeInterval);
+
+		this.arena = new byte[capacityBytes];
+		this.keyframeInterval = keyframeInterval;
+		this.offsets = new int[maxFrames];
+		this.lengths = new int[maxFrames];
+		this.keyframes = new boolean[maxFrames];
+		this.arenaBuffer = ByteBuffer.wrap(arena);
+		this.restored = new byte[Chip8InterpreterCore.STATE_SIZE];
+		this.restoredBuffer = ByteBuffer.wrap(restored);
+		this.pages = new long[PAGE_MASK_LONGS];
+	}
+
+	// Stores the state of the core at the end of a frame
+	public void capture(Chip8InterpreterCore core) {
+		long start = System.nanoTime();
+
+		int size = core.getStateSize();
+		core.takeDirtyPages(pages);
+		long rows = core.takeDirtyRows();
+
+		if (count == offsets.length)
+			evictOldest();
+		boolean keyframe = count == 0 || framesSinceKeyframe + 1 >= keyframeInterval || size != stateSize;
+		stateSize = size;
+		if (!keyframe)
+			size = deltaSize(rows);
+		int offset = allocate(size);
+		if (!keyframe && count == 0) {
+			// The frame this delta was based on got evicted
+			keyframe = true;
+			size = stateSize;
+			offset = allocate(size);
+		}
+
+		// Only keyframes serialize the whole state, deltas copy what changed
+		// straight from the core
+		if (keyframe) {
+			arenaBuffer.clear();
+			arenaBuffer.position(offset);
+			core.saveState(arenaBuffer);
+			framesSinceKeyframe = 0;
+		} else {
+			writeDelta(core, offset, rows);
+			framesSinceKeyframe++;
+		}
+
+		int entry = index(count++);
+		offsets[entry] = offset;
+		lengths[entry] = size;
+		keyframes[entry] = keyframe;
+		writePosition = offset + size;
+
+		long nanos = System.nanoTime() - start;
+		lastCaptureNanos = nanos;
+		if (nanos > maxCaptureNanos)
+			maxCaptureNanos = nanos;
+		totalCaptureNanos += nanos;
+		captures++;
+	}
+
+	// Drops the newest frame and restores the one before it. Returns false
+	// when there is no earlier frame left
+	public boolean rewind(Chip8InterpreterCore core) {
+		if (count < 2)
+			return false;
+
+		// Newest keyframe at or before the target, then its deltas in order
+		int target = --count - 1;
+		writePosition = offsets[index(target)] + lengths[index(target)];
+		int keyframe = target;
+		while (!keyframes[index(keyframe)])
+			keyframe--;
+
+		System.arraycopy(arena, offsets[index(keyframe)], restored, 0, stateSize);
+		for (int i = keyframe + 1; i <= target; i++)
+			applyDelta(offsets[index(i)]);
+		framesSinceKeyframe = target - keyframe;
+
+		restoredBuffer.clear();
+		core.loadState(restoredBuffer);
+		// The next capture is a delta against the restored frame
+		core.takeDirtyPages(pages);
+		core.takeDirtyRows();
+		return true;
+	}
+
+	public void clear() {
+		head = 0;
+		count = 0;
+		writePosition = 0;
+		framesSinceKeyframe = 0;
+	}
+
+	// Number of frames that can currently be rewound
+	public int getFrameCount() {
+		return Math.max(count - 1, 0);
+	}
+
+	public int getCapacityBytes() {
+		return arena.length;
+	}
+
+	public int getBytesUsed() {
+		if (count == 0)
+			return 0;
+
+		int oldest = offsets[head];
+		return writePosition > oldest ? writePosition - oldest : arena.length - oldest + writePosition;
+	}
+
+	public long getLastCaptureNanos() {
+		return lastCaptureNanos;
+	}
+
+	public long getMaxCaptureNanos() {
+		return maxCaptureNanos;
+	}
+
+	public long getAverageCaptureNanos() {
+		long captures = this.captures;
+		return captures == 0 ? 0 : totalCaptureNanos / captures;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d frames, %d/%d KB, capture %.1f us avg, %.1f us max", getFrameCount(),
+				getBytesUsed() / 1024, getCapacityBytes() / 1024, getAverageCaptureNanos() / 1e3,
+				getMaxCaptureNanos() / 1e3);
+	}
+
+	// Ram pages of the states in the buffer, and the longs of their mask
+	private int pageCount() {
+		return (stateSize - Chip8InterpreterCore.STATE_RAM_OFFSET) / PAGE_SIZE;
+	}
+
+	private int pageMaskLongs() {
+		return (pageCount() + 63) / 64;
+	}
+
+	private int deltaSize(long rows) {
+		int dirtyPages = 0;
+		for (int i = 0; i < pageMaskLongs(); i++)
+			dirtyPages += Long.bitCount(pages[i]);
+		return 8 + pageMaskLongs() * 8 + dirtyPages * PAGE_SIZE + Long.bitCount(rows) * ROW_SIZE + REGISTERS_SIZE;
+	}
+
+	private void writeDelta(Chip8InterpreterCore core, int offset, long rows) {
+		offset = writeLong(offset, rows);
+		for (int i = 0; i < pageMaskLongs(); i++)
+			offset = writeLong(offset, pages[i]);
+
+		for (int page = 0; page < pageCount(); page++)
+			if ((pages[page >>> 6] & (1L << page)) != 0) {
+				core.copyRamPage(page, arena, offset);
+				offset += PAGE_SIZE;
+			}
+		for (int row = 0; row < ROWS; row++)
+			if ((rows & (1L << row)) != 0)
+				offset = core.copyVramRow(row, arena, offset);
+		arenaBuffer.clear();
+		arenaBuffer.position(offset);
+		core.saveHeader(arenaBuffer);
+	}
+
+	private void applyDelta(int offset) {
+		long rows = readLong(offset);
+		offset += 8;
+		for (int i = 0; i < pageMaskLongs(); i++, offset += 8)
+			pages[i] = readLong(offset);
+
+		for (int page = 0; page < pageCount(); page++)
+			if ((pages[page >>> 6] & (1L << page)) != 0) {
+				System.arraycopy(arena, offset, restored, Chip8InterpreterCore.STATE_RAM_OFFSET + page * PAGE_SIZE,
+						PAGE_SIZE);
+				offset += PAGE_SIZE;
+			}
+		for (int row = 0; row < ROWS; row++)
+			if ((rows & (1L << row)) != 0) {
+				System.arraycopy(arena, offset, restored, Chip8InterpreterCore.STATE_VRAM_OFFSET + row * ROW_SIZE,
+						ROW_SIZE);
+				offset += ROW_SIZE;
+			}
+		System.arraycopy(arena, offset, restored, 0, REGISTERS_SIZE);
+	}
+
+	private int writeLong(int offset, long value) {
+		for (int shift = 56; shift >= 0; shift -= 8)
+			arena[offset++] = (byte) (value >>> shift);
+		return offset;
+	}
+
+	private long readLong(int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++)
+			value = value << 8 | arena[offset + i] & 0xFF;
+		return value;
+	}
+
+	// Finds room for size bytes after the newest entry, wrapping to the start
+	// of the arena and evicting the oldest frames as needed
+	private int allocate(int size) {
+		int offset = writePosition + size <= arena.length ? writePosition : 0;
+		while (count > 0 && overlapsLive(offset, size))
+			evictOldest();
+
+		return count == 0 ? (writePosition = 0) : offset;
+	}
+
+	private boolean overlapsLive(int offset, int size) {
+		int oldest = offsets[head];
+		if (oldest < writePosition)
+			// Live data is [oldest, writePosition), only a wrapped offset can hit it
+			return offset < writePosition && offset + size > oldest;
+
+		// Live data wraps: [oldest, end) and [0, writePosition)
+		return offset < writePosition || offset + size > oldest;
+	}
+
+	// Drops the oldest keyframe together with the deltas depending on it
+	private void evictOldest() {
+		do {
+			head = index(1);
+			count--;
+		} while (count > 0 && !keyframes[head]);
+	}
+
+	private int index(int entry) {
+		int index = head + entry;
+		return index >= offsets.length ? index - offsets.length : index;
+	}
+}
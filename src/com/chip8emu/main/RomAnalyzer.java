@@ -0,0 +1,671 @@
+package com.chip8emu.main;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Static analysis of CHIP-8 ROMs. Follows the control flow from 0x200 through
+ * jumps, calls and skips with Chip8Decoder, splits the reachable instructions
+ * into basic blocks, separates code from data and counts opcodes. BNNN jumps
+ * depend on V0 and are only flagged. SUPER-CHIP and XO-CHIP ROMs are decoded
+ * with their extensions, the variant is taken from the file extension.
+ * Analyses feed disassembly listings, corpus statistics and
+ * Chip8InterpreterCore.prewarm(). Run with a ROM file to print its
+ * disassembly, or with a directory to analyze every ROM in it on a fork-join
+ * pool and write one JSON line per ROM.
+ */
+public final class RomAnalyzer {
+	private static final String DEFAULT_REPORT = "analysis.jsonl";
+	// ROMs analyzed by one fork-join leaf task
+	private static final int ROMS_PER_TASK = 4;
+	// Longest run of bytes ANNN can point at, FX55/FX65 with F
+	private static final int MAX_DATA_REFERENCE = 16;
+
+	// Classification of each ROM byte
+	public static final byte KIND_UNREACHED = 0;
+	public static final byte KIND_CODE = 1;
+	// Not code, but inside the 16 bytes after an ANNN target
+	public static final byte KIND_DATA = 2;
+
+	public static final int BLOCK_CALL = 1;
+	public static final int BLOCK_RETURN = 2;
+	// Ends with BNNN, its successors are unknown
+	public static final int BLOCK_INDIRECT = 4;
+	// Ends with an instruction the interpreter fails on
+	public static final int BLOCK_INVALID = 8;
+	// Can run past the end of ram
+	public static final int BLOCK_EOF = 16;
+	// Target of a backward edge, the start of a loop
+	public static final int BLOCK_LOOP_HEAD = 32;
+	// Ends with the SUPER-CHIP 00FD
+	public static final int BLOCK_EXIT = 64;
+
+	public static void main(String[] argv) throws IOException, InterruptedException {
+		if (argv.length < 1) {
+			System.err.println("Usage: RomAnalyzer <rom file> | <rom directory> [report=" + DEFAULT_REPORT + "]");
+			System.exit(-1);
+		}
+
+		Path path = Paths.get(argv[0]);
+		if (!Files.isDirectory(path)) {
+			System.out.print(analyze(ByteBuffer.wrap(Files.readAllBytes(path)), variantOf(path.toString()))
+					.disassemble());
+			return;
+		}
+
+		long start = System.nanoTime();
+		RomLibrary library = new RomLibrary(null);
+		library.refresh(Collections.singletonList(path));
+		List<RomLibrary.Entry> roms = library.getEntries();
+		Analysis[] analyses = analyzeAll(library, roms);
+		Path report = Paths.get(argv.length > 1 ? argv[1] : DEFAULT_REPORT);
+		writeReport(roms, analyses, report);
+		System.out.println(String.format("%d ROMs in %.3f s -> %s", roms.size(), (System.nanoTime() - start) / 1e9,
+				report));
+		printSummary(analyses);
+	}
+
+	/**
+	 * Basic block of reachable instructions. Addresses are instruction
+	 * pointer values, the first instruction of a ROM is at 0x200.
+	 */
+	public static final class Block {
+		public final int start;
+		// Address after the last instruction, XO-CHIP has a four byte one
+		public final int end;
+		public final int instructions;
+		public final int flags;
+		// Statically known successor blocks, calls list the target first
+		public final int[] successors;
+
+		Block(int start, int end, int instructions, int flags, int[] successors) {
+			this.start = start;
+			this.end = end;
+			this.instructions = instructions;
+			this.flags = flags;
+			this.successors = successors;
+		}
+
+		public boolean is(int flag) {
+			return (flags & flag) != 0;
+		}
+	}
+
+	public static final class Analysis {
+		public final Chip8Variant variant;
+		public final long programHash;
+		public final int size;
+		// Sorted by start
+		public final List<Block> blocks;
+		// Per ROM byte, one of the KIND constants
+		public final byte[] kinds;
+		// Reachable instructions per Chip8Decoder operation
+		public final int[] histogram;
+		// Consecutive operation pairs inside blocks, first * OP_COUNT + second
+		public final int[] pairs;
+		// Addresses of BNNN instructions
+		public final int[] indirectJumps;
+		public final int instructions;
+
+		// Same layout as the interpreter ram
+		private final byte[] ram;
+
+		Analysis(Chip8Variant variant, long programHash, int size, List<Block> blocks, byte[] kinds, int[] histogram,
+				int[] pairs, int[] indirectJumps, int instructions, byte[] ram) {
+			this.variant = variant;
+			this.programHash = programHash;
+			this.size = size;
+			this.blocks = blocks;
+			this.kinds = kinds;
+			this.histogram = histogram;
+			this.pairs = pairs;
+			this.indirectJumps = indirectJumps;
+			this.instructions = instructions;
+			this.ram = ram;
+		}
+
+		public int countBytes(byte kind) {
+			int count = 0;
+			for (byte k : kinds)
+				if (k == kind)
+					count++;
+			return count;
+		}
+
+		public int countBlocks(int flag) {
+			int count = 0;
+			for (Block block : blocks)
+				if (block.is(flag))
+					count++;
+			return count;
+		}
+
+		// Block starting at address, null if there is none
+		public Block blockAt(int address) {
+			int low = 0;
+			int high = blocks.size() - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int start = blocks.get(middle).start;
+				if (start < address)
+					low = middle + 1;
+				else if (start > address)
+					high = middle - 1;
+				else
+					return blocks.get(middle);
+			}
+			return null;
+		}
+
+		// Listing of the ROM, blocks with their successors and everything
+		// else as data rows
+		public String disassemble() {
+			StringBuilder listing = new StringBuilder();
+			int origin = Chip8InterpreterCore.CHIP8_PROGLOAD_ADDR;
+			int address = origin;
+			for (Block block : blocks) {
+				appendData(listing, address, Math.min(block.start, origin + size));
+				appendBlock(listing, block);
+				address = Math.max(address, block.end);
+			}
+			appendData(listing, address, origin + size);
+			return listing.toString();
+		}
+
+		// 8 bytes per row
+		private void appendData(StringBuilder listing, int from, int to) {
+			for (int address = from; address < to; address += 8) {
+				listing.append(String.format("%04X ", address));
+				for (int a = address; a < Math.min(address + 8, to); a++)
+					listing.append(String.format(" %02X", ram[a + 1] & 0xFF));
+				listing.append(kinds[address - Chip8InterpreterCore.CHIP8_PROGLOAD_ADDR] == KIND_DATA
+						? "  ; data\n" : "  ; unreached\n");
+			}
+		}
+
+		private void appendBlock(StringBuilder listing, Block block) {
+			listing.append(String.format("\n; block %04X, %d instructions", block.start, block.instructions));
+			String[] names = { "call", "return", "indirect", "invalid", "eof", "loop head", "exit" };
+			for (int i = 0; i < names.length; i++)
+				if (block.is(1 << i))
+					listing.append(", ").append(names[i]);
+			if (block.successors.length > 0) {
+				listing.append(" ->");
+				for (int successor : block.successors)
+					listing.append(String.format(" %04X", successor));
+			}
+			listing.append('\n');
+
+			for (int a = block.start; a < block.end; a += Chip8Decoder.length(fetch(ram, a), variant)) {
+				int opcode = fetch(ram, a);
+				if (Chip8Decoder.length(opcode, variant) == 4)
+					listing.append(String.format("%04X  %04X %04X  LD I, 0x%04X\n", a, opcode, fetch(ram, a + 2),
+							fetch(ram, a + 2)));
+				else
+					listing.append(String.format("%04X  %04X  %s\n", a, opcode, format(opcode, variant)));
+			}
+		}
+	}
+
+	private RomAnalyzer() {
+	}
+
+	public static Analysis analyze(ByteBuffer code) {
+		return analyze(code, Chip8Variant.CHIP8);
+	}
+
+	// Analyzes the remaining bytes of code, the buffer position is left
+	// unchanged. Returns null when the ROM does not fit into ram
+	public static Analysis analyze(ByteBuffer code, Chip8Variant variant) {
+		int length = code.remaining();
+		byte[] ram = new byte[variant.ramSize];
+		if (length > ram.length - Chip8InterpreterCore.CHIP8_PROGLOAD_ADDR - 1)
+			return null;
+
+		System.arraycopy(Chip8InterpreterCore.CHIP8_FONT_DATA, 0, ram, 0, Chip8InterpreterCore.CHIP8_FONT_DATA.length);
+		if (variant != Chip8Variant.CHIP8)
+			System.arraycopy(Chip8InterpreterCore.BIG_FONT_DATA, 0, ram, Chip8InterpreterCore.BIG_FONT_ADDR,
+					Chip8InterpreterCore.BIG_FONT_DATA.length);
+		code.duplicate().get(ram, 1 + Chip8InterpreterCore.CHIP8_PROGLOAD_ADDR, length);
+		return analyze(ram, length, variant);
+	}
+
+	// Variant a ROM is analyzed as, by the extension of its name
+	public static Chip8Variant variantOf(String name) {
+		Chip8Variant variant = Chip8Variant.forFileName(name);
+		return variant != null ? variant : Chip8Variant.CHIP8;
+	}
+
+	// Analyzes a ram image laid out like the interpreter ram with a ROM of
+	// length bytes. The image is kept by the analysis and must not change
+	static Analysis analyze(byte[] ram, int length, Chip8Variant variant) {
+		final int origin = Chip8InterpreterCore.CHIP8_PROGLOAD_ADDR;
+		final int lastAddress = ram.length - 2;
+		// Size of the instruction at each reached address, 0 elsewhere
+		byte[] reached = new byte[ram.length];
+		boolean[] leaders = new boolean[ram.length];
+		int[] histogram = new int[Chip8Decoder.OP_COUNT];
+		List<Integer> indirectJumps = new ArrayList<>();
+		List<Integer> dataReferences = new ArrayList<>();
+		int instructions = 0;
+
+		// Depth first over the leaders, following fall-through in place
+		int[] work = new int[ram.length];
+		int pending = 0;
+		work[pending++] = origin;
+		leaders[origin] = true;
+		while (pending > 0) {
+			int ip = work[--pending];
+			while (ip >= 0 && ip < lastAddress && reached[ip] == 0) {
+				int opcode = fetch(ram, ip);
+				int size = Chip8Decoder.length(opcode, variant);
+				reached[ip] = (byte) size;
+				instructions++;
+				int decoded = Chip8Decoder.decode(opcode, variant);
+				int op = Chip8Decoder.op(decoded);
+				histogram[op]++;
+
+				if (op == Chip8Decoder.OP_LD_I)
+					dataReferences.add(Chip8Decoder.nnn(decoded));
+				if (op == Chip8Decoder.OP_LD_I_LONG && ip + 2 < lastAddress)
+					dataReferences.add(fetch(ram, ip + 2));
+				if (op == Chip8Decoder.OP_JP_V0)
+					indirectJumps.add(ip);
+
+				int[] successors = successors(ram, ip, size, decoded, variant);
+				if (successors == null) {
+					ip += size;
+					continue;
+				}
+				for (int successor : successors)
+					if (successor >= 0 && successor < lastAddress && !leaders[successor]) {
+						leaders[successor] = true;
+						work[pending++] = successor;
+					}
+				break;
+			}
+		}
+
+		// Blocks run from each leader to the next terminator or leader
+		List<Block> blocks = new ArrayList<>();
+		int[] pairs = new int[Chip8Decoder.OP_COUNT * Chip8Decoder.OP_COUNT];
+		for (int start = 0; start < lastAddress; start++) {
+			if (!leaders[start] || reached[start] == 0)
+				continue;
+
+			int ip = start;
+			int count = 0;
+			int previous = -1;
+			int last;
+			int[] successors;
+			while (true) {
+				last = Chip8Decoder.decode(fetch(ram, ip), variant);
+				int op = Chip8Decoder.op(last);
+				if (previous >= 0)
+					pairs[previous * Chip8Decoder.OP_COUNT + op]++;
+				previous = op;
+				count++;
+
+				successors = successors(ram, ip, reached[ip], last, variant);
+				ip += reached[ip];
+				if (successors != null)
+					break;
+				if (ip >= lastAddress || leaders[ip]) {
+					successors = new int[] { ip };
+					break;
+				}
+			}
+
+			blocks.add(new Block(start, ip, count, flags(last, successors, lastAddress),
+					inRange(successors, lastAddress)));
+		}
+
+		// Loops are approximated by backward edges
+		boolean[] loopHeads = new boolean[ram.length];
+		for (Block block : blocks)
+			for (int successor : block.successors)
+				if (successor <= block.start)
+					loopHeads[successor] = true;
+		for (int i = 0; i < blocks.size(); i++) {
+			Block block = blocks.get(i);
+			if (loopHeads[block.start])
+				blocks.set(i, new Block(block.start, block.end, block.instructions, block.flags | BLOCK_LOOP_HEAD,
+						block.successors));
+		}
+
+		// Code bytes win over data references into them
+		byte[] kinds = new byte[length];
+		for (int target : dataReferences)
+			for (int a = target; a < target + MAX_DATA_REFERENCE; a++)
+				if (a >= origin && a < origin + length)
+					kinds[a - origin] = KIND_DATA;
+		for (int ip = origin; ip < origin + length; ip++)
+			for (int a = ip; a < Math.min(ip + reached[ip], origin + length); a++)
+				kinds[a - origin] = KIND_CODE;
+
+		int[] indirect = new int[indirectJumps.size()];
+		for (int i = 0; i < indirect.length; i++)
+			indirect[i] = indirectJumps.get(i);
+
+		return new Analysis(variant, Fnv1a.hash(ram, 1 + origin, length), length,
+				Collections.unmodifiableList(blocks), kinds, histogram, pairs, indirect, instructions, ram);
+	}
+
+	// Analyzes the ROMs on a fork-join pool, entries that cannot be read or
+	// do not fit into ram have a null analysis
+	public static Analysis[] analyzeAll(final RomLibrary library, final List<RomLibrary.Entry> roms) {
+		final Analysis[] analyses = new Analysis[roms.size()];
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke(new AnalyzeTask(library, roms, analyses, 0, roms.size()));
+		} finally {
+			pool.shutdown();
+		}
+		return analyses;
+	}
+
+	private static final class AnalyzeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final RomLibrary library;
+		private final List<RomLibrary.Entry> roms;
+		private final Analysis[] analyses;
+		private final int from;
+		private final int to;
+
+		AnalyzeTask(RomLibrary library, List<RomLibrary.Entry> roms, Analysis[] analyses, int from, int to) {
+			this.library = library;
+			this.roms = roms;
+			this.analyses = analyses;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > ROMS_PER_TASK) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new AnalyzeTask(library, roms, analyses, from, middle),
+						new AnalyzeTask(library, roms, analyses, middle, to));
+				return;
+			}
+
+			for (int i = from; i < to; i++) {
+				try {
+					analyses[i] = analyze(library.read(roms.get(i)), variantOf(roms.get(i).name));
+				} catch (IOException e) {
+					System.err.println(roms.get(i).location + ": " + e);
+				}
+			}
+		}
+	}
+
+	// Successors of a control flow instruction of size bytes at ip, null for
+	// instructions that fall through to the next one
+	private static int[] successors(byte[] ram, int ip, int size, int decoded, Chip8Variant variant) {
+		int next = ip + size;
+		switch (Chip8Decoder.op(decoded)) {
+		case Chip8Decoder.OP_JP:
+			return new int[] { Chip8Decoder.nnn(decoded) };
+		case Chip8Decoder.OP_CALL:
+			return new int[] { Chip8Decoder.nnn(decoded), next };
+		case Chip8Decoder.OP_SE_VX_NN:
+		case Chip8Decoder.OP_SNE_VX_NN:
+		case Chip8Decoder.OP_SE_VX_VY:
+		case Chip8Decoder.OP_SNE_VX_VY:
+		case Chip8Decoder.OP_SKP:
+		case Chip8Decoder.OP_SKNP:
+			// Skips jump over F000 NNNN as a whole
+			return new int[] { next,
+					next + (next < ram.length - 2 ? Chip8Decoder.length(fetch(ram, next), variant) : 2) };
+		case Chip8Decoder.OP_RET:
+		case Chip8Decoder.OP_JP_V0:
+		case Chip8Decoder.OP_EXIT:
+		case Chip8Decoder.OP_INVALID:
+		case Chip8Decoder.OP_RCA:
+			return new int[0];
+		default:
+			return null;
+		}
+	}
+
+	private static int flags(int last, int[] successors, int lastAddress) {
+		int flags = 0;
+		switch (Chip8Decoder.op(last)) {
+		case Chip8Decoder.OP_CALL:
+			flags |= BLOCK_CALL;
+			break;
+		case Chip8Decoder.OP_RET:
+			flags |= BLOCK_RETURN;
+			break;
+		case Chip8Decoder.OP_JP_V0:
+			flags |= BLOCK_INDIRECT;
+			break;
+		case Chip8Decoder.OP_EXIT:
+			flags |= BLOCK_EXIT;
+			break;
+		case Chip8Decoder.OP_INVALID:
+		case Chip8Decoder.OP_RCA:
+			flags |= BLOCK_INVALID;
+			break;
+		default:
+			break;
+		}
+		for (int successor : successors)
+			if (successor < 0 || successor >= lastAddress)
+				flags |= BLOCK_EOF;
+		return flags;
+	}
+
+	private static int[] inRange(int[] successors, int lastAddress) {
+		int count = 0;
+		for (int successor : successors)
+			if (successor >= 0 && successor < lastAddress)
+				successors[count++] = successor;
+		return count == successors.length ? successors : Arrays.copyOf(successors, count);
+	}
+
+	private static int fetch(byte[] ram, int address) {
+		return (ram[address + 1] & 0xFF) << 8 | ram[address + 2] & 0xFF;
+	}
+
+	public static String format(int opcode) {
+		return format(opcode, Chip8Variant.CHIP8);
+	}
+
+	// Assembly syntax of Cowgod's reference, extended by the SUPER-CHIP and
+	// XO-CHIP instructions, undecodable words as DW. The operand of F000 NNNN
+	// is not part of opcode and left out
+	public static String format(int opcode, Chip8Variant variant) {
+		int decoded = Chip8Decoder.decode(opcode, variant);
+		int x = Chip8Decoder.x(decoded);
+		int y = Chip8Decoder.y(decoded);
+		switch (Chip8Decoder.op(decoded)) {
+		case Chip8Decoder.OP_NOP:
+			return "NOP";
+		case Chip8Decoder.OP_CLS:
+			return "CLS";
+		case Chip8Decoder.OP_RET:
+			return "RET";
+		case Chip8Decoder.OP_RCA:
+			return String.format("SYS 0x%03X", opcode & 0xFFF);
+		case Chip8Decoder.OP_JP:
+			return String.format("JP 0x%03X", Chip8Decoder.nnn(decoded));
+		case Chip8Decoder.OP_CALL:
+			return String.format("CALL 0x%03X", Chip8Decoder.nnn(decoded));
+		case Chip8Decoder.OP_SE_VX_NN:
+		case Chip8Decoder.OP_SNE_VX_NN:
+		case Chip8Decoder.OP_LD_VX_NN:
+		case Chip8Decoder.OP_ADD_VX_NN:
+		case Chip8Decoder.OP_RND:
+			return String.format("%s V%X, 0x%02X", Chip8Decoder.mnemonic(decoded), x, Chip8Decoder.nn(decoded));
+		case Chip8Decoder.OP_SE_VX_VY:
+		case Chip8Decoder.OP_SNE_VX_VY:
+		case Chip8Decoder.OP_LD_VX_VY:
+		case Chip8Decoder.OP_OR:
+		case Chip8Decoder.OP_AND:
+		case Chip8Decoder.OP_XOR:
+		case Chip8Decoder.OP_ADD_VX_VY:
+		case Chip8Decoder.OP_SUB:
+		case Chip8Decoder.OP_SHR:
+		case Chip8Decoder.OP_SUBN:
+		case Chip8Decoder.OP_SHL:
+			return String.format("%s V%X, V%X", Chip8Decoder.mnemonic(decoded), x, y);
+		case Chip8Decoder.OP_LD_I:
+			return String.format("LD I, 0x%03X", Chip8Decoder.nnn(decoded));
+		case Chip8Decoder.OP_JP_V0:
+			return String.format("JP V0, 0x%03X", Chip8Decoder.nnn(decoded));
+		case Chip8Decoder.OP_DRW:
+			return String.format("DRW V%X, V%X, %d", x, y, Chip8Decoder.n(decoded));
+		case Chip8Decoder.OP_SKP:
+		case Chip8Decoder.OP_SKNP:
+			return String.format("%s V%X", Chip8Decoder.mnemonic(decoded), x);
+		case Chip8Decoder.OP_LD_VX_DT:
+			return String.format("LD V%X, DT", x);
+		case Chip8Decoder.OP_LD_VX_K:
+			return String.format("LD V%X, K", x);
+		case Chip8Decoder.OP_LD_DT_VX:
+			return String.format("LD DT, V%X", x);
+		case Chip8Decoder.OP_LD_ST_VX:
+			return String.format("LD ST, V%X", x);
+		case Chip8Decoder.OP_ADD_I_VX:
+			return String.format("ADD I, V%X", x);
+		case Chip8Decoder.OP_LD_F_VX:
+			return String.format("LD F, V%X", x);
+		case Chip8Decoder.OP_LD_B_VX:
+			return String.format("LD B, V%X", x);
+		case Chip8Decoder.OP_LD_I_VX:
+			return String.format("LD [I], V%X", x);
+		case Chip8Decoder.OP_LD_VX_I:
+			return String.format("LD V%X, [I]", x);
+		case Chip8Decoder.OP_SCD:
+			return String.format("SCD %d", Chip8Decoder.n(decoded));
+		case Chip8Decoder.OP_SCU:
+			return String.format("SCU %d", Chip8Decoder.n(decoded));
+		case Chip8Decoder.OP_SCR:
+		case Chip8Decoder.OP_SCL:
+		case Chip8Decoder.OP_EXIT:
+		case Chip8Decoder.OP_LOW:
+		case Chip8Decoder.OP_HIGH:
+		case Chip8Decoder.OP_AUDIO:
+			return Chip8Decoder.mnemonic(decoded);
+		case Chip8Decoder.OP_LD_HF_VX:
+			return String.format("LD HF, V%X", x);
+		case Chip8Decoder.OP_LD_R_VX:
+			return String.format("LD R, V%X", x);
+		case Chip8Decoder.OP_LD_VX_R:
+			return String.format("LD V%X, R", x);
+		case Chip8Decoder.OP_SAVE_VX_VY:
+			return String.format("SAVE V%X - V%X", x, y);
+		case Chip8Decoder.OP_LOAD_VX_VY:
+			return String.format("LOAD V%X - V%X", x, y);
+		case Chip8Decoder.OP_LD_I_LONG:
+			return "LD I, long";
+		case Chip8Decoder.OP_PLANE:
+			return String.format("PLANE %d", x);
+		case Chip8Decoder.OP_PITCH:
+			return String.format("PITCH V%X", x);
+		default:
+			return String.format("DW 0x%04X", opcode);
+		}
+	}
+
+	// One line per ROM: sizes, byte classes, indirect jumps, the dense
+	// histogram indexed by Chip8Decoder operation and the blocks as start,
+	// instruction count and flags triples
+	private static void writeReport(List<RomLibrary.Entry> roms, Analysis[] analyses, Path report)
+			throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+			StringBuilder line = new StringBuilder();
+			for (int i = 0; i < analyses.length; i++) {
+				Analysis analysis = analyses[i];
+				line.setLength(0);
+				line.append("{\"rom\":\"").append(HeadlessBatchRunner.escape(roms.get(i).name));
+				line.append("\",\"hash\":\"").append(String.format("%016x", roms.get(i).hash)).append('"');
+				if (analysis == null) {
+					line.append(",\"error\":\"unreadable or too big\"}");
+				} else {
+					line.append(",\"size\":").append(analysis.size);
+					line.append(",\"instructions\":").append(analysis.instructions);
+					line.append(",\"codeBytes\":").append(analysis.countBytes(KIND_CODE));
+					line.append(",\"dataBytes\":").append(analysis.countBytes(KIND_DATA));
+					line.append(",\"unreachedBytes\":").append(analysis.countBytes(KIND_UNREACHED));
+					line.append(",\"indirectJumps\":[");
+					for (int j = 0; j < analysis.indirectJumps.length; j++)
+						line.append(j > 0 ? "," : "").append(analysis.indirectJumps[j]);
+					line.append("],\"histogram\":[");
+					for (int op = 0; op < Chip8Decoder.OP_COUNT; op++)
+						line.append(op > 0 ? "," : "").append(analysis.histogram[op]);
+					line.append("],\"blocks\":[");
+					for (int j = 0; j < analysis.blocks.size(); j++) {
+						Block block = analysis.blocks.get(j);
+						line.append(j > 0 ? "," : "").append(block.start).append(',').append(block.instructions)
+								.append(',').append(block.flags);
+					}
+					line.append("]}");
+				}
+				writer.write(line.toString());
+				writer.newLine();
+			}
+		}
+	}
+
+	// Corpus wide operation and pair counts, the candidates for fast paths
+	// and superinstructions
+	private static void printSummary(Analysis[] analyses) {
+		long[] histogram = new long[Chip8Decoder.OP_COUNT];
+		long[] pairs = new long[Chip8Decoder.OP_COUNT * Chip8Decoder.OP_COUNT];
+		long instructions = 0;
+		long blocks = 0;
+		long loopHeads = 0;
+		long indirect = 0;
+		for (Analysis analysis : analyses) {
+			if (analysis == null)
+				continue;
+			for (int op = 0; op < histogram.length; op++)
+				histogram[op] += analysis.histogram[op];
+			for (int pair = 0; pair < pairs.length; pair++)
+				pairs[pair] += analysis.pairs[pair];
+			instructions += analysis.instructions;
+			blocks += analysis.blocks.size();
+			loopHeads += analysis.countBlocks(BLOCK_LOOP_HEAD);
+			indirect += analysis.indirectJumps.length;
+		}
+
+		System.out.println(String.format("%d instructions in %d blocks (%.1f per block), %d loop heads, %d BNNN",
+				instructions, blocks, blocks == 0 ? 0 : (double) instructions / blocks, loopHeads, indirect));
+		System.out.println("Operations:");
+		for (int op : top(histogram, 10))
+			System.out.println(String.format("  %-9s %8d", Chip8Decoder.pattern(op), histogram[op]));
+		System.out.println("Pairs:");
+		for (int pair : top(pairs, 10))
+			System.out.println(String.format("  %-4s %-4s %8d", Chip8Decoder.pattern(pair / Chip8Decoder.OP_COUNT),
+					Chip8Decoder.pattern(pair % Chip8Decoder.OP_COUNT), pairs[pair]));
+	}
+
+	// Indices of the largest non-zero counts, largest first
+	private static List<Integer> top(long[] counts, int limit) {
+		List<Integer> indices = new ArrayList<>();
+		for (int i = 0; i < counts.length && indices.size() < limit; i++) {
+			int best = -1;
+			for (int j = 0; j < counts.length; j++)
+				if (counts[j] > 0 && !indices.contains(j) && (best < 0 || counts[j] > counts[best]))
+					best = j;
+			if (best < 0)
+				break;
+			indices.add(best);
+		}
+		return indices;
+	}
+}
@@ -0,0 +1,324 @@
+package com.chip8emu.main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Index of the .ch8, .sc8 and .xo8 ROMs found in directories and zip archives. Each entry
+ * holds the location, size, modification time and FNV-1a content hash of a
+ * ROM. The index can be kept in a file, so opening a library of tens of
+ * thousands of ROMs is a single sequential read. refresh() rescans in
+ * parallel and only hashes files whose size or modification time changed.
+ * ROM files are memory mapped when loaded, zip entries are inflated.
+ */
+public final class RomLibrary {
+	private static final int INDEX_MAGIC = 0x43385249; // "C8RI"
+	private static final int INDEX_VERSION = 1;
+	// First buffer for zip entries of unknown size
+	private static final int UNKNOWN_SIZE_BUFFER = 4096;
+
+	// Separates an archive from the entry inside it in locations
+	public static final String ARCHIVE_SEPARATOR = "!/";
+
+	/**
+	 * A ROM of the library. Locations are absolute file paths, or archive
+	 * paths followed by ARCHIVE_SEPARATOR and the entry name.
+	 */
+	public static final class Entry {
+		public final String location;
+		public final String name;
+		public final long size;
+		// Of the file, or of the archive containing the ROM
+		public final long lastModified;
+		public final long hash;
+
+		Entry(String location, String name, long size, long lastModified, long hash) {
+			this.location = location;
+			this.name = name;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+
+		public boolean isArchived() {
+			return location.contains(ARCHIVE_SEPARATOR);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s (%d bytes, %016x)", name, size, hash);
+		}
+	}
+
+	private final Path indexFile;
+	private List<Entry> entries = Collections.emptyList();
+	private Map<Long, Entry> byHash = Collections.emptyMap();
+
+	// Without an index file the library only lives in memory
+	public RomLibrary(Path indexFile) throws IOException {
+		this.indexFile = indexFile;
+		if (indexFile != null && Files.exists(indexFile))
+			setEntries(readIndex(indexFile));
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	// Any ROM with this content, null if there is none
+	public Entry findByHash(long hash) {
+		return byHash.get(hash);
+	}
+
+	// Entries whose name contains query, ignoring case
+	public List<Entry> find(String query) {
+		String lowerQuery = query.toLowerCase(Locale.ROOT);
+		List<Entry> found = new ArrayList<>();
+		for (Entry entry : entries)
+			if (entry.name.toLowerCase(Locale.ROOT).contains(lowerQuery))
+				found.add(entry);
+		return found;
+	}
+
+	// Rescans the roots on all cores and writes the index file if there is
+	// one. Returns the number of ROMs that had to be hashed
+	public int refresh(List<Path> roots) throws IOException, InterruptedException {
+		final List<Path> files = new ArrayList<>();
+		for (Path root : roots)
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+					if (attributes.isRegularFile() && (isRom(file) || isArchive(file)))
+						files.add(file.toAbsolutePath());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+
+		// Previous entries by location, and archives whose entries can be
+		// reused as a whole
+		final Map<String, Entry> known = new HashMap<>();
+		final Map<String, List<Entry>> knownArchives = new HashMap<>();
+		for (Entry entry : entries) {
+			known.put(entry.location, entry);
+			int separator = entry.location.indexOf(ARCHIVE_SEPARATOR);
+			if (separator >= 0) {
+				String archive = entry.location.substring(0, separator);
+				if (!knownArchives.containsKey(archive))
+					knownArchives.put(archive, new ArrayList<Entry>());
+				knownArchives.get(archive).add(entry);
+			}
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		List<Entry> scanned = new ArrayList<>();
+		int hashed = 0;
+		try {
+			List<Future<Scan>> futures = new ArrayList<>(files.size());
+			for (final Path file : files)
+				futures.add(pool.submit(new Callable<Scan>() {
+					@Override
+					public Scan call() throws IOException {
+						return isArchive(file) ? scanArchive(file, knownArchives.get(file.toString()))
+								: scanFile(file, known.get(file.toString()));
+					}
+				}));
+
+			for (Future<Scan> future : futures) {
+				try {
+					Scan scan = future.get();
+					scanned.addAll(scan.entries);
+					hashed += scan.hashed;
+				} catch (ExecutionException e) {
+					// Files deleted while scanning are simply gone
+					if (!(e.getCause() instanceof NoSuchFileException))
+						throw new IOException(e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		setEntries(scanned);
+		if (indexFile != null)
+			writeIndex(indexFile, entries);
+		return hashed;
+	}
+
+	// Whole ROM as a read only buffer, memory mapped for plain files
+	public ByteBuffer read(Entry entry) throws IOException {
+		int separator = entry.location.indexOf(ARCHIVE_SEPARATOR);
+		if (separator < 0) {
+			try (FileChannel channel = FileChannel.open(Paths.get(entry.location), StandardOpenOption.READ)) {
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+		}
+
+		try (ZipFile archive = new ZipFile(entry.location.substring(0, separator))) {
+			ZipEntry zipEntry = archive.getEntry(entry.location.substring(separator + ARCHIVE_SEPARATOR.length()));
+			if (zipEntry == null)
+				throw new NoSuchFileException(entry.location);
+			return ByteBuffer.wrap(readFully(archive.getInputStream(zipEntry), (int) zipEntry.getSize()))
+					.asReadOnlyBuffer();
+		}
+	}
+
+	// Reads the ROM straight into the core, see Chip8InterpreterCore.loadCode
+	public boolean load(Chip8InterpreterCore core, Entry entry) throws IOException {
+		return core.loadCode(read(entry));
+	}
+
+	// CHIP-8 ROMs and the SUPER-CHIP and XO-CHIP ones, see Chip8Variant
+	public static boolean isRom(Path file) {
+		String name = file.getFileName().toString();
+		return name.toLowerCase(Locale.ROOT).endsWith(".ch8") || Chip8Variant.forFileName(name) != null;
+	}
+
+	public static boolean isArchive(Path file) {
+		return file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".zip");
+	}
+
+	private static final class Scan {
+		final List<Entry> entries;
+		final int hashed;
+
+		Scan(List<Entry> entries, int hashed) {
+			this.entries = entries;
+			this.hashed = hashed;
+		}
+	}
+
+	private static Scan scanFile(Path file, Entry known) throws IOException {
+		long size = Files.size(file);
+		long lastModified = Files.getLastModifiedTime(file).toMillis();
+		if (known != null && known.size == size && known.lastModified == lastModified)
+			return new Scan(Collections.singletonList(known), 0);
+
+		long hash;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			hash = Fnv1a.hash(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		return new Scan(Collections.singletonList(new Entry(file.toString(), file.getFileName().toString(), size,
+				lastModified, hash)), 1);
+	}
+
+	private static Scan scanArchive(Path file, List<Entry> known) throws IOException {
+		long lastModified = Files.getLastModifiedTime(file).toMillis();
+		if (known != null && known.get(0).lastModified == lastModified)
+			return new Scan(known, 0);
+
+		List<Entry> found = new ArrayList<>();
+		try (ZipFile archive = new ZipFile(file.toFile())) {
+			for (ZipEntry zipEntry : Collections.list(archive.entries())) {
+				if (zipEntry.isDirectory() || !isRom(Paths.get(zipEntry.getName())))
+					continue;
+
+				byte[] code = readFully(archive.getInputStream(zipEntry), (int) zipEntry.getSize());
+				String name = zipEntry.getName().substring(zipEntry.getName().lastIndexOf('/') + 1);
+				found.add(new Entry(file + ARCHIVE_SEPARATOR + zipEntry.getName(), name, code.length, lastModified,
+						Fnv1a.hash(code, 0, code.length)));
+			}
+		}
+		return new Scan(found, found.size());
+	}
+
+	// Reads size bytes, or everything for a negative size
+	private static byte[] readFully(InputStream in, int size) throws IOException {
+		try (InputStream stream = in) {
+			byte[] data = new byte[size >= 0 ? size : UNKNOWN_SIZE_BUFFER];
+			int length = 0;
+			while (true) {
+				if (length == data.length) {
+					if (size >= 0)
+						break;
+					data = Arrays.copyOf(data, 2 * data.length);
+				}
+				int read = stream.read(data, length, data.length - length);
+				if (read < 0)
+					break;
+				length += read;
+			}
+			return length == data.length ? data : Arrays.copyOf(data, length);
+		}
+	}
+
+	private void setEntries(List<Entry> entries) {
+		List<Entry> sorted = new ArrayList<>(entries);
+		Collections.sort(sorted, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				int byName = a.name.compareToIgnoreCase(b.name);
+				return byName != 0 ? byName : a.location.compareTo(b.location);
+			}
+		});
+
+		Map<Long, Entry> byHash = new HashMap<>(sorted.size() * 2);
+		for (Entry entry : sorted)
+			if (!byHash.containsKey(entry.hash))
+				byHash.put(entry.hash, entry);
+
+		this.entries = Collections.unmodifiableList(sorted);
+		this.byHash = byHash;
+	}
+
+	private static List<Entry> readIndex(Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION)
+				throw new IOException("Not a ROM library index: " + file);
+
+			int count = in.readInt();
+			List<Entry> entries = new ArrayList<>(count);
+			for (int i = 0; i < count; i++)
+				entries.add(new Entry(in.readUTF(), in.readUTF(), in.readLong(), in.readLong(), in.readLong()));
+			return entries;
+		}
+	}
+
+	// Written next to the index and moved over it, so a crash never leaves a
+	// broken index behind
+	private static void writeIndex(Path file, List<Entry> entries) throws IOException {
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			out.writeInt(entries.size());
+			for (Entry entry : entries) {
+				out.writeUTF(entry.location);
+				out.writeUTF(entry.name);
+				out.writeLong(entry.size);
+				out.writeLong(entry.lastModified);
+				out.writeLong(entry.hash);
+			}
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
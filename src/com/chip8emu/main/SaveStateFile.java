@@ -0,0 +1,78 @@
+package com.chip8emu.main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file of fixed size save state slots, memory mapped once so saving and
+ * loading a slot is a plain copy between the interpreter and the page cache.
+ * Not thread safe, use one instance per emulation thread.
+ */
+public class SaveStateFile implements Closeable {
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final int slots;
+
+	public SaveStateFile(Path path, int slots) throws IOException {
+		if (slots < 1 || (long) slots * Chip8InterpreterCore.STATE_SIZE > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Invalid slot count " + slots);
+
+		this.slots = slots;
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) slots * Chip8InterpreterCore.STATE_SIZE);
+	}
+
+	// Single state files
+	public static void save(Chip8InterpreterCore core, Path path) throws IOException {
+		try (SaveStateFile file = new SaveStateFile(path, 1)) {
+			file.save(core, 0);
+		}
+	}
+
+	public static void load(Chip8InterpreterCore core, Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			core.loadState(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	public int getSlots() {
+		return slots;
+	}
+
+	public void save(Chip8InterpreterCore core, int slot) {
+		buffer.position(offset(slot));
+		core.saveState(buffer);
+	}
+
+	public void load(Chip8InterpreterCore core, int slot) {
+		buffer.position(offset(slot));
+		core.loadState(buffer);
+	}
+
+	public boolean isOccupied(int slot) {
+		return buffer.getInt(offset(slot)) == Chip8InterpreterCore.STATE_MAGIC;
+	}
+
+	// Writes the slots back to disk, closing does this as well
+	public void force() {
+		buffer.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		buffer.force();
+		channel.close();
+	}
+
+	private int offset(int slot) {
+		if (slot < 0 || slot >= slots)
+			throw new IndexOutOfBoundsException("Slot " + slot + " of " + slots);
+
+		return slot * Chip8InterpreterCore.STATE_SIZE;
+	}
+}
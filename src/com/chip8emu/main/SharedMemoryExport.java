@@ -0,0 +1,210 @@
+package com.chip8emu.main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Fixed layout region shared with other local processes, for example agents
+ * and training code reading observations of many cores. Each core gets a slot
+ * holding its machine state, VRAM included, and the keys the consumer holds
+ * down. The region is a memory mapped file or a direct buffer and all slots
+ * have the same size, so one mapping serves a batch of cores and every field
+ * is a strided view across it. The writer publishes a slot with a sequence
+ * counter that is odd while the slot is written, readers copy the slot and
+ * retry when the counter was odd or changed meanwhile. Neither side ever
+ * blocks the other or serializes anything.
+ */
+public final class SharedMemoryExport implements Closeable {
+	// Region, big endian like save states: a HEADER_SIZE header with magic,
+	// version, slot count, slot size, the offsets of the state and of VRAM
+	// within a slot and the save state version, then the slots
+	public static final int MAGIC = 0x4338534D; // "C8SM"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 64;
+
+	// Slot: the consumer's cache line with the key mask, bit k set while key
+	// k is held, then the writer's sequence counter, the frame count and the
+	// machine state. The state is a save state without ram, VRAM packed as
+	// described at Chip8InterpreterCore.VRAM_ROW_LONGS
+	public static final int KEYS_OFFSET = 0;
+	public static final int SEQUENCE_OFFSET = 64;
+	public static final int FRAME_OFFSET = SEQUENCE_OFFSET + 8;
+	public static final int STATE_OFFSET = FRAME_OFFSET + 8;
+	public static final int VRAM_OFFSET = STATE_OFFSET + Chip8InterpreterCore.STATE_VRAM_OFFSET;
+	public static final int STATE_SIZE = Chip8InterpreterCore.STATE_RAM_OFFSET;
+	// Whole cache lines, so neighbouring slots never share one
+	public static final int SLOT_SIZE = (STATE_OFFSET + STATE_SIZE + 63) & ~63;
+
+	private final ByteBuffer region;
+	private final int slots;
+	private final FileChannel channel;
+	// Per slot views for the writer and for the reader, each slot has one of
+	// each at a time
+	private final ByteBuffer[] writerViews;
+	private final ByteBuffer[] readerViews;
+
+	private SharedMemoryExport(ByteBuffer region, int slots, FileChannel channel) {
+		this.region = region;
+		this.slots = slots;
+		this.channel = channel;
+		this.writerViews = new ByteBuffer[slots];
+		this.readerViews = new ByteBuffer[slots];
+		for (int i = 0; i < slots; i++) {
+			writerViews[i] = region.duplicate();
+			readerViews[i] = region.duplicate();
+		}
+	}
+
+	// Maps a new region of slots into file, replacing its content
+	public static SharedMemoryExport create(Path file, int slots) throws IOException {
+		checkSlots(slots);
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, 0, regionSize(slots));
+			return initialize(region, slots, channel);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	// Region of slots in a direct buffer, for consumers in the same process
+	public static SharedMemoryExport allocate(int slots) {
+		checkSlots(slots);
+		return initialize(ByteBuffer.allocateDirect(regionSize(slots)), slots, null);
+	}
+
+	// Maps a region another process created, to read it and set keys
+	public static SharedMemoryExport open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			if (region.capacity() < HEADER_SIZE || region.getInt(0) != MAGIC || region.getInt(4) != VERSION
+					|| region.getInt(12) != SLOT_SIZE || region.getInt(16) != STATE_OFFSET
+					|| region.getInt(20) != VRAM_OFFSET || region.getInt(24) != Chip8InterpreterCore.STATE_VERSION)
+				throw new IOException("Not a shared memory export: " + file);
+			int slots = region.getInt(8);
+			if (slots < 1 || region.capacity() < regionSize(slots))
+				throw new IOException("Truncated shared memory export: " + file);
+			return new SharedMemoryExport(region, slots, channel);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static void checkSlots(int slots) {
+		if (slots < 1 || slots > (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE)
+			throw new IllegalArgumentException("Invalid slot count " + slots);
+	}
+
+	private static int regionSize(int slots) {
+		return HEADER_SIZE + slots * SLOT_SIZE;
+	}
+
+	private static SharedMemoryExport initialize(ByteBuffer region, int slots, FileChannel channel) {
+		for (int i = 0; i < regionSize(slots); i += 8)
+			region.putLong(i, 0);
+		region.putInt(4, VERSION);
+		region.putInt(8, slots);
+		region.putInt(12, SLOT_SIZE);
+		region.putInt(16, STATE_OFFSET);
+		region.putInt(20, VRAM_OFFSET);
+		region.putInt(24, Chip8InterpreterCore.STATE_VERSION);
+		// Magic last, a consumer polling the file sees a complete header
+		Fences.storeFence();
+		region.putInt(0, MAGIC);
+		return new SharedMemoryExport(region, slots, channel);
+	}
+
+	public int getSlotCount() {
+		return slots;
+	}
+
+	// The whole region, header included. Slot i starts at
+	// HEADER_SIZE + i * SLOT_SIZE
+	public ByteBuffer getRegion() {
+		return region.duplicate();
+	}
+
+	// Writer side. Stores the state of the core in its slot, call it from
+	// the thread running the core, usually after every frame. Allocates
+	// nothing
+	public void publish(int slot, Chip8InterpreterCore core) {
+		int base = slotOffset(slot);
+		long sequence = region.getLong(base + SEQUENCE_OFFSET);
+		region.putLong(base + SEQUENCE_OFFSET, sequence + 1);
+		// The odd sequence before any byte of the slot changes
+		Fences.storeFence();
+		region.putLong(base + FRAME_OFFSET, core.getFrameCount());
+		ByteBuffer state = writerViews[slot];
+		state.position(base + STATE_OFFSET);
+		core.saveMachine(state);
+		// Every byte of the slot before the even sequence
+		Fences.storeFence();
+		region.putLong(base + SEQUENCE_OFFSET, sequence + 2);
+	}
+
+	// Writer side. Turns the changes of the key mask of the slot since
+	// appliedKeys into key events of the core and returns the mask now
+	// applied, pass 0 for a new core. Exported cores take their input from
+	// the slot only, as their key ring has a single producer
+	public int applyInput(int slot, Chip8InterpreterCore core, int appliedKeys) {
+		int keys = region.getInt(slotOffset(slot) + KEYS_OFFSET) & 0xFFFF;
+		int changed = keys ^ appliedKeys;
+		if (changed == 0)
+			return keys;
+
+		for (int key = 0; key < 16; key++)
+			if ((changed & (1 << key)) != 0) {
+				if ((keys & (1 << key)) != 0)
+					core.inputPressed(key);
+				else
+					core.inputReleased(key);
+			}
+		return keys;
+	}
+
+	// Consumer side. Copies the state of the slot, STATE_SIZE bytes, into
+	// target. Returns the frame count of the copy, or -1 when the slot was
+	// never published or was written meanwhile, the caller retries then
+	public long read(int slot, byte[] target) {
+		int base = slotOffset(slot);
+		long sequence = region.getLong(base + SEQUENCE_OFFSET);
+		if (sequence == 0 || (sequence & 1) != 0)
+			return -1;
+
+		// The sequence before any byte of the slot
+		Fences.loadFence();
+		long frame = region.getLong(base + FRAME_OFFSET);
+		ByteBuffer state = readerViews[slot];
+		state.position(base + STATE_OFFSET);
+		state.get(target, 0, STATE_SIZE);
+		// Every byte of the slot before the sequence is checked again
+		Fences.loadFence();
+		return region.getLong(base + SEQUENCE_OFFSET) == sequence ? frame : -1;
+	}
+
+	// Consumer side. Keys held down in the slot, bit k for key k
+	public void setKeys(int slot, int keys) {
+		region.putInt(slotOffset(slot) + KEYS_OFFSET, keys & 0xFFFF);
+	}
+
+	private int slotOffset(int slot) {
+		if (slot < 0 || slot >= slots)
+			throw new IndexOutOfBoundsException("Invalid slot " + slot);
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	// Unmapping is left to the garbage collector, the region stays usable
+	@Override
+	public void close() throws IOException {
+		if (channel != null)
+			channel.close();
+	}
+}
@@ -0,0 +1,95 @@
+package com.chip8emu.main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes all audio to a WAV file, for headless runs and tests on machines
+ * without audio hardware. Unlike {@link JavaSoundSink} nothing is ever
+ * dropped: frames collect in a buffer that is written through a FileChannel
+ * every few dozen frames, on the thread running the interpreter. The header
+ * gets its final sizes on close. An I/O error stops writing and is rethrown
+ * by close().
+ */
+public final class WavFileSink implements AudioSink {
+	private static final int HEADER_SIZE = 44;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private long dataBytes;
+	private IOException failure;
+
+	public WavFileSink(Path path) throws IOException {
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		writeHeader();
+		channel.position(HEADER_SIZE);
+	}
+
+	public long getFrames() {
+		return dataBytes / AudioPipeline.FRAME_BYTES;
+	}
+
+	@Override
+	public void write(byte[] pcm, int length) {
+		if (failure != null)
+			return;
+
+		try {
+			if (buffer.remaining() < length)
+				flush();
+			buffer.put(pcm, 0, length);
+			dataBytes += length;
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (failure == null) {
+				flush();
+				writeHeader();
+			}
+		} finally {
+			channel.close();
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	// RIFF header of 16 bit mono PCM at AudioPipeline.SAMPLE_RATE
+	private void writeHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0x46464952); // "RIFF"
+		header.putInt((int) (HEADER_SIZE - 8 + dataBytes));
+		header.putInt(0x45564157); // "WAVE"
+		header.putInt(0x20746D66); // "fmt "
+		header.putInt(16);
+		header.putShort((short) 1); // PCM
+		header.putShort((short) 1); // mono
+		header.putInt(AudioPipeline.SAMPLE_RATE);
+		header.putInt(AudioPipeline.SAMPLE_RATE * 2);
+		header.putShort((short) 2);
+		header.putShort((short) 16);
+		header.putInt(0x61746164); // "data"
+		header.putInt((int) dataBytes);
+		header.flip();
+		long position = 0;
+		while (header.hasRemaining())
+			position += channel.write(header, position);
+	}
+}